@@ -0,0 +1,120 @@
+package net.unit8.job_streamer.control_bus;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quartz.CronExpression;
+import org.quartz.TriggerUtils;
+
+/**
+ * Compares CronAlternativeTrigger evaluated by CompiledCronExpression with the one evaluated by CronExpression,
+ * on a calendar with long holiday ranges.
+ *
+ * <pre>
+ * lein with-profile +bench run -m org.openjdk.jmh.Main CronAlternativeTriggerBench
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CronAlternativeTriggerBench {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String EXPRESSION = "0 */15 9-17 ? * MON-FRI";
+
+    @Param({"compiled", "quartz"})
+    public String evaluator;
+
+    /**
+     * The trigger which evaluates the expression by CronExpression, as before.
+     */
+    static final class QuartzCronTrigger extends CronAlternativeTrigger {
+        private CronExpression quartzCron;
+
+        @Override
+        public void setCronExpression(CronExpression cronExpression) {
+            super.setCronExpression(cronExpression);
+            quartzCron = cronExpression;
+        }
+
+        @Override
+        protected Date getTimeAfter(Date afterTime) {
+            return quartzCron.getTimeAfter(afterTime);
+        }
+    }
+
+    private HolidayAndWeeklyCalendar calendar;
+    private CronAlternativeTrigger trigger;
+    private CronExpression cronEx;
+    private CompiledCronExpression compiledCron;
+    private long[] times;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        long from = System.currentTimeMillis();
+        calendar = new HolidayAndWeeklyCalendar();
+        // Holiday ranges of 20 days in every 30 days, which the trigger substitutes over.
+        for (int i = 0; i < 365; i++) {
+            if (i % 30 < 20) {
+                calendar.addExcludedDate(new Date(from + i * DAY));
+            }
+        }
+        cronEx = new CronExpression(EXPRESSION);
+        compiledCron = CompiledCronExpression.of(EXPRESSION);
+        trigger = "quartz".equals(evaluator) ? new QuartzCronTrigger() : new CronAlternativeTrigger();
+        trigger.setCronExpression(new CronExpression(EXPRESSION));
+        trigger.setStartTime(new Date(from));
+
+        Random random = new Random(1L);
+        times = new long[1024];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = from + (long) (random.nextDouble() * 330 * DAY);
+        }
+    }
+
+    private long nextTime() {
+        index = (index + 1) & (times.length - 1);
+        return times[index];
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Date getTimeAfter() {
+        Date after = new Date(nextTime());
+        return "quartz".equals(evaluator) ? cronEx.getTimeAfter(after) : compiledCron.getTimeAfter(cronEx, after);
+    }
+
+    @Benchmark
+    public Date computeFirstFireTime() {
+        trigger.setStartTime(new Date(nextTime()));
+        return trigger.computeFirstFireTime(calendar);
+    }
+
+    @Benchmark
+    public Date updateWithNewCalendar() {
+        trigger.setPreviousFireTime(new Date(nextTime()));
+        trigger.updateWithNewCalendar(calendar, Long.MAX_VALUE);
+        return trigger.getNextFireTime();
+    }
+
+    @Benchmark
+    public List<Date> computeFireTimes() {
+        return TriggerUtils.computeFireTimes(trigger, calendar, 100);
+    }
+}
@@ -0,0 +1,91 @@
+package net.unit8.job_streamer.control_bus;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerUtils;
+import org.quartz.spi.OperableTrigger;
+
+/**
+ * Compares HolidayAndWeeklyCalendar with the legacy one.
+ *
+ * <pre>
+ * lein with-profile +bench run -m org.openjdk.jmh.Main HolidayAndWeeklyCalendarBench
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HolidayAndWeeklyCalendarBench {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @Param({"bitset", "legacy"})
+    public String implementation;
+
+    private HolidayAndWeeklyCalendar calendar;
+    private OperableTrigger trigger;
+    private long[] times;
+    private int index;
+
+    @Setup
+    public void setup() {
+        calendar = "legacy".equals(implementation)
+                ? new LegacyHolidayAndWeeklyCalendar()
+                : new HolidayAndWeeklyCalendar();
+        calendar.setDayStart(2L * 60 * 60 * 1000);
+        long from = System.currentTimeMillis();
+        Random random = new Random(1L);
+        // Holidays of a year, which make long runs of excluded days for getNextIncludedTime.
+        for (int i = 0; i < 365; i++) {
+            if (random.nextInt(5) == 0) {
+                calendar.addExcludedDate(new Date(from + i * DAY));
+            }
+        }
+        times = new long[1024];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = from + (long) (random.nextDouble() * 365 * DAY);
+        }
+        trigger = (OperableTrigger) TriggerBuilder.newTrigger()
+                .withSchedule(CronScheduleBuilder.cronSchedule("0 0 * * * ?"))
+                .build();
+    }
+
+    private long nextTime() {
+        index = (index + 1) & (times.length - 1);
+        return times[index];
+    }
+
+    @Benchmark
+    public boolean isTimeIncluded() {
+        return calendar.isTimeIncluded(nextTime());
+    }
+
+    @Benchmark
+    public long getNextIncludedTime() {
+        return calendar.getNextIncludedTime(nextTime());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<Date> computeFireTimes() {
+        return TriggerUtils.computeFireTimes(trigger, calendar, 100);
+    }
+}
@@ -32,6 +32,7 @@
 
                  ;; for Scheduler
                  [org.quartz-scheduler/quartz "2.2.3"]
+                 [com.h2database/h2 "1.4.196"]
 
                  ;; for monitoring agents
                  [org.rrd4j/rrd4j "2.2.1"]
@@ -57,6 +58,7 @@
   :profiles
   {:dev  [:project/dev  :profiles/dev :project/test :profiles/test]
    :test [:project/test :profiles/test]
+   :bench [:project/test :project/bench]
    :uberjar {:aot :all}
    :profiles/dev  {}
    :profiles/test {}
@@ -77,4 +79,7 @@
                                  [org.powermock/powermock-api-mockito "1.6.4"]
                                  [org.powermock/powermock-module-junit4 "1.6.4"]]
                   :test-paths ["test/clj" "test/java"]
-                  :resource-paths ["test/resources"]}})
+                  :resource-paths ["test/resources"]}
+   :project/bench {:dependencies [[org.openjdk.jmh/jmh-core "1.19"]
+                                  [org.openjdk.jmh/jmh-generator-annprocess "1.19"]]
+                   :java-source-paths ["test/java" "bench/java"]}})
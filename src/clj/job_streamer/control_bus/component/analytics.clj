@@ -0,0 +1,193 @@
+(ns job-streamer.control-bus.component.analytics
+  "Aggregates finished executions into hourly buckets per application and agent.
+  Buckets are filled from the execution history at start and incrementally
+  from transactions, so that a range query reads only the buckets."
+  (:require [clojure.tools.logging :as log]
+            [clojure.core.reducers :as r]
+            [com.stuartsierra.component :as component]
+            [liberator.core :as liberator]
+            [bouncer.core :as b]
+            [bouncer.validators :as v]
+            [clj-time.format :as f]
+            (job-streamer.control-bus [histogram :as histogram])
+            (job-streamer.control-bus.component [datomic :as d]))
+  (:import [java.util Date]))
+
+(def finished-statuses #{:batch-status/completed
+                         :batch-status/failed
+                         :batch-status/stopped
+                         :batch-status/abandoned})
+
+(def hour (* 60 60 1000))
+
+(defn- execution-stats [{:keys [batch-status ^Date start-time ^Date end-time]}]
+  {:count 1
+   :failures (if (= batch-status :batch-status/failed) 1 0)
+   :durations (cond-> {}
+                (and start-time end-time)
+                (histogram/add (- (.getTime end-time) (.getTime start-time))))})
+
+(defn merge-stats
+  ([] {:count 0 :failures 0 :durations {}})
+  ([s1 s2]
+   {:count    (+ (:count s1) (:count s2))
+    :failures (+ (:failures s1) (:failures s2))
+    :durations (histogram/merge-histograms (:durations s1) (:durations s2))}))
+
+(defn- add-execution [buckets {:keys [application agent end-time] :as execution}]
+  (update-in buckets [(quot (.getTime ^Date end-time) hour) [application agent]]
+             (fnil merge-stats (merge-stats))
+             (execution-stats execution)))
+
+(defn- read-executions
+  "Read finished executions with attributes for buckets.
+  `execution-ids` limits executions to read. Memoized executions aren't read because they didn't run."
+  [datomic & [execution-ids]]
+  (let [base '{:find [?execution ?app-name ?status ?end-time]
+               :in [$ [?status ...]]
+               :where [[?s :db/ident ?status]
+                       [?execution :job-execution/batch-status ?s]
+                       (not [?execution :job-execution/memoized-from])
+                       [?execution :job-execution/end-time ?end-time]
+                       [?job :job/executions ?execution]
+                       [?app :application/jobs ?job]
+                       [?app :application/name ?app-name]]}
+        restrict (fn [q]
+                   (cond-> q
+                     execution-ids (update-in [:in] conj '[?execution ...])))
+        params (fn [& args]
+                 (cond-> (vec args) execution-ids (conj execution-ids)))
+        start-times (->> (apply d/query datomic
+                                (restrict '{:find [?execution ?start-time]
+                                            :in [$]
+                                            :where [[?execution :job-execution/start-time ?start-time]]})
+                                (params))
+                         (into {}))
+        agents (->> (apply d/query datomic
+                           (restrict '{:find [?execution ?agent-name]
+                                       :in [$]
+                                       :where [[?execution :job-execution/agent ?agent]
+                                               [?agent :agent/name ?agent-name]]})
+                           (params))
+                    (into {}))]
+    (->> (apply d/query datomic (restrict base) (params (vec finished-statuses)))
+         (map (fn [[execution-id app-name status end-time]]
+                {:db/id execution-id
+                 :application app-name
+                 :agent (agents execution-id)
+                 :batch-status status
+                 :start-time (start-times execution-id)
+                 :end-time end-time})))))
+
+(defn- finished-executions
+  "Find executions which are finished in the transaction.
+  A transition between finished statuses isn't counted again."
+  [report]
+  (let [changes (d/attribute-changes report :job-execution/batch-status)
+        refinished (->> changes
+                        (filter (fn [[_ status added?]]
+                                  (and (not added?) (finished-statuses status))))
+                        (map first)
+                        set)]
+    (->> changes
+         (filter (fn [[execution-id status added?]]
+                   (and added? (finished-statuses status) (not (refinished execution-id)))))
+         (map first)
+         set)))
+
+(defn- follow-tx-report [{:keys [datomic state lock]} report]
+  (locking lock
+    (when-let [execution-ids (not-empty (finished-executions report))]
+      (if (:loaded? @state)
+        (swap! state update-in [:buckets]
+               #(reduce add-execution % (read-executions datomic execution-ids)))
+        (swap! state update-in [:pending] into execution-ids)))))
+
+(defn aggregate
+  "Aggregate buckets in the range by the group key (:application or :agent)."
+  [{:keys [state]} app-name ^Date since ^Date until group-key]
+  (let [buckets (:buckets @state)
+        hours (max 1 (quot (- (.getTime until) (.getTime since)) hour))]
+    (->> (subseq buckets
+                 >= (quot (.getTime since) hour)
+                 < (quot (.getTime until) hour))
+         (mapcat (fn [[_ stats-by-key]]
+                   (for [[[application agent] stats] stats-by-key
+                         :when (= application app-name)]
+                     [(if (= group-key :agent) agent application) stats])))
+         vec
+         (r/fold (r/monoid (partial merge-with merge-stats) hash-map)
+                 (fn [acc [k stats]]
+                   (update-in acc [k] (fnil merge-stats (merge-stats)) stats)))
+         (map (fn [[k {:keys [count failures durations]}]]
+                {group-key k
+                 :count count
+                 :failures failures
+                 :failure-rate (double (/ failures count))
+                 :executions-per-hour (double (/ count hours))
+                 :duration {:p50 (histogram/percentile durations 0.5)
+                            :p95 (histogram/percentile durations 0.95)}}))
+         (sort-by (comp str group-key)))))
+
+(defn- parse-date [s]
+  (when (b/valid? {:date s} :date [[v/datetime (:date f/formatters)]])
+    (.toDate (f/parse (:date f/formatters) s))))
+
+(defn analytics-resource [analytics app-name]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:get]
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :get (:permission/read-job permissions)
+                   false)))
+   :malformed? (fn [{{{:keys [since until group-by]} :params} :request}]
+                 (let [until (if until
+                               (some-> (parse-date until) (.getTime) (+ (* 24 hour)) (Date.))
+                               (Date.))
+                       since (if since
+                               (parse-date since)
+                               (Date. (- (.getTime until) (* 7 24 hour))))
+                       group-key (keyword (or group-by "application"))]
+                   (if (and since until (#{:application :agent} group-key))
+                     [false {:range [since until] :group-key group-key}]
+                     true)))
+   :handle-ok (fn [{[since until] :range group-key :group-key}]
+                {:since since
+                 :until until
+                 :stats (aggregate analytics app-name since until group-key)})))
+
+(defrecord Analytics [datomic]
+  component/Lifecycle
+
+  (start [component]
+    (if (:state component)
+      component
+      (let [component (assoc component
+                             :state (atom {:loaded? false :pending #{} :buckets (sorted-map)})
+                             :lock (Object.))
+            {:keys [state lock]} component]
+        (d/listen-tx datomic ::analytics #(follow-tx-report component %))
+        (let [executions (read-executions datomic)
+              loaded (set (map :db/id executions))]
+          (locking lock
+            (swap! state
+                   (fn [{:keys [pending buckets] :as current}]
+                     (let [missed (some->> (remove loaded pending)
+                                           not-empty
+                                           (read-executions datomic))]
+                       (-> current
+                           (assoc :loaded? true
+                                  :buckets (reduce add-execution buckets (concat executions missed)))
+                           (dissoc :pending)))))))
+        (log/info "Analytics buckets:" (count (:buckets @state)))
+        component)))
+
+  (stop [component]
+    (when (:state component)
+      (d/unlisten-tx datomic ::analytics))
+    (dissoc component :state :lock)))
+
+(defn analytics-component [options]
+  (map->Analytics options))
@@ -0,0 +1,218 @@
+(ns job-streamer.control-bus.component.archiver
+  "Moves old executions out of Datomic into compressed archive segments."
+  (:require [clojure.tools.logging :as log]
+            [clojure.java.io :as io]
+            [clojure.edn :as edn]
+            [clojure.core.async :refer [chan go-loop alt! timeout thread <! close!]]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            [liberator.core :as liberator]
+            (job-streamer.control-bus.component [datomic :as d]
+                                                [jobs :as jobs]))
+  (:import [java.io File FileOutputStream FileInputStream FilterOutputStream
+            OutputStream InputStreamReader PushbackReader]
+           [java.util.zip GZIPOutputStream GZIPInputStream]))
+
+(def finished-statuses
+  #{:batch-status/completed
+    :batch-status/failed
+    :batch-status/stopped
+    :batch-status/abandoned})
+
+(defn find-policy
+  "Find the retention policy of the job.
+  A policy for the job takes precedence over the one for its application."
+  [policies app-name job-name]
+  (or (first (filter #(and (= (:application %) app-name)
+                           (= (:job %) job-name)) policies))
+      (first (filter #(and (= (:application %) app-name)
+                           (nil? (:job %))) policies))))
+
+(defn expired-executions
+  "Select executions that are out of the policy.
+  `executions` must be finished ones."
+  [{:keys [max-count max-age-days]} executions now]
+  (let [sorted (sort-by :job-execution/create-time #(compare %2 %1) executions)]
+    (->> (concat
+          (when max-count
+            (drop max-count sorted))
+          (when max-age-days
+            (let [limit (- now (* max-age-days 24 60 60 1000))]
+              (filter #(< (.getTime (:job-execution/end-time %)) limit) sorted))))
+         distinct)))
+
+(defn- segment-name [n]
+  (format "segment-%08d.gz" n))
+
+(defn- segment-number [^File f]
+  (some->> (.getName f)
+           (re-find #"^segment-(\d+)\.gz$")
+           second
+           Long/parseLong))
+
+(defn- latest-segment [archive-dir]
+  (or (->> (.listFiles (io/file archive-dir))
+           (keep segment-number)
+           sort
+           last)
+      1))
+
+(defn- load-index [archive-dir]
+  (let [index-file (io/file archive-dir "index.edn")]
+    (if (.exists index-file)
+      (with-open [rdr (io/reader index-file)]
+        (->> (line-seq rdr)
+             (map edn/read-string)
+             (reduce (fn [index [id segment offset]]
+                       (assoc index id [segment offset]))
+                     {})))
+      {})))
+
+(defn- non-closing [^OutputStream out]
+  (proxy [FilterOutputStream] [out]
+    (write
+      ([b] (if (integer? b)
+             (.write out (int b))
+             (.write out ^bytes b)))
+      ([b off len] (.write out ^bytes b (int off) (int len))))
+    (close [] (.flush out))))
+
+(defn write-records
+  "Append records to the current segment.
+  Each record is written as an individual gzip member, so that it can be read
+  from its offset without decompressing the whole segment.
+  Returns index entries as `[id segment offset]`."
+  [{:keys [archive-dir max-segment-size segment]} records]
+  (let [seg-no (if (> (.length (io/file archive-dir (segment-name @segment)))
+                      max-segment-size)
+                 (swap! segment inc)
+                 @segment)
+        seg-file (io/file archive-dir (segment-name seg-no))]
+    (with-open [out (FileOutputStream. seg-file true)]
+      (let [ch (.getChannel out)
+            entries (doall
+                     (for [record records]
+                       (let [offset (.position ch)]
+                         (with-open [gz (GZIPOutputStream. (non-closing out))]
+                           (.write gz (.getBytes (pr-str record) "UTF-8")))
+                         [(:db/id record) (.getName seg-file) offset])))]
+        (.force ch true)
+        entries))))
+
+(defn- append-index [{:keys [archive-dir index]} entries]
+  (with-open [w (io/writer (io/file archive-dir "index.edn") :append true)]
+    (doseq [entry entries]
+      (.write w (str (pr-str entry) "\n"))))
+  (swap! index into (map (fn [[id segment offset]] [id [segment offset]]) entries)))
+
+(defn read-record [archive-dir segment offset]
+  (with-open [in (FileInputStream. (io/file archive-dir segment))]
+    (.position (.getChannel in) (long offset))
+    (with-open [rdr (PushbackReader. (InputStreamReader. (GZIPInputStream. in) "UTF-8"))]
+      (edn/read rdr))))
+
+(defn find-archived-execution
+  "Find an archived execution by its id."
+  [{:keys [archive-dir index]} id]
+  (when-let [[segment offset] (get @index id)]
+    (read-record archive-dir segment offset)))
+
+(defn- find-finished-executions [datomic job-id]
+  (->> (d/query datomic
+                '{:find [?execution ?create-time ?end-time ?status]
+                  :in [$ ?job]
+                  :where [[?job :job/executions ?execution]
+                          [?execution :job-execution/create-time ?create-time]
+                          [?execution :job-execution/end-time ?end-time]
+                          [?execution :job-execution/batch-status ?s]
+                          [?s :db/ident ?status]]}
+                job-id)
+       (filter #(finished-statuses (nth % 3)))
+       (map (fn [[id create-time end-time]]
+              {:db/id id
+               :job-execution/create-time create-time
+               :job-execution/end-time end-time}))))
+
+(defn archive-job
+  "Archive executions of the job which are out of the policy,
+  and retract them from the database in throttled batches of at most `batch-size` entities."
+  [{:keys [datomic jobs batch-size throttle] :as archiver} policy app-name job-name job-id]
+  (let [targets (expired-executions policy
+                                    (find-finished-executions datomic job-id)
+                                    (System/currentTimeMillis))]
+    (doseq [chunk (partition-all batch-size targets)
+            executions (->> chunk
+                            (map #(jobs/find-execution jobs (:db/id %)))
+                            (map #(assoc % :application/name app-name :job/name job-name))
+                            (jobs/retraction-batches batch-size))]
+      (append-index archiver (write-records archiver executions))
+      (d/transact datomic (mapcat jobs/retract-execution-tx executions))
+      (log/info "Archived" (count executions) "executions of" app-name "/" job-name)
+      (Thread/sleep throttle))
+    (count targets)))
+
+(defn archive
+  "Apply retention policies to all jobs."
+  [{:keys [datomic policies] :as archiver}]
+  (when (not-empty policies)
+    (doseq [[app-name job-name job-id] (d/query datomic
+                                                '{:find [?app-name ?job-name ?job]
+                                                  :where [[?app :application/name ?app-name]
+                                                          [?app :application/jobs ?job]
+                                                          [?job :job/name ?job-name]]})]
+      (when-let [policy (find-policy policies app-name job-name)]
+        (archive-job archiver policy app-name job-name job-id)))))
+
+(defn archived-execution-resource
+  "A resource of the archived execution.
+  It exists only when the execution has been archived as one of the job of the application."
+  [archiver app-name job-name id]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:get]
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :get (:permission/read-job permissions)
+                   false)))
+   :exists? (fn [ctx]
+              (when-let [execution (find-archived-execution archiver id)]
+                (when (and (= (:application/name execution) app-name)
+                           (= (:job/name execution) job-name))
+                  {:execution execution})))
+   :handle-ok (fn [ctx]
+                (:execution ctx))))
+
+(defrecord Archiver [datomic jobs archive-dir interval]
+  component/Lifecycle
+
+  (start [component]
+    (.mkdirs (io/file archive-dir))
+    (let [component (assoc component
+                           :index (atom (load-index archive-dir))
+                           :segment (atom (latest-segment archive-dir))
+                           :control-ch (chan))
+          main-loop (go-loop []
+                      (alt!
+                        (:control-ch component) nil
+                        (timeout interval) (do (<! (thread
+                                                    (try
+                                                      (archive component)
+                                                      (catch Throwable t
+                                                        (log/error t "Archiving failure")))))
+                                               (recur))))]
+      (assoc component :main-loop main-loop)))
+
+  (stop [component]
+    (when-let [control-ch (:control-ch component)]
+      (close! control-ch))
+    (dissoc component :main-loop :control-ch :index :segment)))
+
+(defn archiver-component [options]
+  (map->Archiver (meta-merge {:archive-dir "archive"
+                              :interval (* 60 60 1000)
+                              :batch-size 100
+                              :throttle 1000
+                              :max-segment-size (* 64 1024 1024)
+                              :policies []}
+                             options)))
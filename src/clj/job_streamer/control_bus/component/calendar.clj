@@ -8,7 +8,7 @@
             [com.stuartsierra.component :as component]
             [ring.util.response :refer [response content-type header charset]]
             (job-streamer.control-bus [validation :refer (validate)]
-                                      [util :refer [parse-body]])
+                                      [util :refer [parse-body streaming-body download-format]])
             (job-streamer.control-bus.component [datomic :as d]
                                                 [scheduler :as scheduler])))
 
@@ -69,6 +69,14 @@
              :where [[?calendar :calendar/name ?calendar-name]]}
            cal-name))
 
+(defn- holidays->local-dates
+  "Format holidays as `yyyy-MM-dd`, so that JSON exports can be imported again."
+  [cal]
+  (update-in cal [:calendar/holidays]
+             (fn [holidays]
+               (let [fmt (java.text.SimpleDateFormat. "yyyy-MM-dd")]
+                 (map #(.format fmt %) holidays)))))
+
 (defn list-resource
   [{:keys [datomic scheduler] :as component} & {:keys [download?] :or {download? false}}]
   (liberator/resource
@@ -76,7 +84,8 @@
    :allowed-methods [:get :post]
    :malformed? #(validate (parse-body %)
                           :calendar/name v/required
-                          :calendar/day-start [[(fn [val] (or (empty? val) (scheduler/hh:mm? val)))  :message "Invalid hh:mm format"]])
+                          :calendar/day-start [[(fn [val] (or (empty? val) (scheduler/hh:mm? val)))  :message "Invalid hh:mm format"]]
+                          :calendar/jitter-window [[v/integer] [v/in-range [0 86400]]])
    :exists? (fn [{{cal-name :calendar/name} :edn :as ctx}]
               (if (#{:post} (get-in ctx [:request :request-method]))
                 (when-let [id (find-calendar-by-name component cal-name)]
@@ -92,15 +101,17 @@
 
    :post! (fn [{cal :edn :as ctx}]
             (d/transact datomic
-                        [{:db/id (or (:cal-id ctx) (d/tempid :db.part/user))
-                          :calendar/name (:calendar/name cal)
-                          :calendar/holidays (:calendar/holidays cal [])
-                          :calendar/weekly-holiday (pr-str (:calendar/weekly-holiday cal))
-                          :calendar/day-start (:calendar/day-start cal "00:00")}])
+                        [(merge {:db/id (or (:cal-id ctx) (d/tempid :db.part/user))
+                                 :calendar/name (:calendar/name cal)
+                                 :calendar/holidays (:calendar/holidays cal [])
+                                 :calendar/weekly-holiday (pr-str (:calendar/weekly-holiday cal))
+                                 :calendar/day-start (:calendar/day-start cal "00:00")}
+                                (when-let [jitter-window (:calendar/jitter-window cal)]
+                                  {:calendar/jitter-window jitter-window}))])
             (when-not (:cal-id ctx)
               (scheduler/add-calendar scheduler cal)))
 
-   :handle-ok (fn [{{{sort-order :sort-by} :params} :request}]
+   :handle-ok (fn [{{{sort-order :sort-by fmt :format} :params} :request}]
                 (let [res (->> (d/query datomic
                               '{:find [[(pull ?cal [:*]) ...]]
                                 :in [$]
@@ -111,13 +122,15 @@
                                (sort-by-map (parse-sort-order sort-order))
                                vec)]
                   (if download?
-                    (-> (map #(dissoc % :db/id) res)
-                        pr-str
-                        response
-                        (content-type "application/force-download")
-                        (charset "utf-8")
-                        (header "Content-disposition" "attachment; filename=\"cals.edn\"")
-                        (ring-response))
+                    (let [fmt (download-format fmt)]
+                      (-> (cond->> (map #(dissoc % :db/id) res)
+                            (#{:json :ndjson} fmt) (map holidays->local-dates))
+                          (streaming-body fmt)
+                          response
+                          (content-type "application/force-download")
+                          (charset "utf-8")
+                          (header "Content-disposition" (format "attachment; filename=\"cals.%s\"" (name fmt)))
+                          (ring-response)))
                     res)))))
 
 (defn entry-resource [{:keys [datomic scheduler]} name]
@@ -127,7 +140,8 @@
    :malformed? (fn [ctx]
                  (or (validate (parse-body ctx)
                                :calendar/name v/required
-                               :calendar/day-start [[(fn [val] (or (empty? val) (scheduler/hh:mm? val)))  :message "Invalid hh:mm format"]])
+                               :calendar/day-start [[(fn [val] (or (empty? val) (scheduler/hh:mm? val)))  :message "Invalid hh:mm format"]]
+                               :calendar/jitter-window [[v/integer] [v/in-range [0 86400]]])
                      (and (#{:delete} (get-in ctx [:request :request-method]))
                           (when (calendar-is-already-used-by-job? datomic name)
                             {:message {:messages ["This calendar is already used by some job."]}}))))
@@ -149,11 +163,13 @@
            (d/transact datomic
                        [[:db.fn/retractEntity (:db/id cal)]])
            (d/transact datomic
-                       [{:db/id (:db/id cal)
-                         :calendar/name (:calendar/name cal)
-                         :calendar/holidays (:calendar/holidays cal)
-                         :calendar/weekly-holiday (pr-str (:calendar/weekly-holiday cal))
-                         :calendar/day-start (:calendar/day-start cal "00:00")}])
+                       [(merge {:db/id (:db/id cal)
+                                :calendar/name (:calendar/name cal)
+                                :calendar/holidays (:calendar/holidays cal)
+                                :calendar/weekly-holiday (pr-str (:calendar/weekly-holiday cal))
+                                :calendar/day-start (:calendar/day-start cal "00:00")}
+                               (when-let [jitter-window (:calendar/jitter-window cal)]
+                                 {:calendar/jitter-window jitter-window}))])
            (scheduler/modify-calendar scheduler cal))
    :delete! (fn [ctx]
               (scheduler/delete-calendar scheduler name)
@@ -1,5 +1,6 @@
 (ns job-streamer.control-bus.component.datomic
   (:require [datomic.api :as d]
+            [clojure.tools.logging :as log]
             [meta-merge.core :refer [meta-merge]]
             [com.stuartsierra.component :as component]))
 
@@ -12,9 +13,46 @@
   (transact [this transaction])
   (resolve-tempid [this tempids tempid]))
 
+(defprotocol ITxReportSource
+  (listen-tx   [this key f] "Call `f` with every transaction report.")
+  (unlisten-tx [this key])
+  (basis-t     [this] "The basis t of the current database."))
+
 (defn query [this q & params]
   (query* this q params))
 
+(defn attribute-changes
+  "Extract changes of the attribute from a transaction report
+  as a seq of `[entity value added?]`. Values of ref attributes are resolved to idents."
+  [{:keys [db-after tx-data]} attr]
+  (when-let [attr-id (d/entid db-after attr)]
+    (let [ref? (= (:db/valueType (d/entity db-after attr)) :db.type/ref)]
+      (for [datom tx-data :when (= (:a datom) attr-id)]
+        [(:e datom)
+         (or (and ref? (d/ident db-after (:v datom))) (:v datom))
+         (:added datom)]))))
+
+(defn report-basis-t [{:keys [db-after]}]
+  (d/basis-t db-after))
+
+(defn- start-tx-report-loop [connection listeners]
+  (let [queue (d/tx-report-queue connection)]
+    (doto (Thread. (fn []
+                     (try
+                       (loop []
+                         (let [report (.take ^java.util.concurrent.BlockingQueue queue)]
+                           (doseq [[k f] @listeners]
+                             (try
+                               (f report)
+                               (catch Throwable t
+                                 (log/error t "Transaction listener failure:" k))))
+                           (recur)))
+                       (catch InterruptedException e
+                         (log/debug "Stop transaction report loop.")))))
+      (.setName "datomic-tx-report")
+      (.setDaemon true)
+      (.start))))
+
 (defrecord DatomicDataSource [uri recreate?]
   component/Lifecycle
 
@@ -24,10 +62,19 @@
       (do (when recreate?
             (d/delete-database uri))
           (d/create-database uri)
-          (assoc component :connection (d/connect uri)))))
+          (let [connection (d/connect uri)
+                listeners (atom {})]
+            (assoc component
+                   :connection connection
+                   :tx-listeners listeners
+                   :tx-report-loop (start-tx-report-loop connection listeners))))))
 
   (stop [component]
-    (dissoc component :connection))
+    (when-let [connection (:connection component)]
+      (d/remove-tx-report-queue connection))
+    (when-let [tx-report-loop (:tx-report-loop component)]
+      (.interrupt ^Thread tx-report-loop))
+    (dissoc component :connection :tx-listeners :tx-report-loop))
 
   IDataSource
 
@@ -44,7 +91,19 @@
 
   (resolve-tempid [{:keys [connection]} tempids tempid]
     (let [db (d/db connection)]
-      (d/resolve-tempid db tempids tempid))))
+      (d/resolve-tempid db tempids tempid)))
+
+  ITxReportSource
+
+  (listen-tx [{:keys [tx-listeners]} key f]
+    (swap! tx-listeners assoc key f))
+
+  (unlisten-tx [{:keys [tx-listeners]} key]
+    (when tx-listeners
+      (swap! tx-listeners dissoc key)))
+
+  (basis-t [{:keys [connection]}]
+    (d/basis-t (d/db connection))))
 
 (defn datomic-component [options]
   (map->DatomicDataSource options))
@@ -4,7 +4,8 @@
             [clojure.core.async :refer [go-loop close!]]
             [com.stuartsierra.component :as component]
             [environ.core :refer [env]]
-            [org.httpkit.client :as http])
+            [org.httpkit.client :as http]
+            (job-streamer.control-bus.component [dispatcher :as dispatcher]))
   (:import [java.nio.channels DatagramChannel Selector SelectionKey]
            [java.nio ByteBuffer]
            [java.io ByteArrayInputStream DataInputStream]
@@ -61,7 +62,7 @@
               (or (= (count matches) 1) (= i 3)) (first matches)
               :default (recur (inc i) matches))))))
 
-(defn- do-receive [key ws-port]
+(defn- do-receive [key ws-port dispatcher]
   (let [channel (.channel key)
         buf (ByteBuffer/allocate 256)]
     (.receive channel buf)
@@ -85,9 +86,14 @@
                       (if error
                         (try-post (rest agent-addresses))
                         (log/debug "join-request" status))))))]
-      (try-post (read-agent-addresses buf)))))
+      ;; Clustered control buses share agents, and each of them invites its own.
+      (when-let [agent-addresses (->> (read-agent-addresses buf)
+                                      (filter #(dispatcher/owns-agent?
+                                                dispatcher (.getHostAddress (:host %)) (:port %)))
+                                      not-empty)]
+        (try-post agent-addresses)))))
 
-(defrecord Discoverer [ws-port]
+(defrecord Discoverer [ws-port dispatcher]
   component/Lifecycle
 
   (start [component]
@@ -108,7 +114,7 @@
                               (doseq [key key-set]
                                 (.remove key-set key)
                                 (when (.isReadable key)
-                                  (do-receive key ws-port)))
+                                  (do-receive key ws-port dispatcher)))
                               (recur (.select selector))))))))
 
   (stop [component]
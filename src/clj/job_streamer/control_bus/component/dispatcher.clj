@@ -1,16 +1,28 @@
 (ns job-streamer.control-bus.component.dispatcher
   (:require [clojure.tools.logging :as log]
             [com.stuartsierra.component :as component]
-            [clojure.core.async :refer [chan put! <! go-loop timeout close!]]
+            [clojure.core.async :refer [chan put! <! >! alts! go-loop timeout close!]]
+            [meta-merge.core :refer [meta-merge]]
+            [liberator.core :as liberator]
+            [clj-time.core :as t]
+            [clj-time.format :as f]
+            (job-streamer.control-bus [partition :as partition]
+                                      [util :refer [parse-body]])
             (job-streamer.control-bus.component [agents :as ag]
                                                 [apps :as apps]
                                                 [datomic :as d]
-                                                [jobs :as jobs])))
+                                                [jobs :as jobs]))
+  (:import [java.util UUID]))
 
-(defn- restart [{:keys [agents datomic jobs]} execution class-loader-id]
+(declare release)
+
+(defn- restart [{:keys [agents datomic jobs] :as dispatcher} execution execution-request]
   (log/info "restart:" execution)
   (ag/restart-execution
-     agents execution class-loader-id
+     agents execution (:class-loader-id execution-request)
+     :on-error (fn [e]
+                 (log/error "failure restart job execution" (:db/id execution) e)
+                 (release dispatcher execution-request))
      :on-success (fn [resp]
                    (d/transact datomic
                                [{:db/id (:db/id execution)
@@ -23,7 +35,15 @@
                     :on-success (fn [new-exec]
                                   (jobs/save-execution jobs (:db/id execution) new-exec))))))
 
-(defn- dispatch [{:keys [dispatcher-ch datomic]} agt execution-request]
+(defn- monitor-sweep-execution
+  "Set the time-keeper of an execution of a sweep, which isn't monitored until it's dispatched."
+  [{:keys [datomic jobs]} execution-id]
+  (let [{:keys [job-execution/sweep job-execution/job-parameters job/_executions]}
+        (d/pull datomic '[:job-execution/sweep :job-execution/job-parameters {:job/_executions [:db/id]}] execution-id)]
+    (when sweep
+      (jobs/monitor-execution jobs (:db/id (first _executions)) execution-id job-parameters))))
+
+(defn- dispatch [{:keys [datomic] :as dispatcher} agt execution-request]
   (log/debug "dispatch job to agent" agt)
   (ag/execute-job
    agt execution-request
@@ -37,62 +57,316 @@
                    [{:db/id (:request-id execution-request)
                      :job-execution/agent [:agent/instance-id (:agent/instance-id agt)]
                      :job-execution/batch-status :batch-status/abandoned}])
-       (put! dispatcher-ch execution-request)))
+       (release dispatcher execution-request)))
 
    :on-success
    (fn [{:keys [execution-id batch-status start-time] :as res}]
      (log/debug "success to dispatch")
      (if execution-id
-       (d/transact datomic
-                   [(merge {:db/id (:request-id execution-request)
-                            :job-execution/execution-id execution-id
-                            :job-execution/agent [:agent/instance-id (:agent/instance-id agt)]
-                            :job-execution/batch-status batch-status}
-                           (when start-time
-                             {:job-execution/start-time start-time}))])
+       (do (d/transact datomic
+                       [(merge {:db/id (:request-id execution-request)
+                                :job-execution/execution-id execution-id
+                                :job-execution/agent [:agent/instance-id (:agent/instance-id agt)]
+                                :job-execution/batch-status batch-status}
+                               (when start-time
+                                 {:job-execution/start-time start-time}))])
+           (monitor-sweep-execution dispatcher (:request-id execution-request)))
        (d/transact datomic
                    [{:db/id (:request-id execution-request)
                      :job-execution/agent [:agent/instance-id (:agent/instance-id agt)]
                      :job-execution/batch-status :batch-status/abandoned}])))))
 
-(defn submit [{:keys [dispatcher-ch datomic]} execution-request]
-  (log/debug "submit execution-request " execution-request)
+(defn- claim
+  "Change the status of the execution to queued by compare-and-set, so that only one control bus dispatches it.
+  It returns false when the execution has been claimed by another."
+  [{:keys [datomic instance-id batch-statuses]} execution-id status]
+  (try
+    (d/transact datomic
+                [[:db.fn/cas execution-id :job-execution/batch-status
+                  (batch-statuses status) (batch-statuses :batch-status/queued)]
+                 {:db/id execution-id
+                  :job-execution/claimed-by instance-id}])
+    true
+    (catch Exception ex
+      (log/debug "Execution" execution-id "is claimed by another control bus." (.getMessage ex))
+      false)))
+
+(defn- release
+  "Give back the claim of the execution to the status which it was claimed from,
+  so that it's submitted again by the next poll."
+  [{:keys [datomic batch-statuses]} {:keys [request-id status]}]
+  (log/debug "release execution-request" request-id)
   (try
-    (put! dispatcher-ch execution-request)
     (d/transact datomic
-                [{:db/id (:request-id execution-request)
-                  :job-execution/batch-status :batch-status/queued}])
+                [[:db.fn/cas request-id :job-execution/batch-status
+                  (batch-statuses :batch-status/queued) (batch-statuses status)]])
+    (catch Exception ex
+      (log/warn "Failed to release execution" request-id (.getMessage ex)))))
+
+;; Partitioning among control buses
+
+(defn- find-members
+  "Find control buses with the time of their heartbeat and instance ids of agents connected to them."
+  [{:keys [datomic]}]
+  (let [agents (->> (d/query datomic
+                             '{:find [?node ?agent]
+                               :where [[?node :control-bus/agents ?agent]]})
+                    (group-by first))]
+    (for [[node instance-id heartbeat] (d/query datomic
+                                                '{:find [?node ?instance-id ?heartbeat]
+                                                  :where [[?node :control-bus/instance-id ?instance-id]
+                                                          [?node :control-bus/heartbeat ?heartbeat]]})]
+      {:node node
+       :instance-id instance-id
+       :heartbeat (.getTime ^java.util.Date heartbeat)
+       :agents (set (map second (get agents node)))})))
+
+(defn- heartbeat
+  "Write the heartbeat of this control bus with its agents, and read members of the partition.
+  Control buses which miss heartbeats for twice of the timeout are removed."
+  [{:keys [datomic agents instance-id members cluster] :as dispatcher}]
+  (let [{:keys [node-timeout]} cluster
+        connected (set (map :agent/instance-id (ag/available-agents agents)))
+        current (some #(when (= (:instance-id %) instance-id) %) (find-members dispatcher))
+        node-id (d/tempid :db.part/user)]
+    (d/transact datomic
+                (concat [{:db/id node-id
+                          :control-bus/instance-id instance-id
+                          :control-bus/heartbeat (java.util.Date.)}]
+                        (for [agent-id connected
+                              :when (not (contains? (:agents current) agent-id))]
+                          [:db/add node-id :control-bus/agents agent-id])
+                        (for [agent-id (:agents current)
+                              :when (not (contains? connected agent-id))]
+                          [:db/retract (:node current) :control-bus/agents agent-id])))
+    (let [now (System/currentTimeMillis)
+          all-members (find-members dispatcher)
+          live (filter #(> (:heartbeat %) (- now node-timeout)) all-members)
+          dead (filter #(< (:heartbeat %) (- now (* 2 node-timeout))) all-members)
+          nodes (set (map :instance-id live))]
+      (when (not-empty dead)
+        (log/info "Remove control buses which have left:" (map (comp str :instance-id) dead))
+        (d/transact datomic (for [{:keys [node]} dead] [:db.fn/retractEntity node])))
+      (when (not= (:nodes @members) nodes)
+        (log/info "Control buses dispatching jobs:" (map str nodes)))
+      (reset! members
+              {:nodes nodes
+               ;; Jobs are shared by control buses which have agents, or by all if none has.
+               :job-nodes (or (not-empty (set (map :instance-id (filter (comp not-empty :agents) live))))
+                              nodes)
+               :agents (into {} (for [{:keys [instance-id agents]} live
+                                      agent-id agents]
+                                  [agent-id instance-id]))}))))
+
+(defn owns-job?
+  "Whether this control bus dispatches executions of the job."
+  [{:keys [instance-id members]} job-id]
+  (partition/owns? (:job-nodes (some-> members deref)) instance-id job-id))
+
+(defn owns-agent?
+  "Whether this control bus invites the agent at the address to join."
+  [{:keys [instance-id members]} host port]
+  (partition/owns? (:nodes (some-> members deref)) instance-id (str host ":" port)))
+
+(defn agent-bus
+  "The instance id of the live control bus which the agent is connected to."
+  [{:keys [members]} agent-instance-id]
+  (get (:agents (some-> members deref)) agent-instance-id))
+
+(defn owns-orphan-agent?
+  "Whether this control bus takes care of executions of the agent which isn't connected to any control bus."
+  [{:keys [instance-id members] :as dispatcher} agent-instance-id]
+  (or (nil? dispatcher)
+      (and (nil? (agent-bus dispatcher agent-instance-id))
+           (partition/owns? (:nodes (some-> members deref)) instance-id agent-instance-id))))
+
+(defn- take-over
+  "Release queued executions which were claimed by control buses that have left,
+  so that the owners of their jobs dispatch them again.
+  Without a cluster, every claim of earlier runs of this control bus is released."
+  [{:keys [datomic members instance-id batch-statuses] :as dispatcher}]
+  (let [nodes (if members (:nodes @members) #{instance-id})
+        orphans (->> (d/query datomic
+                              '{:find [?execution ?job ?claimed-by ?agent]
+                                :where [[?execution :job-execution/batch-status :batch-status/queued]
+                                        [?execution :job-execution/claimed-by ?claimed-by]
+                                        [?job :job/executions ?execution]
+                                        [(get-else $ ?execution :job-execution/agent :none) ?agent]]})
+                     (filter (fn [[_ job-id claimed-by _]]
+                               (and (not (contains? nodes claimed-by))
+                                    (owns-job? dispatcher job-id)))))]
+    (doseq [[execution-id _ claimed-by agent] orphans]
+      (log/info "Take over execution" execution-id "from" (str claimed-by))
+      (try
+        (d/transact datomic
+                    [[:db.fn/cas execution-id :job-execution/batch-status
+                      (batch-statuses :batch-status/queued)
+                      (batch-statuses (if (= agent :none)
+                                        :batch-status/undispatched
+                                        :batch-status/unrestarted))]])
+        (catch Exception ex
+          (log/debug "Execution" execution-id "has been taken over." (.getMessage ex)))))))
+
+(defn- start-heartbeat [{:keys [cluster heartbeat-ch] :as dispatcher}]
+  (go-loop []
+    (let [[_ ch] (alts! [heartbeat-ch (timeout (:heartbeat-interval cluster))])]
+      (when-not (= ch heartbeat-ch)
+        (try
+          (heartbeat dispatcher)
+          (take-over dispatcher)
+          (catch Exception ex
+            (log/error "heartbeat failure" ex)))
+        (recur)))))
+
+(defn- leave [{:keys [datomic instance-id]}]
+  (try
+    (d/transact datomic [[:db.fn/retractEntity [:control-bus/instance-id instance-id]]])
     (catch Exception ex
-      (log/error "dispatch failure" ex))))
+      (log/warn "Failed to leave the partition" (.getMessage ex)))))
+
+(def ^:private sweep-running-statuses
+  (disj jobs/active-statuses :batch-status/undispatched :batch-status/unrestarted))
 
-(defn submitter [{:keys [jobs apps datomic submitter-ch] :as dispatcher}]
+(defn- throttle-sweeps
+  "Keep executions of each sweep within its concurrency, in the order of creation.
+  Executions which aren't of a sweep are kept as they are."
+  [{:keys [datomic]} undispatched]
+  (let [{swept true others false} (group-by #(not= (nth % 4) :none) undispatched)
+        by-sweep (group-by #(nth % 4) swept)
+        running (when (not-empty by-sweep)
+                  (into {} (d/query datomic
+                                    '{:find [?sweep (count ?execution)]
+                                      :in [$ [?sweep ...] [?status ...]]
+                                      :where [[?execution :job-execution/sweep ?sweep]
+                                              [?execution :job-execution/batch-status ?s]
+                                              [?s :db/ident ?status]]}
+                                    (keys by-sweep)
+                                    (seq sweep-running-statuses))))]
+    (concat others
+            (mapcat (fn [[sweep-id executions]]
+                      (let [concurrency (:sweep/concurrency (d/pull datomic '[:sweep/concurrency] sweep-id))]
+                        (->> executions
+                             (sort-by first)
+                             (take (- (or concurrency Long/MAX_VALUE) (get running sweep-id 0))))))
+                    by-sweep))))
+
+(defn submitter
+  "Poll undispatched executions of jobs which this control bus owns, and hand them over to the dispatcher.
+  Executions are claimed only while an agent is available, and handed over by a parking put,
+  so that they aren't held in a queue of the channel."
+  [{:keys [jobs apps agents datomic submitter-ch dispatcher-ch] :as dispatcher}]
   (go-loop []
     (when-let [_ (<! submitter-ch)]
-      (let [undispatched (jobs/find-undispatched jobs)]
+      (let [undispatched (->> (jobs/find-undispatched jobs)
+                              (filter #(owns-job? dispatcher (nth % 3)))
+                              (throttle-sweeps dispatcher))]
         (doseq [[execution-request job-bpmn-xml parameter] undispatched]
           (log/debug "find undispatched job" execution-request)
-          (submit dispatcher
-                  {:request-id execution-request
-                   :class-loader-id (:application/class-loader-id
-                                     (apps/find-by-name apps "default"))
-                   :job (jobs/make-job job-bpmn-xml)
-                   :restart? (= (some-> (d/pull datomic
-                                                '[:job-execution/batch-status]
-                                                execution-request)
-                                        :job-execution/batch-status
-                                        :db/ident)
-                                :batch-status/undispatched)
-                   :parameters parameter}))
+          (let [status (some-> (d/pull datomic
+                                       '[:job-execution/batch-status]
+                                       execution-request)
+                               :job-execution/batch-status
+                               :db/ident)
+                request {:request-id execution-request
+                         :status status
+                         :class-loader-id (:application/class-loader-id
+                                           (apps/find-by-name apps "default"))
+                         :job (jobs/make-job job-bpmn-xml)
+                         :restart? (= status :batch-status/unrestarted)
+                         :parameters parameter}]
+            (when (and (or (:restart? request) (ag/find-agent agents))
+                       (claim dispatcher execution-request status))
+              (log/debug "submit execution-request " request)
+              (when-not (>! dispatcher-ch request)
+                (release dispatcher request)))))
         (<! (timeout 2000))
         (put! submitter-ch :continue)
         (recur)))))
 
+;; Parameter sweeps
+
+(defn- expand-values
+  "Values of a sweep parameter. A map of `:from` and `:to` is a range of dates."
+  [v]
+  (if (map? v)
+    (let [fmt (:date f/formatters)
+          from (f/parse fmt (:from v))
+          to (f/parse fmt (:to v))]
+      (->> (iterate #(t/plus % (t/days 1)) from)
+           (take-while #(not (t/after? % to)))
+           (map #(f/unparse fmt %))))
+    (if (sequential? v) v [v])))
+
+(defn sweep-parameters
+  "Generate parameters from a sweep, which is a map of a parameter name to its values.
+  It returns every combination of the values."
+  [sweep]
+  (reduce (fn [parameter-list [k v]]
+            (for [parameters parameter-list
+                  value (expand-values v)]
+              (assoc parameters k value)))
+          [{}]
+          (sort-by (comp str key) sweep)))
+
+(defn sweep-resource [{:keys [jobs datomic sweep-max-size] :as dispatcher} app-name job-name]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:post]
+   :malformed? #(parse-body %)
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :post (:permission/execute-job permissions)
+                   false)))
+   :exists? (fn [ctx]
+              (when-let [[_ job-id] (jobs/find-by-name jobs app-name job-name)]
+                {:job-id job-id
+                 :job (d/pull datomic '[:job/bpmn-xml-notation :job/exclusive?] job-id)}))
+   :post-to-missing? false
+   :processable? (fn [{{:keys [parameters sweep concurrency]} :edn}]
+                   (when (and (or (nil? parameters)
+                                  (and (sequential? parameters) (every? map? parameters)))
+                              (or (nil? sweep) (map? sweep))
+                              (or (nil? concurrency) (and (integer? concurrency) (pos? concurrency))))
+                     (when-let [parameter-list (try
+                                                 (->> (concat parameters (when sweep (sweep-parameters sweep)))
+                                                      (take (inc sweep-max-size))
+                                                      vec)
+                                                 (catch Exception e
+                                                   (log/warn "Invalid sweep:" sweep (.getMessage e))))]
+                       (when (<= (count parameter-list) sweep-max-size)
+                         {:parameter-list parameter-list}))))
+   :conflict? (fn [{job-id :job-id}]
+                (boolean (some jobs/conflict-statuses (vals (jobs/active-executions jobs job-id)))))
+   :post! (fn [{{:keys [concurrency]} :edn :keys [job-id job parameter-list]}]
+            (let [executions (jobs/create-executions jobs job-name job-id parameter-list
+                                                     (if (:job/exclusive? job) 1 concurrency))]
+              {:execution-ids (mapv first executions)
+               :memoized (- (count parameter-list) (count executions))}))
+   :handle-created (fn [{:keys [execution-ids memoized]}]
+                     {:job-execution/ids execution-ids
+                      :memoized memoized})))
+
+(defn- find-batch-statuses [datomic]
+  (into {} (d/query datomic
+                    '{:find [?ident ?status]
+                      :where [[?status :db/ident ?ident]
+                              [(namespace ?ident) ?ns]
+                              [(= ?ns "batch-status")]]})))
+
 (defrecord Dispatcher [datomic agents]
   component/Lifecycle
   (start [component]
     (let [component (assoc component
                            :submitter-ch  (chan)
-                           :dispatcher-ch (chan))
+                           :dispatcher-ch (chan)
+                           :instance-id (UUID/randomUUID)
+                           :batch-statuses (find-batch-statuses datomic))
+          component (if (:cluster component)
+                      (assoc component
+                             :members (atom nil)
+                             :heartbeat-ch (chan))
+                      component)
           main-loop (go-loop []
                       (when-let [execution-request (<! (:dispatcher-ch component))]
                         (log/info "Dispatch request for " execution-request)
@@ -102,24 +376,24 @@
                                            '[:*
                                              {:job-execution/agent [:*]}]
                                            (:request-id execution-request))
-                                   (:class-loader-id execution-request))
-                          (loop [agt (ag/find-agent agents), log-interval 0]
-                            (if agt
-                              (dispatch component
-                                        agt execution-request)
-                              (do
-                                (if (= (mod log-interval 10) 0)
-                                  (log/info "No available agents for " execution-request))
-                                (<! (timeout 3000))
-                                (put! (:dispatcher-ch component) execution-request)
-                                ;(recur (ag/find-agent agents) (inc log-interval))
-                                ))))
+                                   execution-request)
+                          (if-let [agt (ag/find-agent agents)]
+                            (dispatch component agt execution-request)
+                            (do
+                              (log/info "No available agents for " execution-request)
+                              (release component execution-request))))
                         (recur)))
           submit-loop (submitter component)]
+      (when (:cluster component)
+        (log/info "Join the partition of control buses as" (str (:instance-id component)))
+        (heartbeat component))
+      (take-over component)
       (put! (:submitter-ch component) :start)
       (assoc component
              :main-loop main-loop
-             :submit-loop submit-loop)))
+             :submit-loop submit-loop
+             :heartbeat-loop (when (:cluster component)
+                               (start-heartbeat component)))))
 
   (stop [component]
     (when-let [dispatcher-ch (:dispatcher-ch component)]
@@ -130,7 +404,16 @@
       (close! main-loop))
     (when-let [submit-loop (:submit-loop component)]
       (close! submit-loop))
-    (dissoc component :dispatch-ch :main-loop :submit-loop)))
+    (when-let [heartbeat-ch (:heartbeat-ch component)]
+      (close! heartbeat-ch)
+      (leave component))
+    (dissoc component :dispatch-ch :main-loop :submit-loop
+            :members :heartbeat-ch :heartbeat-loop)))
+
+(def ^:private cluster-defaults
+  {:heartbeat-interval 5000
+   :node-timeout 15000})
 
 (defn dispatcher-component [options]
-  (map->Dispatcher options))
+  (map->Dispatcher (meta-merge {:sweep-max-size 10000}
+                               (update options :cluster #(some->> % (merge cluster-defaults))))))
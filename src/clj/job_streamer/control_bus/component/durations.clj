@@ -0,0 +1,144 @@
+(ns job-streamer.control-bus.component.durations
+  "Predicts durations of jobs.
+  A model of a job has an exponentially weighted moving average and a histogram
+  of completed executions, and is kept per job and per job parameters.
+  Models of parameters are kept up to `max-parameter-models`, and the least recently observed one is evicted."
+  (:require [clojure.tools.logging :as log]
+            [clojure.edn :as edn]
+            [clojure.core.cache :as cache]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            (job-streamer.control-bus [histogram :as histogram]
+                                      [util :refer [canonicalize-parameters]])
+            (job-streamer.control-bus.component [datomic :as d]))
+  (:import [java.util Date]))
+
+(defn update-model
+  "Add a duration to the model."
+  [{:keys [ewma] :as model} alpha duration]
+  (-> model
+      (update-in [:count] (fnil inc 0))
+      (assoc :ewma (if ewma
+                     (+ (* alpha duration) (* (- 1 alpha) ewma))
+                     (double duration)))
+      (update-in [:histogram] histogram/add duration)))
+
+(defn- new-models [max-parameter-models]
+  {:jobs {}
+   :parameters (cache/lru-cache-factory {} :threshold max-parameter-models)})
+
+(defn- parameters-key
+  "The key of the model of parameters, which doesn't depend on the order of their keys."
+  [job-id parameters]
+  [job-id (some-> parameters edn/read-string canonicalize-parameters pr-str)])
+
+(defn- observe [models alpha {:keys [job-id parameters duration]}]
+  (let [k (parameters-key job-id parameters)]
+    (-> models
+        (update-in [:jobs job-id] update-model alpha duration)
+        (update-in [:parameters] #(assoc % k (update-model (get % k) alpha duration))))))
+
+(defn- read-completed
+  "Read durations of completed executions in order of their end time.
+  Memoized executions aren't read because they didn't run."
+  [datomic & [execution-ids]]
+  (->> (apply d/query datomic
+              (cond-> '{:find [?execution ?job ?parameters ?start-time ?end-time]
+                        :in [$]
+                        :where [[?execution :job-execution/batch-status :batch-status/completed]
+                                (not [?execution :job-execution/memoized-from])
+                                [?execution :job-execution/start-time ?start-time]
+                                [?execution :job-execution/end-time ?end-time]
+                                [?execution :job-execution/job-parameters ?parameters]
+                                [?job :job/executions ?execution]]}
+                execution-ids (update-in [:in] conj '[?execution ...]))
+              (if execution-ids [execution-ids] []))
+       (sort-by #(nth % 4))
+       (map (fn [[execution-id job-id parameters ^Date start-time ^Date end-time]]
+              {:db/id execution-id
+               :job-id job-id
+               :parameters parameters
+               :duration (- (.getTime end-time) (.getTime start-time))}))))
+
+(defn- completed-executions [report]
+  (->> (d/attribute-changes report :job-execution/batch-status)
+       (filter (fn [[_ status added?]]
+                 (and added? (= status :batch-status/completed))))
+       (map first)
+       set))
+
+(defn- follow-tx-report [{:keys [datomic state lock alpha]} report]
+  (locking lock
+    (when-let [execution-ids (not-empty (completed-executions report))]
+      (if (:loaded? @state)
+        (swap! state update-in [:models]
+               #(reduce (fn [models execution] (observe models alpha execution))
+                        % (read-completed datomic execution-ids)))
+        (swap! state update-in [:pending] into execution-ids)))))
+
+(defn model
+  "Get the model of the job.
+  When `parameters` is given and the job has run with them enough, the model
+  of the parameters is returned."
+  [{:keys [state min-samples]} job-id & [parameters]]
+  (let [models (:models @state)
+        by-parameters (when parameters
+                        (get-in models [:parameters (parameters-key job-id parameters)]))]
+    (if (>= (:count by-parameters 0) min-samples)
+      by-parameters
+      (get-in models [:jobs job-id]))))
+
+(defn estimate
+  "Estimate the duration of the job in milliseconds.
+  It returns `default-duration` for a job which has never completed."
+  [{:keys [default-duration] :as durations} job-id & [parameters]]
+  (if-let [{:keys [ewma]} (model durations job-id parameters)]
+    (long ewma)
+    default-duration))
+
+(defn percentile
+  "Get the duration of the job at the percentile (0.0-1.0), or nil when unknown."
+  [durations job-id p & [parameters]]
+  (some-> (model durations job-id parameters)
+          :histogram
+          (histogram/percentile p)))
+
+(defrecord Durations [datomic alpha max-parameter-models]
+  component/Lifecycle
+
+  (start [component]
+    (if (:state component)
+      component
+      (let [component (assoc component
+                             :state (atom {:loaded? false :pending #{} :models (new-models max-parameter-models)})
+                             :lock (Object.))
+            {:keys [state lock]} component]
+        (d/listen-tx datomic ::durations #(follow-tx-report component %))
+        (let [executions (read-completed datomic)
+              loaded (set (map :db/id executions))]
+          (locking lock
+            (swap! state
+                   (fn [{:keys [pending models] :as current}]
+                     (let [missed (some->> (remove loaded pending)
+                                           not-empty
+                                           (read-completed datomic))]
+                       (-> current
+                           (assoc :loaded? true
+                                  :models (reduce (fn [models execution]
+                                                    (observe models alpha execution))
+                                                  models (concat executions missed)))
+                           (dissoc :pending)))))))
+        (log/info "Duration models:" (count (get-in @state [:models :jobs])))
+        component)))
+
+  (stop [component]
+    (when (:state component)
+      (d/unlisten-tx datomic ::durations))
+    (dissoc component :state :lock)))
+
+(defn durations-component [options]
+  (map->Durations (meta-merge {:alpha 0.3
+                               :min-samples 3
+                               :max-parameter-models 10000
+                               :default-duration (* 5 60 1000)}
+                              options)))
@@ -0,0 +1,126 @@
+(ns job-streamer.control-bus.component.forecast
+  "Forecasts the load of scheduled executions.
+  Fire times of all jobs in a window are combined with their estimated durations
+  into the number of running executions in each bucket, which is compared
+  with the capacity of agents."
+  (:require [clojure.tools.logging :as log]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            [liberator.core :as liberator]
+            (job-streamer.control-bus [util :refer [to-int]])
+            (job-streamer.control-bus.component [scheduler :as scheduler]
+                                                [durations :as durations]
+                                                [agents :as ag]))
+  (:import [java.util Date]))
+
+(def ^:private day (* 24 60 60 1000))
+
+(defn agent-capacity
+  "The number of executions which ready agents can run at once, an execution per core."
+  [agents]
+  (->> (ag/available-agents agents)
+       (filter #(= (:agent/status %) :ready))
+       (map #(:agent/cpu-core % 1))
+       (reduce + 0)))
+
+(defn concurrency-curve
+  "Count started and running executions in each bucket.
+  `runs` are pairs of a start time and a duration in milliseconds."
+  [^Date since bucket-ms bucket-count runs]
+  (let [origin (.getTime since)
+        ^longs starts (long-array bucket-count)
+        ^longs deltas (long-array (inc bucket-count))]
+    (doseq [[^Date start duration] runs]
+      (let [offset (- (.getTime start) origin)
+            from (quot offset bucket-ms)
+            to (-> (Math/ceil (/ (double (+ offset duration)) bucket-ms))
+                   long
+                   (max (inc from))
+                   (min bucket-count))]
+        (when (< -1 from bucket-count)
+          (aset starts from (inc (aget starts from)))
+          (aset deltas from (inc (aget deltas from)))
+          (aset deltas to (dec (aget deltas to))))))
+    (->> (reductions + (seq deltas))
+         (take bucket-count)
+         (map-indexed (fn [i running]
+                        {:time (Date. (+ origin (* i bucket-ms)))
+                         :starts (aget starts i)
+                         :running running})))))
+
+(defn peaks
+  "Ranges of buckets where running executions exceed the capacity."
+  [curve capacity bucket-ms]
+  (->> curve
+       (partition-by #(> (:running %) capacity))
+       (filter #(> (:running (first %)) capacity))
+       (map (fn [buckets]
+              {:from (:time (first buckets))
+               :until (Date. (+ (.getTime ^Date (:time (last buckets))) bucket-ms))
+               :max-running (apply max (map :running buckets))}))))
+
+(defn forecast
+  "Forecast running executions of all scheduled jobs for `days` from now.
+  The capacity is the cores of ready agents unless it's given."
+  [{:keys [scheduler durations agents]} days bucket-minutes & [capacity]]
+  (let [bucket-ms (* bucket-minutes 60 1000)
+        since (Date. (* (quot (System/currentTimeMillis) bucket-ms) bucket-ms))
+        until (Date. (+ (.getTime since) (* days day)))
+        fires (scheduler/fire-times-between scheduler since until)
+        runs (for [[job-id times] fires
+                   :let [duration (durations/estimate durations job-id)]
+                   start times]
+               [start duration])
+        capacity (or capacity (agent-capacity agents))
+        curve (vec (concurrency-curve since bucket-ms (quot (* days day) bucket-ms) runs))]
+    {:since since
+     :until until
+     :bucket-minutes bucket-minutes
+     :capacity capacity
+     :jobs (count fires)
+     :executions (count runs)
+     :curve (map #(assoc % :over-capacity? (> (:running %) capacity)) curve)
+     :heatmap (->> curve
+                   (partition-all (quot day bucket-ms))
+                   (map (fn [buckets]
+                          {:date (:time (first buckets))
+                           :running (mapv :running buckets)})))
+     :peaks (peaks curve capacity bucket-ms)}))
+
+(defn forecast-resource [{:keys [max-days] :as forecaster}]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:get]
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :get (:permission/read-job permissions)
+                   false)))
+   :malformed? (fn [{{{:keys [days bucket capacity]} :params} :request}]
+                 (try
+                   (let [days (to-int days 7)
+                         bucket (to-int bucket 5)
+                         capacity (some-> capacity (to-int nil))]
+                     (if (and (<= 1 days max-days)
+                              (<= 1 bucket 60)
+                              ;; Rows of the heatmap are days of whole buckets.
+                              (zero? (mod day (* bucket 60 1000)))
+                              (or (nil? capacity) (<= 0 capacity)))
+                       [false {:days days :bucket bucket :capacity capacity}]
+                       true))
+                   (catch NumberFormatException _ true)))
+   :handle-ok (fn [{:keys [days bucket capacity]}]
+                (forecast forecaster days bucket capacity))))
+
+(defrecord Forecast [scheduler durations agents]
+  component/Lifecycle
+
+  (start [component]
+    component)
+
+  (stop [component]
+    component))
+
+(defn forecast-component [options]
+  (map->Forecast (meta-merge {:max-days 31}
+                             options)))
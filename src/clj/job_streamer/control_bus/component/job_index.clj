@@ -0,0 +1,291 @@
+(ns job-streamer.control-bus.component.job-index
+  "An in-memory index for searching jobs.
+  Job names are indexed by trigrams, and the latest execution of each job is kept
+  so that conditions on executions don't need to scan the execution history.
+  The index follows transactions, and a search falls back to the database query
+  when the index hasn't caught up with the database."
+  (:require [clojure.tools.logging :as log]
+            [clojure.set :as set]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            (job-streamer.control-bus.component [datomic :as d])))
+
+(def gram-size 3)
+
+(def ^:private execution-pattern
+  '[:db/id
+    :job-execution/create-time
+    :job-execution/start-time
+    :job-execution/end-time
+    :job-execution/exit-status
+    {:job-execution/batch-status [:db/ident]}])
+
+(def ^:private execution-attributes
+  [:job-execution/create-time
+   :job-execution/start-time
+   :job-execution/end-time
+   :job-execution/exit-status
+   :job-execution/batch-status])
+
+(defn- grams [^String s]
+  (when (>= (count s) gram-size)
+    (set (for [i (range (inc (- (count s) gram-size)))]
+           (.substring s i (+ i gram-size))))))
+
+(defn- add-job [index job-id {:keys [name app latest] :as job}]
+  (-> index
+      (assoc-in [:jobs job-id] job)
+      (update-in [:app-jobs app] (fnil conj #{}) job-id)
+      (update-in [:grams] #(reduce (fn [grams gram]
+                                     (update-in grams [gram] (fnil conj #{}) job-id))
+                                   % (grams name)))
+      (cond-> latest (assoc-in [:latest-of (:db/id latest)] job-id))))
+
+(defn- remove-job [index job-id]
+  (if-let [{:keys [name app latest]} (get-in index [:jobs job-id])]
+    (-> index
+        (update-in [:jobs] dissoc job-id)
+        (update-in [:app-jobs app] disj job-id)
+        (update-in [:grams] #(reduce (fn [grams gram]
+                                       (let [job-ids (disj (get grams gram) job-id)]
+                                         (if (empty? job-ids)
+                                           (dissoc grams gram)
+                                           (assoc grams gram job-ids))))
+                                     % (grams name)))
+        (update-in [:latest-of] dissoc (:db/id latest)))
+    index))
+
+(defn- query-latest-execution [datomic job-id]
+  (some->> (d/query datomic
+                    '{:find [(max ?execution) .]
+                      :in [$ ?job]
+                      :where [[?job :job/executions ?execution]]}
+                    job-id)
+           (d/pull datomic execution-pattern)))
+
+(defn- read-job
+  "Read the name and the application of the job from the database.
+  It returns nil when the job has been retracted."
+  [datomic job-id]
+  (when-let [[name app] (d/query datomic
+                                 '{:find [[?name ?app-name]]
+                                   :in [$ ?job]
+                                   :where [[?job :job/name ?name]
+                                           [?app :application/jobs ?job]
+                                           [?app :application/name ?app-name]]}
+                                 job-id)]
+    {:name name
+     :app app}))
+
+(defn- refresh-job
+  "Read the job again. The latest execution of an indexed job is kept unless `reload-latest?`,
+  because it follows transactions by `follow-executions`."
+  [datomic reload-latest? index job-id]
+  (let [indexed (get-in index [:jobs job-id])
+        index (remove-job index job-id)]
+    (if-let [job (read-job datomic job-id)]
+      (add-job index job-id (assoc job :latest (if (and indexed (not reload-latest?))
+                                                 (:latest indexed)
+                                                 (query-latest-execution datomic job-id))))
+      index)))
+
+(defn- set-latest [index job-id latest]
+  (if (get-in index [:jobs job-id])
+    (-> index
+        (update-in [:latest-of] dissoc (get-in index [:jobs job-id :latest :db/id]))
+        (assoc-in [:jobs job-id :latest] latest)
+        (cond-> latest (assoc-in [:latest-of (:db/id latest)] job-id)))
+    index))
+
+(defn- follow-executions
+  "Update latest executions of jobs by the transaction.
+  An added execution is the latest when its id is greater than the one of the latest,
+  and the latest is read again when its attributes change.
+  The history of the job is queried only when its latest execution is removed."
+  [datomic index report]
+  (let [[index pulled] (reduce (fn [[index pulled] [job-id execution-id added?]]
+                                 (let [latest-id (get-in index [:jobs job-id :latest :db/id])]
+                                   (cond
+                                     (and added? (or (nil? latest-id) (> execution-id latest-id)))
+                                     [(set-latest index job-id (d/pull datomic execution-pattern execution-id))
+                                      (conj pulled execution-id)]
+
+                                     (and (not added?) (= execution-id latest-id))
+                                     [(set-latest index job-id (query-latest-execution datomic job-id))
+                                      pulled]
+
+                                     :else [index pulled])))
+                               [index #{}]
+                               (d/attribute-changes report :job/executions))
+        latest-of (:latest-of index {})]
+    (->> execution-attributes
+         (mapcat #(d/attribute-changes report %))
+         (map first)
+         (remove pulled)
+         distinct
+         (keep (fn [execution-id]
+                 (when-let [job-id (latest-of execution-id)]
+                   [job-id execution-id])))
+         (reduce (fn [index [job-id execution-id]]
+                   (set-latest index job-id (d/pull datomic execution-pattern execution-id)))
+                 index))))
+
+(defn- load-index [datomic]
+  (let [latest (->> (d/query datomic
+                             '{:find [?job (max ?execution)]
+                               :where [[?job :job/executions ?execution]]})
+                    (into {}))]
+    (->> (d/query datomic
+                  '{:find [?job ?name ?app-name]
+                    :where [[?app :application/name ?app-name]
+                            [?app :application/jobs ?job]
+                            [?job :job/name ?name]]})
+         (reduce (fn [index [job-id name app]]
+                   (add-job index job-id
+                            {:name name
+                             :app app
+                             :latest (some->> (latest job-id) (d/pull datomic execution-pattern))}))
+                 {}))))
+
+(defn- touched-jobs
+  "Find jobs whose name or application may be changed by the transaction."
+  [datomic report]
+  (set/union
+   (->> (d/attribute-changes report :job/name) (map first) set)
+   (->> (d/attribute-changes report :application/jobs) (map second) set)
+   (->> (d/attribute-changes report :application/name)
+        (mapcat (fn [[app-id]]
+                  (d/query datomic
+                           '{:find [[?job ...]]
+                             :in [$ ?app]
+                             :where [[?app :application/jobs ?job]]}
+                           app-id)))
+        set)))
+
+(defn- execution-jobs
+  "Find jobs whose executions may be changed by the transaction, while the index isn't loaded."
+  [datomic report]
+  (set/union
+   (->> (d/attribute-changes report :job/executions) (map first) set)
+   (->> execution-attributes
+        (mapcat #(d/attribute-changes report %))
+        (keep (fn [[execution-id]]
+                (d/query datomic
+                         '{:find [?job .]
+                           :in [$ ?execution]
+                           :where [[?job :job/executions ?execution]]}
+                         execution-id)))
+        set)))
+
+(defn- follow-tx-report
+  "Refresh jobs touched by the transaction, and follow their latest executions.
+  Until the index is loaded, touched jobs are kept and refreshed after loading."
+  [{:keys [datomic state lock]} report]
+  (locking lock
+    (try
+      (if (:loaded? @state)
+        (let [job-ids (touched-jobs datomic report)]
+          (swap! state update-in [:index]
+                 #(follow-executions datomic
+                                     (reduce (partial refresh-job datomic false) % job-ids)
+                                     report)))
+        (swap! state update-in [:dirty] into (set/union (touched-jobs datomic report)
+                                                        (execution-jobs datomic report))))
+      (finally
+        (swap! state update-in [:t] max (d/report-basis-t report))
+        (.notifyAll ^Object lock)))))
+
+(defn- await-index
+  "Wait until the index follows the latest transaction.
+  It returns the index, or nil when timed out."
+  [{:keys [datomic state lock catch-up-timeout]}]
+  (let [t (d/basis-t datomic)
+        deadline (+ (System/currentTimeMillis) catch-up-timeout)]
+    (locking lock
+      (loop []
+        (let [{:keys [loaded? index] :as current} @state
+              remaining (- deadline (System/currentTimeMillis))]
+          (cond
+            (and loaded? (>= (:t current) t)) index
+            (pos? remaining) (do (.wait ^Object lock remaining)
+                                 (recur))
+            :else nil))))))
+
+(defn latest-execution
+  "The latest execution of the job in the index.
+  It returns nil when the index isn't available or the job has no execution."
+  [job-index job-id]
+  (some-> (await-index job-index) (get-in [:jobs job-id :latest])))
+
+(defn- match-name [{:keys [jobs] :as index} candidates ^String term]
+  (if-let [gs (not-empty (grams term))]
+    (->> gs
+         (map #(get-in index [:grams %] #{}))
+         (sort-by count)
+         (apply set/intersection)
+         (filter #(some-> (get-in jobs [% :name]) (.contains term))))
+    (filter #(some-> (get-in jobs [% :name]) (.contains term)) candidates)))
+
+(defn- match-execution [{:keys [since until exit-status batch-status]} execution]
+  (let [{:keys [job-execution/create-time]} execution
+        ^java.util.Date start-time (:job-execution/start-time execution)
+        ^java.util.Date end-time (:job-execution/end-time execution)
+        ^String actual-exit-status (:job-execution/exit-status execution)]
+    (and create-time start-time end-time actual-exit-status
+         (or (nil? since) (not (.before start-time since)))
+         (or (nil? until) (.before end-time until))
+         (or (nil? exit-status) (.contains actual-exit-status ^String exit-status))
+         (or (nil? batch-status)
+             (= batch-status (get-in execution [:job-execution/batch-status :db/ident]))))))
+
+(defn search
+  "Find ids of jobs in the application by a parsed query.
+  It returns nil when the index isn't available."
+  [job-index app-name {:keys [job-name since until exit-status batch-status] :as qmap}]
+  (when-let [index (await-index job-index)]
+    (let [candidates (get-in index [:app-jobs app-name] #{})]
+      (cond->> candidates
+        (not-empty job-name)
+        ((fn [candidates]
+           (->> job-name
+                (mapcat #(match-name index candidates %))
+                (filter candidates)
+                set)))
+
+        (or since until exit-status batch-status)
+        (filter #(match-execution qmap (get-in index [:jobs % :latest])))
+
+        true
+        vec))))
+
+(defrecord JobIndex [datomic]
+  component/Lifecycle
+
+  (start [component]
+    (if (:state component)
+      component
+      (let [component (assoc component
+                             :state (atom {:loaded? false :dirty #{} :t -1})
+                             :lock (Object.))
+            {:keys [state lock]} component]
+        (d/listen-tx datomic ::job-index #(follow-tx-report component %))
+        (let [t (d/basis-t datomic)
+              index (load-index datomic)]
+          (locking lock
+            (swap! state #(-> %
+                              (assoc :loaded? true
+                                     :index (reduce (partial refresh-job datomic true) index (:dirty %)))
+                              (update-in [:t] max t)
+                              (dissoc :dirty)))
+            (.notifyAll ^Object lock))
+          (log/info "Indexed jobs:" (count (get-in @state [:index :jobs]))))
+        component)))
+
+  (stop [component]
+    (when (:state component)
+      (d/unlisten-tx datomic ::job-index))
+    (dissoc component :state :lock)))
+
+(defn job-index-component [options]
+  (map->JobIndex (meta-merge {:catch-up-timeout 1000}
+                             options)))
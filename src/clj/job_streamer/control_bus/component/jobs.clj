@@ -9,20 +9,31 @@
             [bouncer.validators :as v]
             [liberator.core :as liberator]
             [clojure.string :as str]
+            [clojure.walk :as walk]
             [clj-time.format :as f]
+            [meta-merge.core :refer [meta-merge]]
+            [clojure.core.cache :as cache]
+            [clojure.core.async :refer [thread <!!]]
             [liberator.representation :refer [ring-response]]
             [ring.util.response :refer [response content-type header]]
-            (job-streamer.control-bus [notification :as notification]
-                                      [validation :refer [validate]]
-                                      [util :refer [parse-body edn->datoms to-int]])
+            (job-streamer.control-bus [validation :refer [validate]]
+                                      [util :refer [parse-body edn->datoms to-int streaming-body download-format
+                                                     canonicalize-parameters]])
             (job-streamer.control-bus.component [datomic :as d]
                                                 [agents  :as ag]
                                                 [scheduler :as scheduler]
+                                                [tasks :as tasks]
+                                                [job-index :as job-index]
+                                                [durations :as durations]
+                                                [notifier :as notifier]
                                                 [apps :as apps]))
   (:import [java.util Date]
+           [java.util.concurrent Semaphore TimeUnit]
            [org.jsoup Jsoup]
            [org.jsoup.nodes Element Node]
            [org.jsoup.parser Tag Parser]
+           [org.quartz CronExpression]
+           [net.unit8.job_streamer.control_bus ExecutionService]
            [net.unit8.job_streamer.control_bus.bpmn BpmnParser]))
 
 (defn find-latest-execution
@@ -53,16 +64,178 @@
                   flatten
                   (apply hash-set))))))
 
-(defn find-undispatched [{:keys [datomic]}]
-  (d/query
-   datomic
-   '{:find [?job-execution ?job-obj ?param-map]
-     :where [[?job :job/executions ?job-execution]
-             [?job-execution :job-execution/job-parameters ?parameter]
-             [?job :job/bpmn-xml-notation ?job-obj]
-             (or [?job-execution :job-execution/batch-status :batch-status/undispatched]
-                 [?job-execution :job-execution/batch-status :batch-status/unrestarted])
-             [(clojure.edn/read-string ?parameter) ?param-map]]}))
+;; Registry of active executions
+
+(def active-statuses
+  #{:batch-status/undispatched
+    :batch-status/unrestarted
+    :batch-status/queued
+    :batch-status/starting
+    :batch-status/started
+    :batch-status/stopping
+    :batch-status/unknown})
+
+(def conflict-statuses
+  #{:batch-status/undispatched
+    :batch-status/queued
+    :batch-status/starting
+    :batch-status/started
+    :batch-status/stopping})
+
+(defn- register-execution [registry job-id execution-id status]
+  (if (active-statuses status)
+    (-> registry
+        (assoc-in [:by-execution execution-id] {:job-id job-id :batch-status status})
+        (update-in [:by-job job-id] (fnil conj #{}) execution-id))
+    (if-let [job-id (or job-id (get-in registry [:by-execution execution-id :job-id]))]
+      (-> registry
+          (update-in [:by-execution] dissoc execution-id)
+          (update-in [:by-job job-id] disj execution-id))
+      registry)))
+
+(defn- evict-step-executions
+  "Forget step executions of the job execution."
+  [{:keys [step-execution-index]} execution-id]
+  (swap! step-execution-index
+         (fn [index]
+           (-> index
+               (update-in [:by-step] #(apply dissoc % (get-in index [:by-execution execution-id])))
+               (update-in [:by-execution] dissoc execution-id)))))
+
+(defn- track-execution!
+  "Record a batch status transition of the execution.
+  `job-id` can be nil when the execution has been already tracked.
+  Only the transaction listener calls it, so that transitions are recorded in the order of transactions."
+  [{:keys [execution-registry scheduler] :as jobs} job-id execution-id status]
+  (swap! execution-registry
+         (fn [registry]
+           (register-execution registry
+                               (or job-id (get-in registry [:by-execution execution-id :job-id]))
+                               execution-id status)))
+  (when-not (active-statuses status)
+    (evict-step-executions jobs execution-id)
+    (scheduler/cancel-time-keeper scheduler execution-id)))
+
+(defn active-executions
+  "Active executions of the job as a map of execution id to batch status."
+  [{:keys [execution-registry]} job-id]
+  (let [{:keys [by-job by-execution]} @execution-registry]
+    (->> (get by-job job-id)
+         (map (fn [id] [id (get-in by-execution [id :batch-status])]))
+         (into {}))))
+
+(defn executions-in-status
+  "Ids of active executions which are in the given statuses."
+  [{:keys [execution-registry]} statuses]
+  (->> (:by-execution @execution-registry)
+       (filter #(statuses (:batch-status (val %))))
+       (map key)))
+
+(defn- load-active-executions [datomic]
+  (->> (d/query datomic
+                '{:find [?job ?execution ?status]
+                  :in [$ [?status ...]]
+                  :where [[?s :db/ident ?status]
+                          [?execution :job-execution/batch-status ?s]
+                          [?job :job/executions ?execution]]}
+                active-statuses)
+       (reduce (fn [registry [job-id execution-id status]]
+                 (register-execution registry job-id execution-id status))
+               {})))
+
+(defn- await-registry
+  "Wait until the registry is loaded and follows the transaction, because only the transaction listener writes it.
+  It gives up after `catch-up-timeout` milliseconds."
+  [{:keys [execution-registry registry-lock catch-up-timeout]} tx-result]
+  (let [t (d/report-basis-t tx-result)
+        deadline (+ (System/currentTimeMillis) catch-up-timeout)]
+    (locking registry-lock
+      (loop []
+        (let [{:keys [loaded?] :as registry} @execution-registry
+              remaining (- deadline (System/currentTimeMillis))]
+          (when-not (and loaded? (>= (:t registry) t))
+            (if (pos? remaining)
+              (do (.wait ^Object registry-lock remaining)
+                  (recur))
+              (log/warn "The registry of executions hasn't followed the transaction" t))))))))
+
+(defn- apply-tx-report
+  "Record batch status transitions in a transaction, and advance the registry to it."
+  [{:keys [datomic execution-registry] :as jobs} report]
+  (try
+    (let [changes (d/attribute-changes report :job-execution/batch-status)
+          asserted (->> changes (filter #(nth % 2)) (map first) set)
+          new-executions (->> (d/attribute-changes report :job/executions)
+                              (filter #(nth % 2))
+                              (map (fn [[job-id execution-id]] [execution-id job-id]))
+                              (into {}))]
+      (doseq [[execution-id status added?] changes]
+        (cond
+          added?
+          (let [job-id (or (new-executions execution-id)
+                           (get-in @execution-registry [:by-execution execution-id :job-id])
+                           (when (active-statuses status)
+                             (d/query datomic
+                                      '{:find [?job .]
+                                        :in [$ ?execution]
+                                        :where [[?job :job/executions ?execution]]}
+                                      execution-id)))]
+            (track-execution! jobs job-id execution-id status))
+
+          ;; The execution has been retracted.
+          (not (asserted execution-id))
+          (track-execution! jobs nil execution-id nil))))
+    (finally
+      (swap! execution-registry update-in [:t] max (d/report-basis-t report)))))
+
+(defn- track-tx-report
+  "Follow batch status transitions in a transaction.
+  Until the registry is loaded, reports are kept and applied after loading.
+  A transaction which the loaded registry already contains is skipped."
+  [{:keys [execution-registry registry-lock] :as jobs} report]
+  (locking registry-lock
+    (let [{:keys [loaded? t]} @execution-registry]
+      (cond
+        (not loaded?)
+        (swap! execution-registry update-in [:pending] (fnil conj []) report)
+
+        (> (d/report-basis-t report) t)
+        (do (apply-tx-report jobs report)
+            (.notifyAll ^Object registry-lock))))))
+
+(defn- load-registry
+  "Load active executions into the registry, which the transaction listener follows already,
+  and apply transactions reported while loading."
+  [{:keys [datomic execution-registry registry-lock] :as jobs}]
+  (let [t (d/basis-t datomic)
+        registry (load-active-executions datomic)]
+    (locking registry-lock
+      (let [pending (:pending @execution-registry)]
+        (reset! execution-registry (assoc registry :t t :loaded? true))
+        (doseq [report pending
+                :when (> (d/report-basis-t report) t)]
+          (apply-tx-report jobs report)))
+      (.notifyAll ^Object registry-lock))
+    (log/info "Active executions:" (count (:by-execution @execution-registry)))))
+
+(defn find-undispatched
+  "Find executions to dispatch with their jobs and sweeps (`:none` if it isn't of a sweep).
+  The longest job is the first, so that it doesn't delay the end of executions which start together."
+  [{:keys [datomic durations]}]
+  (->> (d/query
+        datomic
+        '{:find [?job-execution ?job-obj ?param-map ?job ?parameter ?sweep]
+          :where [[?job :job/executions ?job-execution]
+                  [?job-execution :job-execution/job-parameters ?parameter]
+                  [?job :job/bpmn-xml-notation ?job-obj]
+                  (or [?job-execution :job-execution/batch-status :batch-status/undispatched]
+                      [?job-execution :job-execution/batch-status :batch-status/unrestarted])
+                  [(get-else $ ?job-execution :job-execution/sweep :none) ?sweep]
+                  [(clojure.edn/read-string ?parameter) ?param-map]]})
+       (sort-by (fn [[_ _ _ job-id parameter]]
+                  (- (durations/estimate durations job-id parameter))))
+       (map (fn [[execution-id job-obj param-map job-id _ sweep]]
+              [execution-id job-obj param-map job-id sweep]))))
 
 (defn find-by-name [{:keys [datomic]} app-name job-name]
   (d/query
@@ -191,9 +364,10 @@
                                  (fn [v1 v2] (decide-sort-order direction v1 v2)))))
         sorted-result))))
 
-(defn find-all [{:keys [datomic]} app-name query]
-  (let [qmap (parse-query query)
-        search-by-executions? (or (:since qmap) (:until qmap) (:exit-status qmap) (:batch-status qmap))
+(defn- query-job-ids
+  "Find ids of jobs by the database query. It is used when the job index isn't available."
+  [datomic app-name qmap]
+  (let [search-by-executions? (or (:since qmap) (:until qmap) (:exit-status qmap) (:batch-status qmap))
         base-query '{:find [?job]
                      :in [$ ?app-name [?job-name-condition ...] ?since-condition ?until-condition ?exit-status-condition ?batch-status-condition]
                      :where [[?app :application/name ?app-name]
@@ -246,26 +420,44 @@
                                                                [?job :job/executions ?job-executions]]})
                                             (map second) set)]
                                    (filter #(latest-executions (second %)) jobs)))))]
-    (->> jobs
-         (map #(->> (first %)
-                    (d/pull datomic
-                            '[:*
-                              {(limit :job/executions 99999)
-                               [:db/id
-                                :job-execution/create-time
-                                :job-execution/start-time
-                                :job-execution/end-time
-                                :job-execution/exit-status
-                                {:job-execution/batch-status [:db/ident]}]}
-                              {:job/schedule
-                               [:db/id :schedule/cron-notation :schedule/active?]}])))
-         (map (fn [job]
-                (update-in job [:job/executions]
-                           (fn [executions]
-                             (->> executions
-                                  (sort-by :job-execution/create-time #(compare %2 %1))
-                                  (take 100))))))
-         vec)))
+    (map first jobs)))
+
+(defn- find-job-ids [{:keys [datomic job-index]} app-name query]
+  (let [qmap (parse-query query)]
+    (or (some-> job-index (job-index/search app-name qmap))
+        (query-job-ids datomic app-name qmap))))
+
+(defn- pull-job [datomic job-id]
+  (-> (d/pull datomic
+              '[:*
+                {(limit :job/executions 99999)
+                 [:db/id
+                  :job-execution/create-time
+                  :job-execution/start-time
+                  :job-execution/end-time
+                  :job-execution/exit-status
+                  {:job-execution/batch-status [:db/ident]}]}
+                {:job/schedule
+                 [:db/id :schedule/cron-notation :schedule/active?]}]
+              job-id)
+      (update-in [:job/executions]
+                 (fn [executions]
+                   (->> executions
+                        (sort-by :job-execution/create-time #(compare %2 %1))
+                        (take 100))))))
+
+(defn find-all [{:keys [datomic] :as jobs} app-name query]
+  (->> (find-job-ids jobs app-name query)
+       (map #(pull-job datomic %))
+       vec))
+
+(defn find-all-lazily
+  "Same as `find-all`, but jobs are pulled one by one when the sequence is realized.
+  Jobs are ordered by their entity ids, so the order is stable between requests."
+  [{:keys [datomic] :as jobs} app-name query]
+  (->> (find-job-ids jobs app-name query)
+       sort
+       (map #(pull-job datomic %))))
 
 (defn find-executions [{:keys [datomic]} app-name job-name & [offset limit]]
   (let [executions (d/query datomic
@@ -321,56 +513,225 @@
                                             (get-in je [:job-execution/agent :agent/instance-id] ""))
                                    (sort-by :execution-log/date compare)))) %))))
 
-(defn find-step-execution [{:keys [datomic]} instance-id step-execution-id]
+(defn retract-execution-tx
+  "Make a transaction that retracts the given execution
+  with its step executions and their logs."
+  [execution]
+  (let [step-executions (:job-execution/step-executions execution)]
+    (concat
+     (for [step-execution step-executions
+           log (:step-execution/logs step-execution)]
+       [:db.fn/retractEntity (:db/id log)])
+     (for [step-execution step-executions]
+       [:db.fn/retractEntity (:db/id step-execution)])
+     [[:db.fn/retractEntity (:db/id execution)]])))
+
+(defn retraction-batches
+  "Split executions into batches of which `retract-execution-tx` retracts at most `max-entities` entities.
+  An execution which has more entities than that is retracted in a batch by itself."
+  [max-entities executions]
+  (lazy-seq
+   (when (seq executions)
+     (loop [batch [] size 0 [execution & more :as remaining] executions]
+       (let [n (when execution (count (retract-execution-tx execution)))]
+         (if (and execution (or (empty? batch) (<= (+ size n) max-entities)))
+           (recur (conj batch execution) (+ size n) more)
+           (cons batch (retraction-batches max-entities remaining))))))))
+
+(defn- retraction-trees
+  "Entity ids of executions with their step executions and logs, in the shape which `retract-execution-tx` takes."
+  [datomic execution-ids]
+  (let [step-executions (->> (d/query datomic
+                                      '{:find [?execution ?step-execution]
+                                        :in [$ [?execution ...]]
+                                        :where [[?execution :job-execution/step-executions ?step-execution]]}
+                                      execution-ids)
+                             (group-by first))
+        logs (->> (d/query datomic
+                           '{:find [?step-execution ?log]
+                             :in [$ [?execution ...]]
+                             :where [[?execution :job-execution/agent ?agent]
+                                     [?execution :job-execution/step-executions ?step-execution]
+                                     [?step-execution :step-execution/step-execution-id ?step-execution-id]
+                                     [?log :execution-log/step-execution-id ?step-execution-id]
+                                     [?log :execution-log/agent ?agent]]}
+                           execution-ids)
+                  (group-by first))]
+    (for [execution-id execution-ids]
+      {:db/id execution-id
+       :job-execution/step-executions
+       (for [[_ step-execution] (step-executions execution-id)]
+         {:db/id step-execution
+          :step-execution/logs (for [[_ log] (logs step-execution)] {:db/id log})})})))
+
+(defn delete-executions
+  "Retract executions with their step executions and logs
+  in transactions of at most `delete-batch-size` entities.
+  Sleeps between transactions not to occupy the transactor."
+  [{:keys [datomic tasks delete-batch-size delete-throttle]} task-id execution-ids]
+  (doseq [chunk (partition-all delete-batch-size execution-ids)]
+    (doseq [batch (retraction-batches delete-batch-size (retraction-trees datomic chunk))]
+      (d/transact datomic (mapcat retract-execution-tx batch))
+      (Thread/sleep delete-throttle))
+    (tasks/progress! tasks task-id (count chunk))))
+
+(defn register-step-execution!
+  "Record the entity id of a step execution started by the agent,
+  until the job execution ends."
+  [{:keys [step-execution-index execution-registry]} instance-id execution-id step-execution-id id]
+  (when (get-in @execution-registry [:by-execution execution-id])
+    (swap! step-execution-index
+           #(-> %
+                (assoc-in [:by-step [instance-id step-execution-id]] id)
+                (update-in [:by-execution execution-id] (fnil conj #{}) [instance-id step-execution-id])))))
+
+(defn find-step-execution
+  "Find the entity id of a step execution.
+  Step executions of running job executions are found in the index without a query."
+  [{:keys [datomic step-execution-index]} instance-id step-execution-id]
+  (or (get-in @step-execution-index [:by-step [instance-id step-execution-id]])
+      (d/query datomic
+               '{:find [?step-execution .]
+                 :in [$ ?instance-id ?step-execution-id]
+                 :where [[?job-execution :job-execution/agent ?agent]
+                         [?agent :agent/instance-id ?instance-id]
+                         [?job-execution :job-execution/step-executions ?step-execution]
+                         [?step-execution :step-execution/step-execution-id ?step-execution-id]]}
+               instance-id step-execution-id)))
+
+(defn- has-step-executions? [{:keys [datomic step-execution-index]} execution-id]
+  (or (not-empty (get-in @step-execution-index [:by-execution execution-id]))
+      (some? (d/query datomic
+                      '{:find [?step-execution .]
+                        :in [$ ?job-execution]
+                        :where [[?job-execution :job-execution/step-executions ?step-execution]]}
+                      execution-id))))
+
+
+(defn- notification-rules
+  "Status notifications of the job.
+  They are cached until the transaction listener sees a change of them."
+  [{:keys [datomic notification-rules]} job-id]
+  (or (get @notification-rules job-id)
+      (let [rules (d/pull datomic
+                          '[:job/name
+                            {:job/status-notifications
+                             [{:status-notification/batch-status [:db/ident]}
+                              :status-notification/exit-status
+                              :status-notification/type]}]
+                          job-id)]
+        (swap! notification-rules assoc job-id rules)
+        rules)))
+
+(defn- invalidate-notification-rules
+  "Forget cached rules of jobs which are changed in a transaction."
+  [{:keys [notification-rules]} report]
+  (let [job-ids (->> (concat (d/attribute-changes report :job/status-notifications)
+                             (d/attribute-changes report :job/name))
+                     (map first))]
+    (if (some not-empty (map #(d/attribute-changes report %)
+                             [:status-notification/batch-status
+                              :status-notification/exit-status
+                              :status-notification/type]))
+      (reset! notification-rules {})
+      (when (not-empty job-ids)
+        (swap! notification-rules #(apply dissoc % job-ids))))))
+
+(defn- test-execution-promise
+  "Get the promise of the state id for the execution id of a test execution.
+  It is delivered when the agent reports the execution id."
+  [{:keys [test-execution-index]} execution-id]
+  (-> (swap! test-execution-index
+             #(if (cache/has? % execution-id)
+                %
+                (assoc % execution-id (promise))))
+      (cache/lookup execution-id)))
+
+(defn- upstream-ids [datomic job-id]
   (d/query datomic
-           '{:find [?step-execution .]
-             :in [$ ?instance-id ?step-execution-id]
-             :where [[?job-execution :job-execution/agent ?agent]
-                     [?agent :agent/instance-id ?instance-id]
-                     [?job-execution :job-execution/step-executions ?step-execution]
-                     [?step-execution :step-execution/step-execution-id ?step-execution-id]]}
-           instance-id step-execution-id))
-
-
-(defn save-execution [{:keys [datomic] :as jobs} id execution]
+           '{:find [[?upstream ...]]
+             :in [$ ?job]
+             :where [[?job :job/upstreams ?upstream]]}
+           job-id))
+
+(defn- upstream-cycle?
+  "Whether the upstreams make the job depend on itself."
+  [datomic job-id upstreams]
+  (loop [visited #{} [id & more] (seq upstreams)]
+    (cond
+      (nil? id) false
+      (= id job-id) true
+      (visited id) (recur visited more)
+      :else (recur (conj visited id) (concat more (upstream-ids datomic id))))))
+
+(declare trigger-downstreams trigger-downstream)
+
+(defn- execution-job-id [{:keys [datomic execution-registry]} id]
+  (or (get-in @execution-registry [:by-execution id :job-id])
+      (d/query datomic
+               '{:find [?job .]
+                 :in [$ ?id]
+                 :where [[?job :job/executions ?id]]} id)))
+
+(defn- notify-status [{:keys [notifier] :as jobs} job-id execution]
+  (let [job (some->> job-id (notification-rules jobs))]
+    (->> (:job/status-notifications job)
+         (filter #(or (= (get-in % [:status-notification/batch-status :db/ident])
+                         (:batch-status execution))
+                      (and (:exit-status execution) (= (:status-notification/exit-status %) (:exit-status execution)))))
+         (map #(notifier/notify notifier
+                                (:status-notification/type %)
+                                (assoc execution :job-name (:job/name job))))
+         doall)))
+
+(defn- execution-tx-data [jobs id execution]
+  (merge {:db/id id
+          :job-execution/batch-status (:batch-status execution)}
+         (when-let [exit-status (:exit-status execution)]
+           {:job-execution/exit-status exit-status})
+         (when-let [start-time (:start-time execution)]
+           {:job-execution/start-time start-time})
+         (when-let [end-time (:end-time execution)]
+           {:job-execution/end-time end-time})
+         (when (and (not-empty (:step-executions execution))
+                    (not (has-step-executions? jobs id)))
+           {:job-execution/step-executions (map (fn [m]
+                                                  (->> m
+                                                       (map #(vector (keyword "step-execution" (name (key %))) (val %)))
+                                                       (into {:db/id (d/tempid :db.part/user)})))
+                                                (:step-executions execution))})))
+
+(defn save-executions
+  "Save states reported by agents in a transaction.
+  `states` is a sequence of pairs of an execution id and its state."
+  [{:keys [datomic] :as jobs} states]
+  (let [job-ids (->> states
+                     (map (fn [[id]] [id (execution-job-id jobs id)]))
+                     (into {}))]
+    (doseq [[id execution] states]
+      (notify-status jobs (job-ids id) execution))
+    (await-registry jobs (d/transact datomic
+                                     (map (fn [[id execution]] (execution-tx-data jobs id execution)) states)))
+    (doseq [job-id (->> states
+                        (filter #(= (:batch-status (second %)) :batch-status/completed))
+                        (keep (comp job-ids first))
+                        distinct)]
+      (trigger-downstreams jobs job-id))
+    ;; A trigger deferred by the conflict with the finished execution
+    (doseq [job-id (->> states
+                        (remove #(active-statuses (:batch-status (second %))))
+                        (keep (comp job-ids first))
+                        distinct)]
+      (trigger-downstream jobs job-id))))
+
+(defn save-execution [jobs id execution]
   (log/debug "progress update: " id execution)
-  (if (-> jobs :test-executions deref (get id))
-    (swap! (:test-executions jobs) update-in [id] merge {:batch-status (:batch-status execution)
-                                                         :execution-id (:execution-id execution)})
-    (let [job (d/query datomic
-                       '{:find [(pull ?job [:job/name
-                                            {:job/status-notifications
-                                             [{:status-notification/batch-status [:db/ident]}
-                                              :status-notification/exit-status
-                                              :status-notification/type]}]) .]
-                         :in [$ ?id]
-                         :where [[?job :job/executions ?id]]} id)]
-      (->> (:job/status-notifications job)
-           (filter #(or (= (get-in % [:status-notification/batch-status :db/ident])
-                           (:batch-status execution))
-                        (and (:exit-status execution) (= (:status-notification/exit-status %) (:exit-status execution)))))
-           (map #(notification/send (:status-notification/type %)
-                                    (assoc execution :job-name (:job/name job))))
-           doall)
-      (d/transact datomic
-                  [(merge {:db/id id
-                           :job-execution/batch-status (:batch-status execution)}
-                          (when-let [exit-status (:exit-status execution)]
-                            {:job-execution/exit-status exit-status})
-                          (when-let [start-time (:start-time execution)]
-                            {:job-execution/start-time start-time})
-                          (when-let [end-time (:end-time execution)]
-                            {:job-execution/end-time end-time})
-                          (when-let [step-executions (and (empty? (d/query datomic
-                                                                           '{:find [?step-executions]
-                                                                             :in [$]
-                                                                             :where [[?step-executions :job-execution/step-executions ?job-execution-id]]} id))
-                                                          (:step-executions execution))]
-                            {:job-execution/step-executions (map (fn [m]
-                                                                   (->> m
-                                                                        (map #(vector (keyword "step-execution" (name (key %))) (val %)))
-                                                                        (into {:db/id (d/tempid :db.part/user)})))
-                                                                 step-executions)}))]))))
+  (if-let [state (cache/lookup @(:test-executions jobs) id)]
+    (do (swap! (:test-executions jobs) assoc id (merge state {:batch-status (:batch-status execution)
+                                                              :execution-id (:execution-id execution)}))
+        (when-let [execution-id (:execution-id execution)]
+          (deliver (test-execution-promise jobs execution-id) id)))
+    (save-executions jobs [[id execution]])))
 
 (defn save-status-notification
   "Save a given status notification."
@@ -412,18 +773,10 @@
                   (map #(d/resolve-tempid datomic tempids %))
                   vec)}))
 
-(defn estimate-execution-time [executions]
-  (if-let [latest-execution (->> executions
-                                 (filter #(and (:job-execution/start-time %) (:job-execution/end-time %)))
-                                 find-latest-execution)]
-    (- (-> latest-execution :job-execution/end-time c/from-date c/to-long)
-       (-> latest-execution :job-execution/start-time c/from-date c/to-long))
-    (* 5 60 1000)))
-
-(defn- append-schedule [scheduler job-id executions schedule]
+(defn- append-schedule [{:keys [scheduler durations]} job-id executions schedule]
   (if (:schedule/active? schedule)
     (let [schedules (scheduler/fire-times scheduler job-id)
-          estimation (estimate-execution-time executions)]
+          estimation (durations/estimate durations job-id)]
       (apply conj executions
              (map (fn [sch]
                     {:job-execution/start-time sch
@@ -431,36 +784,39 @@
                      :job-execution/batch-status {:db/ident :batch-status/registered}}) schedules)))
     executions))
 
-(defn include-job-attrs [{:keys [datomic scheduler] :as jobs} with-params job-list]
+(defn- job-attrs [{:keys [datomic scheduler] :as jobs} with-params
+                  {job-name :job/name
+                   executions :job/executions
+                   schedule :job/schedule :as job}]
+  (merge {:job/name job-name}
+         (when (with-params :execution)
+           {:job/executions (append-schedule jobs (:db/id job) executions schedule)
+            :job/latest-execution (find-latest-execution executions)
+            :job/next-execution   (find-next-execution jobs job)})
+         (when (with-params :schedule)
+           {:job/schedule schedule})
+         (when (with-params :notation)
+           {:job/bpmn-xml-notation (:job/bpmn-xml-notation job)
+            :job/svg-notation (:job/svg-notation job)})
+         (when (with-params :settings)
+           (merge {:job/exclusive? (get job :job/exclusive? false)}
+                  (when-let [time-monitor (get-in job [:job/time-monitor :db/id])]
+                    {:job/time-monitor (d/pull datomic
+                                               '[:time-monitor/duration
+                                                 {:time-monitor/action [:db/ident]}
+                                                 :time-monitor/notification-type] time-monitor)})
+                  (when-let [status-notifications (:job/status-notifications job)]
+                    {:job/status-notifications (->> status-notifications
+                                                    (map (fn [sn]
+                                                           (d/pull datomic
+                                                                   '[{:status-notification/batch-status [:db/ident]}
+                                                                     :status-notification/exit-status
+                                                                     :status-notification/type] (:db/id sn))))
+                                                    vec)})))))
+
+(defn include-job-attrs [jobs with-params job-list]
   (->> job-list
-       (map (fn [{job-name :job/name
-                  executions :job/executions
-                  schedule :job/schedule :as job}]
-              (merge {:job/name job-name}
-                     (when (with-params :execution)
-                       {:job/executions (append-schedule scheduler (:db/id job) executions schedule)
-                        :job/latest-execution (find-latest-execution executions)
-                        :job/next-execution   (find-next-execution jobs job)})
-                     (when (with-params :schedule)
-                       {:job/schedule schedule})
-                     (when (with-params :notation)
-                       {:job/bpmn-xml-notation (:job/bpmn-xml-notation job)
-                        :job/svg-notation (:job/svg-notation job)})
-                     (when (with-params :settings)
-                       (merge {:job/exclusive? (get job :job/exclusive? false)}
-                              (when-let [time-monitor (get-in job [:job/time-monitor :db/id])]
-                                {:job/time-monitor (d/pull datomic
-                                                           '[:time-monitor/duration
-                                                             {:time-monitor/action [:db/ident]}
-                                                             :time-monitor/notification-type] time-monitor)})
-                              (when-let [status-notifications (:job/status-notifications job)]
-                                {:job/status-notifications (->> status-notifications
-                                                                (map (fn [sn]
-                                                                       (d/pull datomic
-                                                                               '[{:status-notification/batch-status [:db/ident]}
-                                                                                 :status-notification/exit-status
-                                                                                 :status-notification/type] (:db/id sn))))
-                                                                vec)}))))))
+       (map #(job-attrs jobs with-params %))
        vec))
 
 (defn parse-with-params
@@ -490,25 +846,27 @@
   (log/info "make job-xml form bpmn" \newline job-bpmn-xml)
   (str "<?xml version=\"1.0\" encoding=\"UTF-8\"?> " \newline (some-> (new BpmnParser) (.parse job-bpmn-xml) .toString)))
 
-(defn search-state-id [jobs execution-id]
-  (loop[times 1]
-    (Thread/sleep 1000)
-    (let [state (->> @(:test-executions jobs) (filter #(= (-> % val :execution-id) execution-id)) first)]
-      (if (empty? state)
-        (recur (inc times))
-        (key state)))))
-
+(defn search-state-id
+  "Find the state id of a test execution by the execution id.
+  Wait for the report of the agent up to `test-execution-wait` milliseconds
+  and return nil if it isn't reported."
+  [{:keys [test-execution-wait] :as jobs} execution-id]
+  (deref (test-execution-promise jobs execution-id) test-execution-wait nil))
 
 (defn write-error-message-on-state [jobs execution-id message exception]
-  (let [state-id (search-state-id jobs execution-id)]
-    (swap! (:test-executions jobs) assoc state-id {:log-message message
-                                                   :log-exception exception
-                                                   :batch-status (-> @(:test-executions jobs) (get state-id) :batch-status)})))
+  (if-let [state-id (search-state-id jobs execution-id)]
+    (swap! (:test-executions jobs)
+           #(if-let [state (cache/lookup % state-id)]
+              (assoc % state-id (assoc state
+                                       :log-message message
+                                       :log-exception exception))
+              %))
+    (log/warn "Unknown test execution:" execution-id message)))
 
 (defn dispatch-test-job [{:keys [datomic agents apps] :as jobs} ctx]
   (let [job-bpmn-xml (get-in ctx [:edn :bpmn])
         agt (ag/find-agent agents)
-        state-id (->> jobs :test-executions deref keys (into [0]) (apply max) inc)]
+        state-id (swap! (:test-execution-seq jobs) inc)]
     (swap! (:test-executions jobs) assoc state-id {:batch-status :batch-status/undispatched})
     (if (nil? agt)
       (swap! (:test-executions jobs) assoc state-id {:batch-status :batch-status/failed
@@ -576,31 +934,248 @@
                   scheduler resolved-job-id
                   (:schedule/cron-notation schedule)
                   nil
-                  (boolean (:schedule/substitution? schedule))) ;; FIXME A Calendar cannot be set here.
+                  (boolean (:schedule/substitution? schedule))
+                  (:schedule/jitter-window schedule)) ;; FIXME A Calendar cannot be set here.
                 (when posted-job-id
                   (scheduler/unschedule scheduler posted-job-id)))
               job))
-   :handle-ok (fn [{{{query :q with-params :with sort-order :sort-by
+   :handle-ok (fn [{{{query :q with-params :with sort-order :sort-by fmt :format
                       :keys [limit offset]} :params} :request}]
-                (let [job-list (->> (find-all jobs app-name query))
-                      res (->> job-list
-                               (include-job-attrs jobs (parse-with-params with-params))
-                               (sort-by-map (parse-sort-order sort-order))
-                               (drop (dec (to-int offset 0)))
-                               (take (to-int limit (if download? 99999 20)))
-                               vec)]
-                  (if download?
-                    (-> res
-                        pr-str
+                (if download?
+                  (let [fmt (download-format fmt)
+                        with-params (parse-with-params with-params)
+                        ;; Sorting needs all jobs, so they are realized only when it is requested.
+                        job-list (if (not-empty sort-order)
+                                   (->> (find-all jobs app-name query)
+                                        (include-job-attrs jobs with-params)
+                                        (sort-by-map (parse-sort-order sort-order)))
+                                   (->> (find-all-lazily jobs app-name query)
+                                        (map #(job-attrs jobs with-params %))))]
+                    (-> (->> job-list
+                             (drop (dec (to-int offset 0)))
+                             (take (to-int limit 99999)))
+                        (streaming-body fmt)
                         response
                         (content-type "application/force-download")
-                        (header "Content-disposition" "attachment; filename=\"jobs.edn\"")
-                        (ring-response))
+                        (header "Content-disposition" (format "attachment; filename=\"jobs.%s\"" (name fmt)))
+                        (ring-response)))
+                  (let [job-list (->> (find-all jobs app-name query))
+                        res (->> job-list
+                                 (include-job-attrs jobs (parse-with-params with-params))
+                                 (sort-by-map (parse-sort-order sort-order))
+                                 (drop (dec (to-int offset 0)))
+                                 (take (to-int limit 20))
+                                 vec)]
                     {:results res
                      :hits    (count job-list)
                      :limit   (to-int limit 20)
                      :offset  (to-int offset 0)})))))
 
+;; Bulk import
+
+(defn- normalize-idents
+  "Replace `{:db/ident ...}` by the ident keyword,
+  because exported jobs have pulled enums and JSON exports have them as strings."
+  [job]
+  (walk/postwalk (fn [v]
+                   (if (and (map? v) (= (keys v) [:db/ident]))
+                     (keyword (:db/ident v))
+                     v))
+                 job))
+
+(defn- validate-import-job
+  "Validate a job and compile its BPMN.
+  Returns the job with a `:message` when it is invalid."
+  [calendar-names job]
+  (try
+    (let [job-name (:job/name job)
+          cron-notation (get-in job [:job/schedule :schedule/cron-notation])
+          calendar-name (get-in job [:job/schedule :schedule/calendar :calendar/name])]
+      (cond
+        (not (and (string? job-name) (re-matches #"^[\w\-]+$" job-name)))
+        (assoc job :message "Invalid job name")
+
+        (and (:job/schedule job) (not (and cron-notation (CronExpression/isValidExpression cron-notation))))
+        (assoc job :message (str "Invalid cron notation: " cron-notation))
+
+        (and calendar-name (not (calendar-names calendar-name)))
+        (assoc job :message (str "Calendar not found: " calendar-name))
+
+        :else
+        (do (when-let [bpmn (not-empty (:job/bpmn-xml-notation job))]
+              (.parse (BpmnParser.) bpmn))
+            job)))
+    (catch Exception e
+      (assoc job :message (str "Invalid BPMN: " (or (.getMessage e) (.getName (class e))))))))
+
+(defn- import-job-datoms
+  "Make datoms of an imported job.
+  `existing` is the pulled job when the job already exists."
+  [app-name {job-name :job/name :as job} existing]
+  (let [job-id (or (:db/id existing) (d/tempid :db.part/user))
+        schedule (:job/schedule job)]
+    (concat
+     ;; Attributes which are not in the export are kept for an existing job.
+     [(merge {:db/id job-id
+              :job/name job-name}
+             (when-not existing
+               {:job/bpmn-xml-notation ""
+                :job/svg-notation ""})
+             (select-keys job [:job/bpmn-xml-notation
+                               :job/svg-notation
+                               :job/exclusive?]))]
+     (when-not existing
+       [[:db/add [:application/name app-name] :application/jobs job-id]])
+     (when (contains? job :job/status-notifications)
+       (for [sn (:job/status-notifications existing)]
+         [:db/retract job-id :job/status-notifications (:db/id sn)]))
+     (mapcat (fn [sn]
+               (let [sn-id (d/tempid :db.part/user)]
+                 [[:db/add job-id :job/status-notifications sn-id]
+                  (merge {:db/id sn-id
+                          :status-notification/type (:status-notification/type sn)}
+                         (when-let [batch-status (:status-notification/batch-status sn)]
+                           {:status-notification/batch-status batch-status})
+                         (when-let [exit-status (:status-notification/exit-status sn)]
+                           {:status-notification/exit-status exit-status}))]))
+             (:job/status-notifications job))
+     (when-let [time-monitor (:job/time-monitor job)]
+       (let [time-monitor-id (d/tempid :db.part/user)]
+         [(merge {:db/id time-monitor-id}
+                 (select-keys time-monitor [:time-monitor/duration
+                                            :time-monitor/action
+                                            :time-monitor/notification-type]))
+          [:db/add job-id :job/time-monitor time-monitor-id]]))
+     (if schedule
+       (let [schedule-id (or (get-in existing [:job/schedule :db/id])
+                             (d/tempid :db.part/user))]
+         [(merge {:db/id schedule-id
+                  :schedule/cron-notation (:schedule/cron-notation schedule)
+                  :schedule/active? (get schedule :schedule/active? true)
+                  :schedule/substitution? (boolean (:schedule/substitution? schedule))}
+                 (when-let [jitter-window (:schedule/jitter-window schedule)]
+                   {:schedule/jitter-window jitter-window})
+                 (when-let [calendar-name (get-in schedule [:schedule/calendar :calendar/name])]
+                   {:schedule/calendar [:calendar/name calendar-name]}))
+          [:db/add job-id :job/schedule schedule-id]])
+       (when-let [schedule-id (and (contains? job :job/schedule)
+                                   (get-in existing [:job/schedule :db/id]))]
+         [[:db.fn/retractEntity schedule-id]])))))
+
+(defn- import-chunk
+  "Write a chunk of jobs by one transaction, and register their triggers by one call."
+  [{:keys [datomic scheduler]} app-name existing-ids jobs]
+  (let [existings (doall
+                   (map #(when-let [id (existing-ids (:job/name %))]
+                           (d/pull datomic
+                                   '[:db/id
+                                     {:job/schedule [:db/id]}
+                                     {:job/status-notifications [:db/id]}]
+                                   id))
+                        jobs))]
+    (d/transact datomic (mapcat #(import-job-datoms app-name %1 %2) jobs existings))
+    (let [imported-ids (->> (d/query datomic
+                                     '{:find [?job-name ?job]
+                                       :in [$ ?app-name [?job-name ...]]
+                                       :where [[?app :application/name ?app-name]
+                                               [?app :application/jobs ?job]
+                                               [?job :job/name ?job-name]]}
+                                     app-name (map :job/name jobs))
+                            (into {}))]
+      (scheduler/schedule-all
+       scheduler
+       (for [job jobs :when (:job/schedule job)
+             :let [schedule (:job/schedule job)]]
+         {:job-id (imported-ids (:job/name job))
+          :app-name app-name
+          :job-name (:job/name job)
+          :cron-notation (:schedule/cron-notation schedule)
+          :calendar-name (get-in schedule [:schedule/calendar :calendar/name])
+          :substitution? (boolean (:schedule/substitution? schedule))
+          :jitter-window (:schedule/jitter-window schedule)
+          :active? (get schedule :schedule/active? true)}))
+      (scheduler/unschedule-all
+       scheduler
+       (for [[job existing] (map vector jobs existings)
+             :when (and (contains? job :job/schedule)
+                        (nil? (:job/schedule job))
+                        (get-in existing [:job/schedule :db/id]))]
+         (:db/id existing)))
+      imported-ids)))
+
+(defn- mark-duplicates
+  "Jobs which have the same name as a preceding one are not imported."
+  [job-list]
+  (let [seen (atom #{})]
+    (map (fn [{job-name :job/name :as job}]
+           (if (and (not (:message job)) (@seen job-name))
+             (assoc job :message "Duplicated job name")
+             (do (swap! seen conj job-name) job)))
+         job-list)))
+
+(defn import-jobs
+  "Import jobs of an export.
+  BPMNs are validated in parallel, and valid jobs are written in chunked transactions."
+  [{:keys [datomic tasks import-chunk-size] :as jobs} task-id app-name job-list]
+  (let [calendar-names (set (d/query datomic
+                                     '{:find [[?calendar-name ...]]
+                                       :where [[_ :calendar/name ?calendar-name]]}))
+        validated (->> job-list
+                       (pmap (comp (partial validate-import-job calendar-names) normalize-idents))
+                       mark-duplicates)
+        existing-ids (->> (d/query datomic
+                                   '{:find [?job-name ?job]
+                                     :in [$ ?app-name]
+                                     :where [[?app :application/name ?app-name]
+                                             [?app :application/jobs ?job]
+                                             [?job :job/name ?job-name]]}
+                                   app-name)
+                          (into {}))]
+    (reduce
+     (fn [existing-ids chunk]
+       (let [{valid-jobs false invalid-jobs true} (group-by #(contains? % :message) chunk)
+             failures (map #(select-keys % [:job/name :message]) invalid-jobs)]
+         (if (not-empty valid-jobs)
+           (try
+             (let [imported-ids (import-chunk jobs app-name existing-ids valid-jobs)]
+               (tasks/progress! tasks task-id (count chunk) failures)
+               (merge existing-ids imported-ids))
+             (catch Exception e
+               (log/error e "Import failure")
+               (tasks/progress! tasks task-id (count chunk)
+                                (concat failures
+                                        (map #(hash-map :job/name (:job/name %)
+                                                        :message (.getMessage e))
+                                             valid-jobs)))
+               existing-ids))
+           (do (tasks/progress! tasks task-id (count chunk) failures)
+               existing-ids))))
+     existing-ids
+     (partition-all import-chunk-size validated))
+    nil))
+
+(defn import-resource [{:keys [tasks] :as jobs} app-name]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:post]
+   :malformed? (fn [ctx]
+                 (let [[malformed? parsed :as res] (parse-body ctx)]
+                   (if (and (false? malformed?) (not (sequential? (:edn parsed))))
+                     {:message "Jobs must be a list."}
+                     res)))
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :post (and (:permission/create-job permissions)
+                              (:permission/update-job permissions))
+                   false)))
+   :post! (fn [{job-list :edn}]
+            {:task-id (tasks/submit tasks :import-jobs (count job-list)
+                                    #(import-jobs jobs % app-name job-list))})
+   :post-enacted? false
+   :handle-accepted (fn [ctx]
+                      {:task/id (:task-id ctx)})))
+
 (defn entry-resource [{:keys [datomic scheduler] :as jobs} app-name job-name]
   (liberator/resource
    :available-media-types ["application/edn" "application/json"]
@@ -623,10 +1198,11 @@
                                      [:schedule/cron-notation
                                       {:schedule/calendar
                                        [:calendar/name]}
-                                      :schedule/substitution?]}] job-id)]
+                                      :schedule/substitution?
+                                      :schedule/jitter-window]}] job-id)]
              (when-let [cron-notation (:schedule/cron-notation (:job/schedule schedule))]
                (scheduler/unschedule scheduler job-id)
-               (scheduler/schedule scheduler job-id cron-notation (:calendar/name (:schedule/calendar (:job/schedule schedule))) (:schedule/substitution? (:job/schedule schedule)))))) ; Because job execute by job name
+               (scheduler/schedule scheduler job-id cron-notation (:calendar/name (:schedule/calendar (:job/schedule schedule))) (:schedule/substitution? (:job/schedule schedule)) (:schedule/jitter-window (:job/schedule schedule)))))) ; Because job execute by job name
    :delete! (fn [{job-id :job-id app-id :app-id}]
               (scheduler/unschedule scheduler job-id)
               (d/transact datomic
@@ -646,6 +1222,7 @@
                                    {:job/schedule [:schedule/cron-notation
                                                    :schedule/active?
                                                    :schedule/substitution?
+                                                   :schedule/jitter-window
                                                    {:schedule/calendar [:calendar/name]}]}]
                                  (:job-id ctx))
                      total (count (:job/executions job))
@@ -677,10 +1254,26 @@
   (liberator/resource
   :available-media-types ["application/edn" "application/json"]
   :allowed-methods [:get :delete :put]
-  :malformed? #(parse-body %)
+  :malformed? (fn [ctx]
+                (if (and (= cmd :memoize)
+                         (= (get-in ctx [:request :request-method]) :put))
+                  (validate (parse-body ctx)
+                            :job/memoize-window [v/required v/integer v/positive])
+                  (parse-body ctx)))
   :exists? (when-let [[app-id job-id] (find-by-name jobs app-name job-name)]
              {:app-id app-id
               :job-id job-id})
+  :processable? (fn [{settings :edn :as ctx}]
+                  (if (and (= cmd :upstreams)
+                           (= (get-in ctx [:request :request-method]) :put))
+                    (let [[_ job-id] (find-by-name jobs app-name job-name)
+                          upstreams (map #(second (find-by-name jobs app-name %))
+                                         (:job/upstreams settings))]
+                      (if (and (every? some? upstreams)
+                               (not (upstream-cycle? datomic job-id upstreams)))
+                        {:upstreams upstreams}
+                        false))
+                    true))
    :allowed? (fn [{{:keys [request-method identity]} :request}]
                (let [permissions (:permissions identity)]
                  (condp = request-method
@@ -688,7 +1281,7 @@
                    :put (:permission/update-job permissions)
                    :delete (:permission/delete-job permissions)
                    false)))
-  :put! (fn [{settings :edn job-id :job-id}]
+  :put! (fn [{settings :edn job-id :job-id :as ctx}]
           (case cmd
             :exclusive (d/transact datomic
                                    [{:db/id job-id
@@ -703,7 +1296,22 @@
             :time-monitor
             (d/transact datomic
                         [(merge {:db/id #db/id[db.part/user -1]} settings)
-                         {:db/id job-id :job/time-monitor #db/id[db.part/user -1]}])))
+                         {:db/id job-id :job/time-monitor #db/id[db.part/user -1]}])
+
+            :memoize
+            (d/transact datomic
+                        [{:db/id job-id
+                          :job/memoize-window (:job/memoize-window settings)}])
+
+            :upstreams
+            (let [upstreams (:upstreams ctx)
+                  current (upstream-ids datomic job-id)]
+              (d/transact datomic
+                          (concat
+                           (for [id current :when (not ((set upstreams) id))]
+                             [:db/retract job-id :job/upstreams id])
+                           (for [id upstreams]
+                             [:db/add job-id :job/upstreams id]))))))
 
   :delete! (fn [{settings :edn job-id :job-id}]
              (case cmd
@@ -717,7 +1325,16 @@
                  (d/transact datomic
                              [[:db/retract job-id
                                :job/time-monitor time-monitor-id]
-                              [:db.fn/retractEntity time-monitor-id]]))))
+                              [:db.fn/retractEntity time-monitor-id]]))
+               :memoize
+               (when-let [window (:job/memoize-window (d/pull datomic '[:job/memoize-window] job-id))]
+                 (d/transact datomic
+                             [[:db/retract job-id :job/memoize-window window]]))
+               :upstreams
+               (when-let [upstreams (not-empty (upstream-ids datomic job-id))]
+                 (d/transact datomic
+                             (for [id upstreams]
+                               [:db/retract job-id :job/upstreams id])))))
 
   :handle-created (fn [ctx]
                     (select-keys ctx [:db/id]))
@@ -725,6 +1342,8 @@
   :handle-ok (fn [ctx]
                (let [settings (d/pull datomic
                                       '[:job/exclusive?
+                                        :job/memoize-window
+                                        {:job/upstreams [:job/name]}
                                         {:job/time-monitor
                                          [:time-monitor/duration
                                           {:time-monitor/action [:db/ident]}
@@ -745,7 +1364,8 @@
                      (update-in [:job/time-monitor]
                                 (fn [time-monitor]
                                   (when-let [action (get-in time-monitor [:time-monitor/action :db/ident])]
-                                    (assoc time-monitor :time-monitor/action action)))))))))
+                                    (assoc time-monitor :time-monitor/action action))))
+                     (update-in [:job/upstreams] #(map :job/name %)))))))
 
 (defn convert-xml-resource [_]
   (liberator/resource
@@ -757,70 +1377,430 @@
                       (let [job-xml (make-job (:job-bpmn-xml job-bpmn-xml))]
                         {:job-xml (str job-xml)}))))
 
-(defn- execute-job [{:keys [datomic scheduler] :as jobs} app-name job-name ctx]
-  (log/debug "execute job " job-name)
-  (when-let [[app-id job-id] (find-by-name jobs app-name job-name)]
-    (let [execution-id (d/tempid :db.part/user)
-          tempids (-> (d/transact
-                       datomic
-                       [{:db/id execution-id
-                         :job-execution/batch-status :batch-status/undispatched
-                         :job-execution/create-time (java.util.Date.)
-                         :job-execution/job-parameters (pr-str (or (:edn ctx) {}))}
-                        [:db/add job-id :job/executions execution-id]])
-                      :tempids)]
-      (log/debug "set execution-id " (-> tempids vals first))
-      (when-let [time-monitor (d/pull datomic
-                                      '[{:job/time-monitor
-                                         [:time-monitor/duration
-                                          {:time-monitor/action [:db/ident]}]}]
-                                      job-id)]
-        (log/debug "set time-monitor")
+(defn- time-monitor-duration
+  "The duration (in minutes) of the time monitor.
+  When the monitor doesn't have its duration, the 95th percentile of the job is used."
+  [{:keys [durations]} job-id parameters time-monitor]
+  (or (:time-monitor/duration time-monitor)
+      (some-> (durations/percentile durations job-id 0.95 parameters)
+              (/ 60000.0)
+              Math/ceil
+              long)))
+
+(defn- memoized-executions
+  "Completed executions within the memoization window of the job,
+  as a map of canonical parameters to the latest execution id.
+  It returns nil when the job isn't memoized."
+  [{:keys [datomic]} job-id]
+  (when-let [window (:job/memoize-window (d/pull datomic '[:job/memoize-window] job-id))]
+    (let [since (Date. (- (System/currentTimeMillis) (* window 60 1000)))]
+      (->> (d/query datomic
+                    '{:find [?execution ?end-time ?parameters]
+                      :in [$ ?job ?since]
+                      :where [[?job :job/executions ?execution]
+                              [?execution :job-execution/batch-status :batch-status/completed]
+                              [?execution :job-execution/end-time ?end-time]
+                              [(>= ?end-time ?since)]
+                              [?execution :job-execution/job-parameters ?parameters]]}
+                    job-id since)
+           (sort-by second)
+           (reduce (fn [m [execution-id _ p]]
+                     (assoc m (canonicalize-parameters (edn/read-string p)) execution-id))
+                   {})))))
+
+(defn- find-memoized-execution
+  "Find a completed execution with the same parameters within the memoization window of the job."
+  [jobs job-id parameters]
+  (some-> (memoized-executions jobs job-id)
+          (get (canonicalize-parameters parameters))))
+
+(defn- memoized-execution-tx-data
+  "Transaction data of an execution which reuses the result of the earlier execution instead of running."
+  [{:keys [datomic]} job-id parameters memoized-id & [attrs]]
+  (let [execution-id (d/tempid :db.part/user)
+        now (Date.)
+        {:keys [job-execution/exit-status]} (d/pull datomic '[:job-execution/exit-status] memoized-id)]
+    (log/info "Reuse the result of execution" memoized-id "for job" job-id)
+    [(merge {:db/id execution-id
+             :job-execution/batch-status :batch-status/completed
+             :job-execution/create-time now
+             :job-execution/start-time now
+             :job-execution/end-time now
+             :job-execution/job-parameters (pr-str parameters)
+             :job-execution/memoized-from memoized-id}
+            (when exit-status
+              {:job-execution/exit-status exit-status})
+            attrs)
+     [:db/add job-id :job/executions execution-id]]))
+
+(defn- record-memoized-execution
+  "Record an execution which reuses the result of the earlier execution instead of running."
+  [{:keys [datomic] :as jobs} job-id parameters memoized-id & [attrs]]
+  (d/transact datomic (memoized-execution-tx-data jobs job-id parameters memoized-id attrs)))
+
+(defn- set-time-keeper
+  "Set the time-keeper of the execution by the time monitor of the job."
+  [{:keys [scheduler] :as jobs} job-name job-id execution-id parameters time-monitor & [since]]
+  (if-let [duration (time-monitor-duration jobs job-id parameters time-monitor)]
+    (do (log/debug "set time-monitor")
         (scheduler/time-keeper
          scheduler
-         (d/resolve-tempid datomic tempids execution-id)
-         (get-in time-monitor [:job/time-monitor :time-monitor/duration])
-         (get-in time-monitor [:job/time-monitor :time-monitor/action :db/ident]))))))
+         execution-id
+         duration
+         (get-in time-monitor [:time-monitor/action :db/ident])
+         since))
+    (log/info "No duration for the time-monitor of" job-name)))
+
+(defn monitor-execution
+  "Set the time-keeper of the execution when the job has a time monitor.
+  Executions of a sweep are monitored when they're dispatched, because they may wait for others of the sweep."
+  [{:keys [datomic] :as jobs} job-id execution-id parameters]
+  (let [{:keys [job/name job/time-monitor]} (d/pull datomic
+                                                    '[:job/name
+                                                      {:job/time-monitor
+                                                       [:time-monitor/duration
+                                                        {:time-monitor/action [:db/ident]}]}]
+                                                    job-id)]
+    (when time-monitor
+      (set-time-keeper jobs name job-id execution-id parameters time-monitor))))
+
+(defn- recover-time-keepers
+  "Set time-keepers of active executions again from their create time, because they're kept in memory.
+  Executions of a sweep are monitored from their start time, and not until they're dispatched.
+  A clustered scheduler keeps time-keepers in its store, so nothing is recovered."
+  [{:keys [datomic execution-registry scheduler] :as jobs}]
+  (when-let [execution-ids (and (not (scheduler/persistent-time-keepers? scheduler))
+                                (not-empty (keys (:by-execution @execution-registry))))]
+    (let [monitored (->> (d/query datomic
+                                  '{:find [?execution ?job ?job-name ?parameters ?create-time ?sweep
+                                           (pull ?monitor [:time-monitor/duration
+                                                           {:time-monitor/action [:db/ident]}])]
+                                    :in [$ [?execution ...]]
+                                    :where [[?job :job/executions ?execution]
+                                            [?job :job/time-monitor ?monitor]
+                                            [?job :job/name ?job-name]
+                                            [?execution :job-execution/job-parameters ?parameters]
+                                            [?execution :job-execution/create-time ?create-time]
+                                            [(get-else $ ?execution :job-execution/sweep :none) ?sweep]]}
+                                  execution-ids)
+                         (keep (fn [[execution-id job-id job-name parameters create-time sweep time-monitor]]
+                                 (if (= sweep :none)
+                                   [execution-id job-id job-name parameters create-time time-monitor]
+                                   (when-let [start-time (:job-execution/start-time
+                                                          (d/pull datomic '[:job-execution/start-time] execution-id))]
+                                     [execution-id job-id job-name parameters start-time time-monitor])))))]
+      (doseq [[execution-id job-id job-name parameters since time-monitor] monitored]
+        (set-time-keeper jobs job-name job-id execution-id parameters time-monitor since))
+      (log/info "Recovered time-keepers:" (count monitored)))))
+
+(defn- create-execution
+  "Create an undispatched execution of the job, which is picked up by the dispatcher."
+  [{:keys [datomic] :as jobs} job-name job-id parameters & [attrs]]
+  (let [execution-id (d/tempid :db.part/user)
+        parameters (pr-str parameters)
+        tx-result (d/transact
+                   datomic
+                   [(merge {:db/id execution-id
+                            :job-execution/batch-status :batch-status/undispatched
+                            :job-execution/create-time (java.util.Date.)
+                            :job-execution/job-parameters parameters}
+                           attrs)
+                    [:db/add job-id :job/executions execution-id]])
+        tempids (:tempids tx-result)
+        resolved-execution-id (d/resolve-tempid datomic tempids execution-id)]
+    (log/debug "set execution-id " (-> tempids vals first))
+    (await-registry jobs tx-result)
+    (monitor-execution jobs job-id resolved-execution-id parameters)))
+
+(defn create-executions
+  "Create undispatched executions of the job for each parameters in transactions of `sweep-batch-size`,
+  which are picked up by the dispatcher. With `concurrency`, they belong to a sweep which
+  the dispatcher runs at most `concurrency` executions of at once.
+  Parameters which have a memoized result reuse it instead of running.
+  It returns pairs of an execution id and parameters of created executions."
+  [{:keys [datomic sweep-batch-size] :as jobs} job-name job-id parameter-list & [concurrency]]
+  (let [memoized (memoized-executions jobs job-id)
+        sweep-id (when concurrency
+                   (let [tempid (d/tempid :db.part/user)]
+                     (->> (d/transact datomic [{:db/id tempid :sweep/concurrency concurrency}])
+                          :tempids
+                          (#(d/resolve-tempid datomic % tempid)))))
+        created (->> parameter-list
+                     (partition-all sweep-batch-size)
+                     (mapcat
+                      (fn [batch]
+                        (let [now (Date.)
+                              plans (for [parameters batch]
+                                      (if-let [memoized-id (get memoized (canonicalize-parameters parameters))]
+                                        {:tx-data (memoized-execution-tx-data jobs job-id parameters memoized-id)}
+                                        (let [execution-id (d/tempid :db.part/user)]
+                                          {:execution-id execution-id
+                                           :parameters parameters
+                                           :tx-data [(merge {:db/id execution-id
+                                                             :job-execution/batch-status :batch-status/undispatched
+                                                             :job-execution/create-time now
+                                                             :job-execution/job-parameters (pr-str parameters)}
+                                                            (when sweep-id
+                                                              {:job-execution/sweep sweep-id}))
+                                                     [:db/add job-id :job/executions execution-id]]})))
+                              tx-result (d/transact datomic (mapcat :tx-data plans))
+                              tempids (:tempids tx-result)]
+                          (await-registry jobs tx-result)
+                          (doall
+                           (for [{:keys [execution-id parameters]} plans
+                                 :when execution-id]
+                             (let [resolved-id (d/resolve-tempid datomic tempids execution-id)]
+                               (when-not sweep-id
+                                 (monitor-execution jobs job-id resolved-id (pr-str parameters)))
+                               [resolved-id parameters]))))))
+                     doall)]
+    (when (< (count created) (count parameter-list))
+      (trigger-downstreams jobs job-id))
+    created))
+
+(defn- start-execution
+  "Start an execution of the job, or reuse a memoized result.
+  `attrs` are added to the execution."
+  [jobs job-name job-id parameters & [attrs]]
+  (if-let [memoized-id (find-memoized-execution jobs job-id parameters)]
+    (do (record-memoized-execution jobs job-id parameters memoized-id attrs)
+        (trigger-downstreams jobs job-id))
+    (create-execution jobs job-name job-id parameters attrs)))
 
-(defn executions-resource [{:keys [datomic] :as jobs} app-name job-name]
+(defn- execute-job [{:keys [datomic scheduler] :as jobs} app-name job-name ctx]
+  (log/debug "execute job " job-name)
+  (when-let [[app-id job-id] (find-by-name jobs app-name job-name)]
+    (start-execution jobs job-name job-id (or (:edn ctx) {}))))
+
+(defn- query-latest-completed-execution [datomic job-id]
+  (->> (d/query datomic
+                '{:find [?execution ?end-time ?parameters]
+                  :in [$ ?job]
+                  :where [[?job :job/executions ?execution]
+                          [?execution :job-execution/batch-status :batch-status/completed]
+                          [?execution :job-execution/end-time ?end-time]
+                          [?execution :job-execution/job-parameters ?parameters]]}
+                job-id)
+       (sort-by second #(compare %2 %1))
+       first))
+
+(defn- latest-completed-execution
+  "The latest completed execution of the job as `[id end-time parameters]`.
+  The latest execution in the job index is taken when it has completed,
+  so that the history is queried only while a newer execution hasn't completed."
+  [{:keys [datomic job-index]} job-id]
+  (let [{:keys [db/id job-execution/end-time] :as latest} (some-> job-index (job-index/latest-execution job-id))]
+    (if (and end-time (= (get-in latest [:job-execution/batch-status :db/ident]) :batch-status/completed))
+      [id end-time (:job-execution/job-parameters (d/pull datomic '[:job-execution/job-parameters] id))]
+      (query-latest-completed-execution datomic job-id))))
+
+(defn- consumed-executions
+  "Upstream executions which have triggered an execution of the downstream job.
+  Executions which refer to the upstream executions are looked up, instead of the history of the downstream job."
+  [datomic downstream-id upstream-execution-ids]
+  (set (d/query datomic
+                '{:find [[?upstream-execution ...]]
+                  :in [$ ?job [?upstream-execution ...]]
+                  :where [[?execution :job-execution/triggered-by ?upstream-execution]
+                          [?job :job/executions ?execution]]}
+                downstream-id upstream-execution-ids)))
+
+(defn- trigger-downstream
+  "Start an execution of the job when every upstream job has a completed execution
+  which hasn't triggered it yet. Parameters of the upstream executions are merged
+  and passed to the execution.
+  While the job has an execution in conflict, the trigger is deferred until the execution finishes."
+  [{:keys [datomic chain-lock] :as jobs} downstream-id]
+  (when-let [upstream-ids (not-empty (upstream-ids datomic downstream-id))]
+    (locking chain-lock
+      (if (some conflict-statuses (vals (active-executions jobs downstream-id)))
+        (log/debug "Defer the trigger of" downstream-id "until its active execution finishes.")
+        (let [upstream-executions (map #(latest-completed-execution jobs %) upstream-ids)]
+          (when (every? some? upstream-executions)
+            (let [consumed (consumed-executions datomic downstream-id (map first upstream-executions))]
+              (when (not-any? #(consumed (first %)) upstream-executions)
+                (let [job-name (:job/name (d/pull datomic '[:job/name] downstream-id))]
+                  (log/info "Trigger" job-name "by upstream executions" (map first upstream-executions))
+                  (start-execution jobs job-name downstream-id
+                                   (->> upstream-executions
+                                        (sort-by second)
+                                        (map #(edn/read-string (nth % 2)))
+                                        (apply merge {}))
+                                   {:job-execution/triggered-by (map first upstream-executions)}))))))))))
+
+(defn trigger-downstreams
+  "Start executions of jobs which depend on the job by `trigger-downstream`."
+  [{:keys [datomic] :as jobs} job-id]
+  (doseq [downstream-id (d/query datomic
+                                 '{:find [[?downstream ...]]
+                                   :in [$ ?job]
+                                   :where [[?downstream :job/upstreams ?job]]}
+                                 job-id)]
+    (trigger-downstream jobs downstream-id)))
+
+;; Bulk operations
+
+(def bulk-target-statuses
+  "Batch statuses of executions which each bulk command can be applied to."
+  {:stop    #{:batch-status/starting :batch-status/started}
+   :abandon #{:batch-status/stopped :batch-status/failed :batch-status/unknown}
+   :restart #{:batch-status/stopped :batch-status/failed}})
+
+(defn select-executions
+  "Select executions of the application for a bulk operation.
+  It returns pairs of a job id and an execution with its agent."
+  [{:keys [datomic]} app-name batch-statuses & {:keys [job-name agent-name]}]
+  (d/query datomic
+           (cond-> '{:find [?job (pull ?execution [:db/id
+                                                   :job-execution/execution-id
+                                                   :job-execution/job-parameters
+                                                   {:job-execution/agent
+                                                    [:db/id :agent/instance-id :agent/name]}])]
+                     :in [$ ?app-name [?status ...]]
+                     :where [[?app :application/name ?app-name]
+                             [?app :application/jobs ?job]
+                             [?job :job/executions ?execution]
+                             [?execution :job-execution/batch-status ?s]
+                             [?s :db/ident ?status]]}
+             job-name   (-> (update-in [:in] conj '?job-name)
+                            (update-in [:where] conj '[?job :job/name ?job-name]))
+             agent-name (-> (update-in [:in] conj '?agent-name)
+                            (update-in [:where] conj
+                                       '[?execution :job-execution/agent ?agent]
+                                       '[?agent :agent/name ?agent-name])))
+           (cond-> [app-name (vec batch-statuses)]
+             job-name (conj job-name)
+             agent-name (conj agent-name))))
+
+(defn- agent-command
+  "Send the command for the execution to the agent, and get the state of the execution after it.
+  `done` is called with the state, or with nil when the command fails."
+  [agents agt cmd execution done]
+  (let [on-error (fn [error]
+                   (log/error error)
+                   (done nil))
+        on-success (fn [_]
+                     (ag/update-execution agt (:job-execution/execution-id execution)
+                                          :on-success done
+                                          :on-error on-error))]
+    (case cmd
+      :stop    (ag/stop-execution agents execution :on-success on-success :on-error on-error)
+      :abandon (ag/abandon-execution agents execution :on-success on-success :on-error on-error))))
+
+(defn- command-agent
+  "Send the command for executions on an agent with at most `bulk-concurrency` requests in flight.
+  It returns pairs of an execution and its new state, which is nil when the command fails."
+  [{:keys [agents bulk-concurrency bulk-command-timeout]} cmd agt executions]
+  (let [permits (Semaphore. bulk-concurrency)
+        states (doall
+                (for [execution executions]
+                  (let [state (promise)]
+                    (if (.tryAcquire permits bulk-command-timeout TimeUnit/MILLISECONDS)
+                      (agent-command agents agt cmd execution
+                                     #(when (deliver state %)
+                                        (.release permits)))
+                      (do (log/warn "Agent" (:agent/name agt) "doesn't respond to" cmd)
+                          (deliver state nil)))
+                    [execution state])))]
+    (doall
+     (for [[execution state] states]
+       [execution (deref state bulk-command-timeout nil)]))))
+
+(defn- restart-executions
+  "Create unrestarted executions from executions in a transaction.
+  The dispatcher restarts them on the agents of the original executions."
+  [{:keys [datomic] :as jobs} targets]
+  (let [restarts (for [[job-id execution] targets]
+                   [job-id execution (d/tempid :db.part/user)])]
+    (await-registry jobs
+                    (d/transact
+                     datomic
+                     (mapcat (fn [[job-id execution execution-id]]
+                               [(merge {:db/id execution-id
+                                        :job-execution/batch-status :batch-status/unrestarted
+                                        :job-execution/create-time (java.util.Date.)
+                                        :job-execution/job-parameters (or (:job-execution/job-parameters execution) "{}")}
+                                       (when-let [agent-id (get-in execution [:job-execution/agent :db/id])]
+                                         {:job-execution/agent agent-id}))
+                                [:db/add job-id :job/executions execution-id]])
+                             restarts)))))
+
+(defn bulk-operate
+  "Stop, abandon or restart the selected executions in background.
+  Executions are grouped by agent and the agents are commanded in parallel.
+  The resulting states are written in transactions of `bulk-batch-size` executions."
+  [{:keys [agents tasks bulk-batch-size] :as jobs} task-id cmd targets]
+  (if (= cmd :restart)
+    (doseq [batch (partition-all bulk-batch-size targets)]
+      (restart-executions jobs batch)
+      (tasks/progress! tasks task-id (count batch)))
+    (->> (map second targets)
+         (group-by #(get-in % [:job-execution/agent :agent/instance-id]))
+         (map (fn [[instance-id executions]]
+                (thread
+                  (if-let [agt (get @(:agents agents) instance-id)]
+                    (command-agent jobs cmd agt executions)
+                    ;; An execution whose agent has gone can be abandoned without the agent.
+                    (doall (for [execution executions]
+                             [execution (when (= cmd :abandon)
+                                          {:batch-status :batch-status/abandoned})]))))))
+         doall
+         (mapcat <!!)
+         (partition-all bulk-batch-size)
+         (run! (fn [batch]
+                 (let [[succeeded failed] ((juxt filter remove) second batch)]
+                   (when (not-empty succeeded)
+                     (save-executions jobs (map (fn [[execution state]]
+                                                  [(:db/id execution) state])
+                                                succeeded)))
+                   (tasks/progress! tasks task-id (count batch)
+                                    (for [[execution] failed]
+                                      {:db/id (:db/id execution)
+                                       :agent/name (get-in execution [:job-execution/agent :agent/name])
+                                       :message (str "Can't " (name cmd) " the execution")}))))))))
+
+(defn bulk-resource [{:keys [tasks] :as jobs} app-name cmd]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:post]
+   :malformed? #(parse-body %)
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :post (:permission/execute-job permissions)
+                   false)))
+   :processable? (fn [{{:keys [batch-status]} :edn}]
+                   (when-let [statuses (bulk-target-statuses cmd)]
+                     (let [batch-status (some->> batch-status name (keyword "batch-status"))]
+                       (when (or (nil? batch-status) (statuses batch-status))
+                         {:batch-statuses (if batch-status #{batch-status} statuses)}))))
+   :post! (fn [{{:keys [job-name agent-name]} :edn statuses :batch-statuses}]
+            (let [targets (select-executions jobs app-name statuses
+                                             :job-name job-name
+                                             :agent-name agent-name)]
+              {:task-id (tasks/submit tasks (keyword (str (name cmd) "-executions")) (count targets)
+                                      #(bulk-operate jobs % cmd targets))}))
+   :post-enacted? false
+   :handle-accepted (fn [ctx]
+                      {:task/id (:task-id ctx)})))
+
+(defn executions-resource [{:keys [datomic tasks] :as jobs} app-name job-name]
   (liberator/resource
    :available-media-types ["application/edn" "application/json"]
    :allowed-methods [:get :post :delete]
    :malformed? #(parse-body %)
    :exists? (when-let [[app-id job-id] (find-by-name jobs app-name job-name)]
-              {:job (d/pull datomic
-                            '[:job/exclusive?
-                              {:job/executions
-                               [:job-execution/create-time
-                                {:job-execution/batch-status [:db/ident]}]}] job-id)})
-   :post-to-existing? (fn [ctx]
+              {:job-id job-id
+               :job (d/pull datomic '[:job/exclusive?] job-id)})
+   :post-to-existing? (fn [{job-id :job-id :as ctx}]
                         (when (#{:put :post} (get-in ctx [:request :request-method]))
-                           (let [job (d/pull datomic
-                                             '[:*
-                                               {:job/executions
-                                                [:db/id
-                                                 :job-execution/create-time
-                                                 :job-execution/end-time]}
-                                               {:job/schedule [:schedule/cron-notation :schedule/active?]}]
-                                             (second (find-by-name jobs app-name job-name)))
-                                 last-execution (-> job :job/executions find-latest-execution)]
-                             (not (and (:job/exclusive? (:job ctx))
-                                       last-execution
-                                       (not (:job-execution/end-time last-execution)))))))
+                          (not (and (:job/exclusive? (:job ctx))
+                                    (not-empty (active-executions jobs job-id))))))
    :put-to-existing? (fn [ctx]
                        (#{:put :post} (get-in ctx [:request :request-method])))
    :post-to-missing? (fn [ctx] (find-by-name jobs app-name job-name))
-   :conflict? (fn [{job :job}]
-                (if-let [last-execution (some->> (:job/executions job)
-                                                 (sort #(compare (:job-execution/create-time %2) (:job-execution/create-time %1)))
-                                                 first)]
-                  (contains? #{:batch-status/undispatched
-                               :batch-status/queued
-                               :batch-status/starting
-                               :batch-status/started
-                               :batch-status/stopping}
-                             (get-in last-execution [:job-execution/batch-status :db/ident]))
-                  false))
+   :conflict? (fn [{job-id :job-id}]
+                (boolean (some conflict-statuses (vals (active-executions jobs job-id)))))
    :allowed? (fn [{{:keys [request-method identity]} :request}]
                (let [permissions (:permissions identity)]
                  (condp = request-method
@@ -831,16 +1811,66 @@
    :put! #(execute-job jobs app-name job-name %)
    :post! #(execute-job jobs app-name job-name %)
    :delete! (fn [ctx]
-              (doall
-                (map #(d/transact datomic
-                       [[:db.fn/retractEntity (:db/id %)]])
-                     (:results (find-executions jobs app-name job-name 0 Integer/MAX_VALUE)))))
+              (let [[_ job-id] (find-by-name jobs app-name job-name)
+                    execution-ids (d/query datomic
+                                           '{:find [[?execution ...]]
+                                             :in [$ ?job]
+                                             :where [[?job :job/executions ?execution]]}
+                                           job-id)]
+                {:task-id (tasks/submit tasks :delete-executions (count execution-ids)
+                                        #(delete-executions jobs % execution-ids))}))
+   :delete-enacted? false
+   :handle-accepted (fn [ctx]
+                      {:task/id (:task-id ctx)})
    :handle-ok (fn [{{{:keys [offset limit]} :params} :request}]
                 (find-executions jobs app-name job-name
                                  (to-int offset 0)
                                  (to-int limit 20)))))
 
-(defn execution-resource [{:keys [agents scheduler datomic] :as jobs} id & [cmd]]
+(defn- abandon-execution!
+  "Abandon the execution on its agent, and save the status which the agent reports."
+  [{:keys [agents] :as jobs} id execution]
+  (ag/abandon-execution
+   agents
+   execution
+   :on-success (fn [_]
+                 (ag/update-execution-by-id
+                  agents
+                  id
+                  :on-success (fn [response]
+                                (save-execution jobs id response))
+                  :on-error (fn [error]
+                              (log/error error))))))
+
+(defn- stop-execution!
+  "Stop the execution on its agent, and save the status which the agent reports."
+  [{:keys [agents] :as jobs} id execution]
+  (ag/stop-execution
+   agents
+   execution
+   :on-success (fn [_]
+                 (ag/update-execution-by-id
+                  agents
+                  id
+                  :on-success (fn [response]
+                                (save-execution jobs id response))))))
+
+(defn- alert-execution!
+  "Notify that the execution exceeds the duration of its time monitor."
+  [{:keys [datomic notifier]} id]
+  (let [job (d/query datomic
+                     '{:find [(pull ?job [:job/name
+                                          {:job/time-monitor
+                                           [:time-monitor/notification-type]}]) .]
+                       :in [$ ?id]
+                       :where [[?job :job/executions ?id]]} id)]
+    (notifier/notify
+     notifier
+     (get-in job [:job/time-monitor :time-monitor/notification-type])
+     {:job-name (:job/name job)
+      :duration (get-in job [:job/time-monitor :time-monitor/duration])})))
+
+(defn execution-resource [{:keys [agents scheduler datomic notifier] :as jobs} id & [cmd]]
   (liberator/resource
    :available-media-types ["application/edn" "application/json"]
    :allowed-methods [:get :put]
@@ -869,58 +1899,59 @@
    :put! (fn [{parameters :edn execution :execution
                job-id :job-id app-id :app-id}]
            (case cmd
-             :abandon
-             (ag/abandon-execution
-              agents
-              execution
-              :on-success (fn [_]
-                            (ag/update-execution-by-id
-                             agents
-                             id
-                             :on-success (fn [response]
-                                           (save-execution jobs id response))
-                             :on-error (fn [error]
-                                         (log/error error)))))
-
-             :stop
-             (ag/stop-execution
-              agents
-              execution
-              :on-success (fn [_]
-                            (ag/update-execution-by-id
-                             agents
-                             id
-                             :on-success (fn [response]
-                                           (save-execution jobs id response)))))
+             :abandon (abandon-execution! jobs id execution)
+             :stop    (stop-execution! jobs id execution)
 
              :restart
              (let [execution-id (d/tempid :db.part/user)
-                   tempids (-> (d/transact
-                                datomic
-                                [{:db/id execution-id
-                                  :job-execution/batch-status :batch-status/unrestarted
-                                  :job-execution/create-time (java.util.Date.)
-                                  :job-execution/agent (:job-execution/agent execution)
-                                  :job-execution/job-parameters (pr-str (or parameters {}))}
-                                 [:db/add job-id :job/executions execution-id]])
-                               :tempids)]
-               {:execution-id (d/resolve-tempid datomic tempids execution-id)})
-
-             :alert
-             (let [job (d/query datomic
-                                '{:find [(pull ?job [:job/name
-                                                     {:job/time-monitor
-                                                      [:time-monitor/notification-type]}]) .]
-                                  :in [$ ?id]
-                                  :where [[?job :job/executions ?id]]} id)]
-               (notification/send
-                (get-in job [:job/time-monitor :time-monitor/notification-type])
-                {:job-name (:job/name job)
-                 :duration (get-in job [:job/time-monitor :time-monitor/duration])}))
+                   tx-result (d/transact
+                              datomic
+                              [{:db/id execution-id
+                                :job-execution/batch-status :batch-status/unrestarted
+                                :job-execution/create-time (java.util.Date.)
+                                :job-execution/agent (:job-execution/agent execution)
+                                :job-execution/job-parameters (pr-str (or parameters {}))}
+                               [:db/add job-id :job/executions execution-id]])
+                   resolved-execution-id (d/resolve-tempid datomic (:tempids tx-result) execution-id)]
+               (await-registry jobs tx-result)
+               {:execution-id resolved-execution-id})
+
+             :alert (alert-execution! jobs id)
              nil))
    :handle-ok (fn [ctx]
                 (find-execution jobs id))))
 
+(defn execute-scheduled
+  "Start an execution of the scheduled job.
+  Conflicts are checked in the registry of active executions instead of the database.
+  It returns false when the job has an execution in conflict."
+  [jobs job-id job-name]
+  (if (some conflict-statuses (vals (active-executions jobs job-id)))
+    false
+    (do (start-execution jobs job-name job-id {})
+        true)))
+
+(defn execution-service
+  "The execution service for Quartz jobs, which skips the resources."
+  [{:keys [datomic] :as jobs}]
+  (reify ExecutionService
+    (execute [_ job-id app-name job-name]
+      (log/debug "execute scheduled job" app-name job-name)
+      (execute-scheduled jobs job-id job-name))
+    (command [_ execution-id command]
+      (let [cmd (keyword command)
+            execution (when (#{:stop :abandon} cmd)
+                        (d/pull datomic
+                                '[:*
+                                  {:job-execution/agent
+                                   [:db/id :agent/instance-id]}]
+                                execution-id))]
+        (case cmd
+          :abandon (abandon-execution! jobs execution-id execution)
+          :stop    (stop-execution! jobs execution-id execution)
+          :alert   (alert-execution! jobs execution-id)
+          (log/warn "Unknown command of a time-keeper:" command))))))
+
 (defn test-executions-resource [{:keys [agents datomic apps] :as jobs}]
   (liberator/resource
    :available-media-types ["application/edn" "application/json"]
@@ -933,20 +1964,50 @@
    :available-media-types ["application/edn" "application/json"]
    :allowed-methods [:get :delete]
    :exists? (fn [_]
-              (get @(:test-executions jobs) id))
+              (when-let [state (cache/lookup @(:test-executions jobs) id)]
+                {:state state}))
    :delete! (fn [_]
               (swap! (:test-executions jobs) dissoc id))
    :handle-ok (fn [ctx]
-                (get @(:test-executions jobs) id))))
+                (:state ctx))))
 
-(defrecord Jobs []
+(defrecord Jobs [datomic]
   component/Lifecycle
 
   (start [component]
-    (assoc component :test-executions (atom {})))
+    (let [component (assoc component
+                           :test-executions (atom (cache/ttl-cache-factory {} :ttl (:test-execution-ttl component)))
+                           :test-execution-index (atom (cache/ttl-cache-factory {} :ttl (:test-execution-ttl component)))
+                           :test-execution-seq (atom 0)
+                           :chain-lock (Object.)
+                           :execution-registry (atom {:loaded? false :t -1})
+                           :registry-lock (Object.)
+                           :step-execution-index (atom {})
+                           :notification-rules (atom {}))]
+      (d/listen-tx datomic ::execution-registry #(track-tx-report component %))
+      (load-registry component)
+      (d/listen-tx datomic ::notification-rules #(invalidate-notification-rules component %))
+      (scheduler/register-execution-service (:scheduler component) (execution-service component))
+      (recover-time-keepers component)
+      component))
 
   (stop [component]
-    (dissoc component :list-resource :entry-resource)))
+    (when (:execution-registry component)
+      (d/unlisten-tx datomic ::execution-registry)
+      (d/unlisten-tx datomic ::notification-rules)
+      (scheduler/register-execution-service (:scheduler component) nil))
+    (dissoc component :list-resource :entry-resource :execution-registry :notification-rules
+            :step-execution-index :test-executions :test-execution-index)))
 
 (defn jobs-component [options]
-  (map->Jobs options))
+  (map->Jobs (meta-merge {:import-chunk-size 100
+                          :delete-batch-size 100
+                          :delete-throttle 100
+                          :bulk-batch-size 100
+                          :bulk-concurrency 8
+                          :bulk-command-timeout 30000
+                          :sweep-batch-size 500
+                          :test-execution-ttl (* 60 60 1000)
+                          :test-execution-wait 10000
+                          :catch-up-timeout 1000}
+                         options)))
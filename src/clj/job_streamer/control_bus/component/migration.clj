@@ -121,6 +121,41 @@
     (d/transact datomic (concat add-query version)))
   (log/info "Succeeded migration-v5."))
 
+(defn- migration-v6 [datomic dbschemas]
+  (log/info "Start migration-v6.")
+  (let [schema (s/generate-schema (nth dbschemas 3))
+        version [{:db/id (find-schema-id datomic) :schema/version 6}]]
+    (d/transact datomic (concat schema version)))
+  (log/info "Succeeded migration-v6."))
+
+(defn- migration-v7 [datomic dbschemas]
+  (log/info "Start migration-v7.")
+  (let [schema (s/generate-schema (nth dbschemas 4))
+        version [{:db/id (find-schema-id datomic) :schema/version 7}]]
+    (d/transact datomic (concat schema version)))
+  (log/info "Succeeded migration-v7."))
+
+(defn- migration-v8 [datomic dbschemas]
+  (log/info "Start migration-v8.")
+  (let [schema (s/generate-schema (nth dbschemas 5))
+        version [{:db/id (find-schema-id datomic) :schema/version 8}]]
+    (d/transact datomic (concat schema version)))
+  (log/info "Succeeded migration-v8."))
+
+(defn- migration-v9 [datomic dbschemas]
+  (log/info "Start migration-v9.")
+  (let [schema (s/generate-schema (nth dbschemas 6))
+        version [{:db/id (find-schema-id datomic) :schema/version 9}]]
+    (d/transact datomic (concat schema version)))
+  (log/info "Succeeded migration-v9."))
+
+(defn- migration-v10 [datomic dbschemas]
+  (log/info "Start migration-v10.")
+  (let [schema (s/generate-schema (nth dbschemas 7))
+        version [{:db/id (find-schema-id datomic) :schema/version 10}]]
+    (d/transact datomic (concat schema version)))
+  (log/info "Succeeded migration-v10."))
+
 (defrecord Migration [datomic dbschemas]
   component/Lifecycle
 
@@ -148,6 +183,21 @@
     (when (= 4 (find-schema-version datomic))
       (migration-v5 datomic))
 
+    (when (= 5 (find-schema-version datomic))
+      (migration-v6 datomic dbschemas))
+
+    (when (= 6 (find-schema-version datomic))
+      (migration-v7 datomic dbschemas))
+
+    (when (= 7 (find-schema-version datomic))
+      (migration-v8 datomic dbschemas))
+
+    (when (= 8 (find-schema-version datomic))
+      (migration-v9 datomic dbschemas))
+
+    (when (= 9 (find-schema-version datomic))
+      (migration-v10 datomic dbschemas))
+
     (log/info "schema version" (find-schema-version datomic))
     component)
 
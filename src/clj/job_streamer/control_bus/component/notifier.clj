@@ -0,0 +1,206 @@
+(ns job-streamer.control-bus.component.notifier
+  "Delivers notifications through a durable local outbox.
+  Notifications are journaled before delivery, duplicates in a window are coalesced,
+  and failed deliveries are retried with backoff."
+  (:require [clojure.tools.logging :as log]
+            [clojure.java.io :as io]
+            [clojure.edn :as edn]
+            [clojure.core.async :refer [chan go-loop alt! timeout thread <! close!]]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            [job-streamer.control-bus.notification :as notification])
+  (:import [java.io File FileOutputStream OutputStreamWriter BufferedWriter]))
+
+(defn- coalesce-key [type message]
+  [type (select-keys message [:job-name :batch-status :exit-status])])
+
+(defn- apply-journal-entry [state [op x]]
+  (case op
+    :enqueue  (assoc-in state [:pending (:id x)] x)
+    :coalesce (if (get-in state [:pending x])
+                (update-in state [:pending x :count] inc)
+                state)
+    :ack      (-> state
+                  (update-in [:pending] dissoc x)
+                  (update-in [:acked] inc))
+    state))
+
+(defn- replay-journal
+  "Restore pending notifications from the journal.
+  A broken line at the end (written at a crash) is ignored."
+  [^File journal-file]
+  (let [state {:pending {} :acked 0 :recent {} :backoff {}}
+        state (if (.exists journal-file)
+                (with-open [rdr (io/reader journal-file)]
+                  (reduce (fn [state line]
+                            (try
+                              (apply-journal-entry state (edn/read-string line))
+                              (catch Exception e
+                                (log/warn "Skip a broken journal entry:" line)
+                                (reduced state))))
+                          state
+                          (line-seq rdr)))
+                state)]
+    (assoc state :seq-no (reduce max 0 (map :seq (vals (:pending state)))))))
+
+(defn- open-journal [^File journal-file append?]
+  (let [out (FileOutputStream. journal-file (boolean append?))]
+    {:out out
+     :writer (BufferedWriter. (OutputStreamWriter. out "UTF-8"))}))
+
+(defn- sync-journal!
+  "Flush the journal and force it to the disk, so that an entry survives a crash of the host."
+  [{:keys [^java.io.Writer writer ^FileOutputStream out]}]
+  (.flush writer)
+  (.sync (.getFD out)))
+
+(defn- journal! [{:keys [journal]} entry]
+  (let [{:keys [^java.io.Writer writer] :as j} @journal]
+    (.write writer (str (pr-str entry) "\n"))
+    (sync-journal! j)))
+
+(defn notify
+  "Put a notification into the outbox.
+  A notification which has the same type, job name and status as a pending
+  one within `coalesce-window` is coalesced into it. One which follows a delivered one
+  within the window is held as a follow-up, which is delivered with the count of them
+  when the window ends."
+  [{:keys [state lock coalesce-window] :as notifier} type message]
+  (let [k (coalesce-key type message)
+        now (System/currentTimeMillis)]
+    (locking lock
+      (let [{:keys [pending recent seq-no]} @state]
+        (if-let [same (->> (vals pending)
+                           (filter #(and (= (:key %) k)
+                                         (< (- now (:enqueued-at %)) coalesce-window)))
+                           first)]
+          (do (journal! notifier [:coalesce (:id same)])
+              (swap! state apply-journal-entry [:coalesce (:id same)]))
+          (let [delivered-at (get recent k)
+                entry (cond-> {:id (str (java.util.UUID/randomUUID))
+                               :seq (inc (or seq-no 0))
+                               :type type
+                               :message message
+                               :key k
+                               :count 1
+                               :enqueued-at now}
+                        (some-> delivered-at (> (- now coalesce-window)))
+                        (assoc :follow-up? true
+                               :not-before (+ delivered-at coalesce-window)))]
+            (journal! notifier [:enqueue entry])
+            (swap! state #(-> %
+                              (apply-journal-entry [:enqueue entry])
+                              (assoc :seq-no (:seq entry))))))))))
+
+(defn- ack! [{:keys [state lock] :as notifier} {:keys [id type key]}]
+  (locking lock
+    (journal! notifier [:ack id])
+    (swap! state #(-> %
+                      (apply-journal-entry [:ack id])
+                      (assoc-in [:recent key] (System/currentTimeMillis))
+                      (update-in [:backoff] dissoc type)))))
+
+(defn- backoff! [{:keys [state initial-backoff max-backoff]} type]
+  (swap! state update-in [:backoff type]
+         (fn [{:keys [attempts] :or {attempts 0}}]
+           (let [delay (min max-backoff (* initial-backoff (bit-shift-left 1 (min attempts 30))))]
+             (log/warn "Notification delivery failed:" type "Retry after" delay "ms")
+             {:attempts (inc attempts)
+              :next-at (+ (System/currentTimeMillis) delay)}))))
+
+(defn- compact!
+  "Rewrite the journal with pending notifications only."
+  [{:keys [state lock journal ^File journal-file] :as notifier}]
+  (locking lock
+    (let [tmp (File. (str (.getPath journal-file) ".tmp"))
+          {:keys [^java.io.Writer writer] :as j} (open-journal tmp false)]
+      (try
+        (doseq [entry (sort-by :seq (vals (:pending @state)))]
+          (.write writer (str (pr-str [:enqueue entry]) "\n")))
+        (sync-journal! j)
+        (finally
+          (.close writer)))
+      (.close ^java.io.Writer (:writer @journal))
+      (.renameTo tmp journal-file)
+      (reset! journal (open-journal journal-file true))
+      (swap! state assoc :acked 0))))
+
+(defn- deliver-one [{:keys [request-timeout]} type message]
+  (let [{:keys [status error]} (deref (notification/send type message)
+                                      request-timeout
+                                      {:error :timeout})]
+    (and (nil? error) status (< status 300))))
+
+(defn flush-outbox
+  "Deliver pending notifications grouped by their types.
+  A failure of a type suspends only the type until its backoff expires.
+  Follow-ups wait until the coalesce window of the delivered one ends."
+  [{:keys [state batch-size coalesce-window compact-threshold] :as notifier}]
+  (let [now (System/currentTimeMillis)
+        {:keys [pending backoff]} @state]
+    (doseq [[type entries] (->> (vals pending)
+                                (filter #(<= (:not-before % 0) now))
+                                (sort-by :seq)
+                                (group-by :type))
+            :when (<= (get-in backoff [type :next-at] 0) now)]
+      (loop [[entry & more] (take batch-size entries)]
+        (when entry
+          (if (deliver-one notifier type
+                           (cond-> (:message entry)
+                             (or (:follow-up? entry) (> (:count entry) 1))
+                             (assoc :repeated (:count entry))))
+            (do (ack! notifier entry)
+                (recur more))
+            (backoff! notifier type)))))
+    (swap! state update-in [:recent]
+           #(into {} (filter (fn [[_ t]] (> t (- now coalesce-window))) %)))
+    (when (> (:acked @state) compact-threshold)
+      (compact! notifier))))
+
+(defn pending-count [{:keys [state]}]
+  (count (:pending @state)))
+
+(defrecord Notifier [outbox-file flush-interval]
+  component/Lifecycle
+
+  (start [component]
+    (if (:state component)
+      component
+      (let [journal-file (io/file outbox-file)
+            _ (some-> journal-file .getAbsoluteFile .getParentFile .mkdirs)
+            state (atom (replay-journal journal-file))
+            component (assoc component
+                             :journal-file journal-file
+                             :state state
+                             :lock (Object.)
+                             :journal (atom (open-journal journal-file true))
+                             :control-ch (chan))
+            main-loop (go-loop []
+                        (alt!
+                          (:control-ch component) nil
+                          (timeout flush-interval) (do (<! (thread
+                                                            (try
+                                                              (flush-outbox component)
+                                                              (catch Throwable t
+                                                                (log/error t "Notification failure")))))
+                                                       (recur))))]
+        (log/info "Pending notifications:" (pending-count component))
+        (assoc component :main-loop main-loop))))
+
+  (stop [component]
+    (when-let [control-ch (:control-ch component)]
+      (close! control-ch))
+    (when-let [journal (:journal component)]
+      (.close ^java.io.Writer (:writer @journal)))
+    (dissoc component :main-loop :control-ch :state :journal :lock)))
+
+(defn notifier-component [options]
+  (map->Notifier (meta-merge {:outbox-file "outbox/notifications.edn"
+                              :flush-interval 1000
+                              :batch-size 100
+                              :coalesce-window (* 60 1000)
+                              :initial-backoff 1000
+                              :max-backoff (* 5 60 1000)
+                              :request-timeout 10000
+                              :compact-threshold 1000}
+                             options)))
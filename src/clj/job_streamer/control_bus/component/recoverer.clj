@@ -5,21 +5,17 @@
             [clojure.core.async :refer [go-loop <! timeout close!]]
             (job-streamer.control-bus.component [datomic :as d]
                                                 [agents :as ag]
+                                                [dispatcher :as dispatcher]
                                                 [jobs :as jobs])))
 
 (defprotocol IRecoverer
   (update-job-status [this]))
 
-(defn- running-jobs [datomic]
-  (d/query datomic
-           '{:find [[?execution ...]]
-             :where [(or [?execution :job-execution/batch-status :batch-status/starting]
-                         [?execution :job-execution/batch-status :batch-status/started]
-                         [?execution :job-execution/batch-status :batch-status/stopping]
-                         [?execution :job-execution/batch-status :batch-status/unknown])
-                     [?job :job/executions ?execution]
-                     [?app :application/jobs ?job]
-                     [?app :application/name]]}))
+(def ^:private running-statuses
+  #{:batch-status/starting
+    :batch-status/started
+    :batch-status/stopping
+    :batch-status/unknown})
 
 (defrecord Recoverer []
   component/Lifecycle
@@ -41,20 +37,24 @@
     (dissoc component :main-loop))
 
   IRecoverer
-  (update-job-status [{:keys [datomic agents jobs]}]
-    (let [execution-ids (running-jobs datomic)]
+  (update-job-status [{:keys [datomic agents jobs dispatcher]}]
+    (let [execution-ids (jobs/executions-in-status jobs running-statuses)]
       (doseq [execution-id execution-ids]
         (let [execution (d/pull datomic
                                 '[{:job-execution/agent [:agent/instance-id]
                                    :job-execution/batch-status [:db/ident]}
                                   :job-execution/execution-id] execution-id)
-              agt (first (filter #(= (:agent/instance-id %)
-                                     (get-in execution [:job-execution/agent :agent/instance-id])) (ag/available-agents agents)))]
-          (if agt
+              instance-id (get-in execution [:job-execution/agent :agent/instance-id])
+              agt (first (filter #(= (:agent/instance-id %) instance-id) (ag/available-agents agents)))]
+          (cond
+            agt
             (ag/update-execution agt (:job-execution/execution-id execution)
                                  :on-success (fn [response]
                                                (log/debug "Update execution " response)
                                                (jobs/save-execution jobs execution-id response)))
+
+            ;; The agent may be connected to another control bus, which updates the execution.
+            (dispatcher/owns-orphan-agent? dispatcher instance-id)
             (d/transact datomic
                         [{:db/id execution-id
                           :job-execution/batch-status :batch-status/unknown}])))))))
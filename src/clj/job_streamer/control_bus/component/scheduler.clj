@@ -1,5 +1,6 @@
 (ns job-streamer.control-bus.component.scheduler
   (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
             [clojure.tools.logging :as log]
             [com.stuartsierra.component :as component]
             [liberator.core :as liberator]
@@ -7,13 +8,172 @@
             [clojure.string :as str]
             [bouncer.core :as b]
             [bouncer.validators :as v]
-            (job-streamer.control-bus [util :refer [parse-body]])
+            [meta-merge.core :refer [meta-merge]]
+            (job-streamer.control-bus [util :refer [parse-body]]
+                                      [timing-wheel :as timing-wheel])
             (job-streamer.control-bus.component [datomic :as d]))
-  (:import [net.unit8.job_streamer.control_bus JobStreamerExecuteJob TimeKeeperJob HolidayAndWeeklyCalendar CronAlternativeScheduleBuilder]
-           (org.quartz TriggerBuilder JobBuilder CronScheduleBuilder DateBuilder DateBuilder$IntervalUnit
-                       TriggerKey TriggerUtils CronExpression
-                       Trigger$TriggerState)
-           [org.quartz.impl StdSchedulerFactory]))
+  (:import [net.unit8.job_streamer.control_bus JobStreamerExecuteJob TimeKeeperJob ExecutionService HolidayAndWeeklyCalendar CronAlternativeScheduleBuilder]
+           (org.quartz TriggerBuilder JobBuilder CronScheduleBuilder SimpleScheduleBuilder
+                       JobKey TriggerKey TriggerUtils CronExpression Trigger JobDetail
+                       Trigger$TriggerState ObjectAlreadyExistsException)
+           [org.quartz.utils Key]
+           [org.quartz.impl.matchers GroupMatcher]
+           [org.quartz.impl StdSchedulerFactory]
+           (org.quartz.listeners SchedulerListenerSupport TriggerListenerSupport)
+           [java.util Date Properties]
+           [java.sql DriverManager]))
+
+;; Index of upcoming fire times.
+;; It is refreshed by Quartz listeners when a trigger fires or is (re)scheduled,
+;; and when a calendar changes, so that reading fire times doesn't compute them.
+
+(def fire-time-count 5)
+
+(defn- key-job-id
+  "Get the job id from the key of a job or its trigger, or nil for others like time-keepers."
+  [prefix ^Key k]
+  (let [key-name (.getName k)]
+    (when (.startsWith key-name prefix)
+      (try
+        (Long/parseLong (subs key-name (count prefix)))
+        (catch NumberFormatException _ nil)))))
+
+(defn- remove-fire-times [index job-id]
+  (-> index
+      (update-in [:timeline] #(reduce disj % (for [^Date t (get-in index [:by-job job-id :times])]
+                                                [(.getTime t) job-id])))
+      (update-in [:by-job] dissoc job-id)))
+
+(defn- refresh-fire-times
+  "Compute upcoming fire times of the job and replace them in the index."
+  [{:keys [scheduler fire-time-index fire-time-lock]} job-id]
+  (locking fire-time-lock
+    (let [trigger-key (TriggerKey. (str "trigger-" job-id))
+          ^Trigger trigger (when (= (.getTriggerState scheduler trigger-key) Trigger$TriggerState/NORMAL)
+                             (.getTrigger scheduler trigger-key))
+          calendar-name (some-> trigger .getCalendarName)
+          times (when trigger
+                  (vec (TriggerUtils/computeFireTimes trigger
+                                                      (some->> calendar-name (.getCalendar scheduler))
+                                                      fire-time-count)))]
+      (swap! fire-time-index
+             (fn [index]
+               (cond-> (remove-fire-times index job-id)
+                 trigger (-> (assoc-in [:by-job job-id] {:times times :calendar calendar-name})
+                             (update-in [:timeline] into (for [^Date t times] [(.getTime t) job-id])))))))))
+
+(defn- refresh-calendar-jobs
+  "Refresh fire times of jobs modified by the calendar."
+  [{:keys [fire-time-index] :as scheduler} calendar-name]
+  (doseq [[job-id {:keys [calendar]}] (:by-job @fire-time-index)
+          :when (= calendar calendar-name)]
+    (refresh-fire-times scheduler job-id)))
+
+(defn- fire-time-listeners [component]
+  (let [refresh (fn [trigger-key]
+                  (when-let [job-id (key-job-id "trigger-" trigger-key)]
+                    (refresh-fire-times component job-id)))
+        refresh-all (fn []
+                      (doseq [job-id (keys (:by-job @(:fire-time-index component)))]
+                        (refresh-fire-times component job-id)))]
+    {:scheduler-listener
+     (proxy [SchedulerListenerSupport] []
+       ;; scheduleJobs notifies only that jobs are added.
+       (jobAdded [^JobDetail job-detail]
+         (when-let [job-id (key-job-id "job-" (.getKey job-detail))]
+           (refresh-fire-times component job-id)))
+       ;; deleteJobs notifies only that jobs are deleted.
+       (jobDeleted [job-key]
+         (when-let [job-id (key-job-id "job-" job-key)]
+           (refresh-fire-times component job-id)))
+       (jobScheduled [^Trigger trigger] (refresh (.getKey trigger)))
+       (jobUnscheduled [trigger-key] (refresh trigger-key))
+       (triggerFinalized [^Trigger trigger] (refresh (.getKey trigger)))
+       (triggerPaused [trigger-key] (refresh trigger-key))
+       (triggerResumed [trigger-key] (refresh trigger-key))
+       (triggersPaused [_] (refresh-all))
+       (triggersResumed [_] (refresh-all)))
+     :trigger-listener
+     (proxy [TriggerListenerSupport] []
+       (getName [] "fire-time-index")
+       (triggerFired [^Trigger trigger _] (refresh (.getKey trigger)))
+       (triggerMisfired [^Trigger trigger] (refresh (.getKey trigger))))}))
+
+
+;; Spreading fires.
+;; Jobs which are scheduled at the same time are delayed by an offset in their jitter window,
+;; and launched at most `max-fire-rate` per second, so that they don't hit agents all at once.
+;; The offset is derived from the job id, so jobs fire in the same order every time.
+;; A delayed fire is a one-shot trigger of the job, so it's kept in the store like other triggers.
+
+(defn jitter-offset
+  "The delay of the job in its jitter window (seconds), in milliseconds."
+  [job-id jitter-window]
+  (if (and jitter-window (pos? jitter-window))
+    (mod (hash job-id) (* jitter-window 1000))
+    0))
+
+(defn- fire-jitter-window [{:keys [calendar-jitter default-jitter-window]} jitter-window calendar-name]
+  (or jitter-window
+      (some->> calendar-name (get @calendar-jitter))
+      default-jitter-window))
+
+(defn- acquire-fire-slot
+  "Wait for the next slot of `max-fire-rate` per second in the thread of the fire."
+  [{:keys [max-fire-rate fire-slot]}]
+  (when max-fire-rate
+    (let [interval (long (/ 1000.0 max-fire-rate))
+          slot (swap! fire-slot #(max (System/currentTimeMillis) (+ % interval)))
+          wait (- slot (System/currentTimeMillis))]
+      (when (pos? wait)
+        (Thread/sleep wait)))))
+
+(defn- schedule-jittered-fire
+  "Fire the job again at `due` by a one-shot trigger without a jitter window.
+  The trigger is named by the scheduled time, so a fire which is recovered doesn't delay it twice.
+  It's held while the schedule of the job is paused."
+  [{:keys [scheduler]} job-id ^long scheduled ^long due]
+  (let [trigger (.. (TriggerBuilder/newTrigger)
+                    (withIdentity (str "jitter-" job-id "-" scheduled))
+                    (forJob (str "job-" job-id))
+                    (usingJobData "jitter-window" (long 0))
+                    (startAt (Date. due))
+                    (withSchedule (.withMisfireHandlingInstructionFireNow (SimpleScheduleBuilder/simpleSchedule)))
+                    (build))]
+    (try
+      (.scheduleJob scheduler trigger)
+      (when (= (.getTriggerState scheduler (TriggerKey. (str "trigger-" job-id))) Trigger$TriggerState/PAUSED)
+        (.pauseTrigger scheduler (.getKey trigger)))
+      (catch ObjectAlreadyExistsException _
+        (log/debug "The fire of" job-id "at" scheduled "is already delayed.")))))
+
+(defn submit-fire
+  "Launch a fire of the job, or delay it by its offset in the jitter window.
+  The jitter window of the job precedes the one of its calendar."
+  [scheduler job-id ^Date scheduled-time jitter-window calendar-name ^Runnable launch]
+  (let [offset (jitter-offset job-id (fire-jitter-window scheduler jitter-window calendar-name))
+        scheduled (if scheduled-time (.getTime scheduled-time) (System/currentTimeMillis))]
+    (if (zero? offset)
+      (do (acquire-fire-slot scheduler)
+          (.run launch))
+      (schedule-jittered-fire scheduler job-id scheduled (+ scheduled offset)))))
+
+(defn register-execution-service
+  "Register the execution service which Quartz sets to jobs, or remove it when `service` is nil.
+  A clustered scheduler acquires triggers only while the service is registered,
+  so that the node doesn't take fires which it can't run."
+  [{:keys [scheduler cluster]} service]
+  (when scheduler
+    (if service
+      (do
+        (.put (.getContext scheduler) "executionService" service)
+        (when cluster
+          (.start scheduler)
+          (log/info "joined the cluster of schedulers as" (.getSchedulerInstanceId scheduler))))
+      (do
+        (when cluster
+          (.standby scheduler))
+        (.remove (.getContext scheduler) "executionService")))))
 
 (defn- make-trigger [job-id cron-notation calendar-name substitution?]
   (let [builder (.. (TriggerBuilder/newTrigger)
@@ -25,60 +185,224 @@
       (.withSchedule builder (CronScheduleBuilder/cronSchedule cron-notation)))
     (.build builder)))
 
-(defn time-keeper [{:keys [scheduler datomic host port]}
-                   execution-id duration action]
-  (let [[app-name job-name] (d/query datomic
-                                     '{:find [[?app-name ?job-name]]
-                                       :in [$ ?execution-id]
-                                       :where [[?app :application/name ?app-name]
-                                               [?app :application/jobs ?job]
-                                               [?job :job/name ?job-name]
-                                               [?job :job/executions ?execution-id]]} execution-id)
+(defn- make-job-detail [host port job-id app-name job-name & [jitter-window]]
+  (let [builder (.. (JobBuilder/newJob)
+                    (ofType JobStreamerExecuteJob)
+                    (withIdentity (str "job-" job-id))
+                    (usingJobData "app-name" app-name)
+                    (usingJobData "job-name" job-name)
+                    (usingJobData "host" host)
+                    (usingJobData "port" (long port)))]
+    (when jitter-window
+      (.usingJobData builder "jitter-window" (long jitter-window)))
+    (.build builder)))
+
+(defn- schedule-time-keeper
+  "Keep the time-keeper as a one-shot trigger in the clustered store, so that it runs on only one node
+  and another node runs it when the node which set it has gone. Setting it again replaces the trigger."
+  [{:keys [scheduler]} execution-id due action]
+  (let [key-name (str "time-keeper-" execution-id)
+        job-detail (.. (JobBuilder/newJob)
+                       (ofType TimeKeeperJob)
+                       (withIdentity key-name)
+                       (usingJobData "execution-id" (long execution-id))
+                       (usingJobData "command" (name action))
+                       (requestRecovery)
+                       (build))
         trigger (.. (TriggerBuilder/newTrigger)
-                    (startAt (DateBuilder/futureDate duration DateBuilder$IntervalUnit/MINUTE))
-                    (build))
-        job-deail (.. (JobBuilder/newJob)
-                      (ofType TimeKeeperJob)
-                      (withIdentity (str "time-keeper-" execution-id))
-                      (usingJobData "app-name" app-name)
-                      (usingJobData "job-name" job-name)
-                      (usingJobData "execution-id" execution-id)
-                      (usingJobData "command" (name action))
-                      (usingJobData "host" host)
-                      (usingJobData "port" (long port))
-                      (build))]
-    (.scheduleJob scheduler job-deail trigger)))
-
-(defn schedule [{:keys [datomic scheduler host port]} job-id cron-notation calendar-name substitution?]
+                    (withIdentity key-name)
+                    (startAt (Date. (long due)))
+                    (withSchedule (.withMisfireHandlingInstructionFireNow (SimpleScheduleBuilder/simpleSchedule)))
+                    (build))]
+    (.scheduleJob scheduler job-detail #{trigger} true)))
+
+(defn persistent-time-keepers?
+  "Whether time-keepers are kept in the clustered store, so that they don't have to be recovered at startup."
+  [{:keys [cluster]}]
+  (some? cluster))
+
+(defn time-keeper
+  "Run the action of the time monitor on the execution after `duration` minutes from `since` (or now)."
+  [{:keys [time-keepers time-keeper-lock] :as component} execution-id duration action & [^Date since]]
+  (let [since (if since (.getTime since) (System/currentTimeMillis))
+        due (+ since (* duration 60 1000))]
+    (if (persistent-time-keepers? component)
+      (schedule-time-keeper component execution-id due action)
+      (locking time-keeper-lock
+        (swap! time-keepers timing-wheel/add-timer execution-id due action)))))
+
+(defn cancel-time-keeper
+  "Cancel the time-keeper of the execution, when the execution has finished."
+  [{:keys [scheduler time-keepers time-keeper-lock] :as component} execution-id]
+  (if (persistent-time-keepers? component)
+    (when scheduler
+      (.deleteJob scheduler (JobKey. (str "time-keeper-" execution-id))))
+    (when time-keepers
+      (locking time-keeper-lock
+        (swap! time-keepers timing-wheel/cancel-timer execution-id)))))
+
+(defn- run-time-keeper [{:keys [scheduler]} execution-id action]
+  (if-let [^ExecutionService service (.get (.getContext scheduler) "executionService")]
+    (try
+      (.command service execution-id (name action))
+      (catch Exception e
+        (log/error e "Failed to run the time-keeper of" execution-id)))
+    (log/warn "The execution service isn't available for the time-keeper of" execution-id)))
+
+(defn- start-time-keepers
+  "Start a thread which advances the wheel of time-keepers every tick, and runs expired ones."
+  [{:keys [time-keepers time-keeper-lock time-keeper-tick] :as component}]
+  (doto (Thread. ^Runnable
+                 (fn []
+                   (try
+                     (loop []
+                       (Thread/sleep (- time-keeper-tick (mod (System/currentTimeMillis) time-keeper-tick)))
+                       (let [expired (locking time-keeper-lock
+                                       (let [[wheel expired] (timing-wheel/advance @time-keepers
+                                                                                   (System/currentTimeMillis))]
+                                         (reset! time-keepers wheel)
+                                         expired))]
+                         (doseq [[execution-id action] expired]
+                           (run-time-keeper component execution-id action)))
+                       (recur))
+                     (catch InterruptedException _)))
+                 "job-streamer-time-keepers")
+    (.setDaemon true)
+    (.start)))
+
+;; Clustering.
+;; With `:cluster`, jobs, triggers, calendars and time-keepers are kept in a JDBC store shared by control buses.
+;; Quartz locks a row of the store to acquire triggers, so that each fire happens on only one node,
+;; and another node takes over triggers of a node which stops checking in.
+
+(def ^:private cluster-defaults
+  {:driver "org.h2.Driver"
+   :checkin-interval 7500
+   :thread-count 10
+   :initialize-schema? true
+   :refresh-interval 60000})
+
+(defn- cluster-properties
+  "Properties of StdSchedulerFactory for the clustered JDBC store."
+  [{:keys [url driver user password checkin-interval thread-count max-connections]}]
+  (doto (Properties.)
+    (.setProperty "org.quartz.scheduler.instanceName" "JobStreamerScheduler")
+    (.setProperty "org.quartz.scheduler.instanceId" "AUTO")
+    (.setProperty "org.quartz.threadPool.class" "org.quartz.simpl.SimpleThreadPool")
+    (.setProperty "org.quartz.threadPool.threadCount" (str thread-count))
+    (.setProperty "org.quartz.jobStore.class" "org.quartz.impl.jdbcjobstore.JobStoreTX")
+    (.setProperty "org.quartz.jobStore.driverDelegateClass" "org.quartz.impl.jdbcjobstore.StdJDBCDelegate")
+    (.setProperty "org.quartz.jobStore.dataSource" "scheduler")
+    (.setProperty "org.quartz.jobStore.misfireThreshold" "60000")
+    (.setProperty "org.quartz.jobStore.isClustered" "true")
+    (.setProperty "org.quartz.jobStore.clusterCheckinInterval" (str checkin-interval))
+    ;; Acquire triggers within the lock, because concurrent updates of the state of a trigger
+    ;; can both succeed in H2. H2 doesn't block on SELECT ... FOR UPDATE either, so the lock is taken by UPDATE.
+    (.setProperty "org.quartz.jobStore.acquireTriggersWithinLock" "true")
+    (.setProperty "org.quartz.jobStore.lockHandler.class" "org.quartz.impl.jdbcjobstore.UpdateLockRowSemaphore")
+    (.setProperty "org.quartz.dataSource.scheduler.driver" driver)
+    (.setProperty "org.quartz.dataSource.scheduler.URL" url)
+    (.setProperty "org.quartz.dataSource.scheduler.user" (or user ""))
+    (.setProperty "org.quartz.dataSource.scheduler.password" (or password ""))
+    ;; Quartz recommends connections for every thread and a few for cluster management.
+    (.setProperty "org.quartz.dataSource.scheduler.maxConnections" (str (or max-connections (+ thread-count 3))))))
+
+(defn- initialize-cluster-store
+  "Create tables of the JDBC store for H2 unless they exist. Every node can run it at startup."
+  [{:keys [url driver user password]}]
+  (Class/forName driver)
+  (with-open [conn (DriverManager/getConnection url (or user "") (or password ""))
+              stmt (.createStatement conn)]
+    (doseq [sql (-> (io/resource "job_streamer/control_bus/quartz_tables_h2.sql")
+                    slurp
+                    (str/replace #"(?m)^--.*$" "")
+                    (str/split #";"))
+            :when (not (str/blank? sql))]
+      (.execute stmt sql))))
+
+(defn- new-scheduler [cluster]
+  (if cluster
+    (do
+      (when (:initialize-schema? cluster)
+        (initialize-cluster-store cluster))
+      (.getScheduler (StdSchedulerFactory. (cluster-properties cluster))))
+    (.getScheduler (StdSchedulerFactory.))))
+
+(defn- read-calendar-jitter [datomic]
+  (->> (d/query datomic
+                '{:find [?name ?window]
+                  :where [[?calendar :calendar/name ?name]
+                          [?calendar :calendar/jitter-window ?window]]})
+       (into {})))
+
+(defn- refresh-cluster-state
+  "Refresh what other nodes may have changed, fire times of every trigger in the store and jitter windows of calendars."
+  [{:keys [scheduler datomic fire-time-index calendar-jitter] :as component}]
+  (doseq [job-id (into (set (keep #(key-job-id "trigger-" %)
+                                  (.getTriggerKeys scheduler (GroupMatcher/anyTriggerGroup))))
+                       (keys (:by-job @fire-time-index)))]
+    (refresh-fire-times component job-id))
+  (reset! calendar-jitter (read-calendar-jitter datomic)))
+
+(defn- start-cluster-refresher
+  "Start a thread which refreshes the state changed by other nodes every `refresh-interval`."
+  [{:keys [cluster] :as component}]
+  (doto (Thread. ^Runnable
+                 (fn []
+                   (try
+                     (loop []
+                       (Thread/sleep (:refresh-interval cluster))
+                       (try
+                         (refresh-cluster-state component)
+                         (catch InterruptedException e
+                           (throw e))
+                         (catch Exception e
+                           (log/warn e "Failed to refresh the state of the cluster.")))
+                       (recur))
+                     (catch InterruptedException _)))
+                 "job-streamer-cluster-refresher")
+    (.setDaemon true)
+    (.start)))
+
+(defn schedule [{:keys [datomic scheduler host port]} job-id cron-notation calendar-name substitution? & [jitter-window]]
   (let [new-trigger (make-trigger job-id cron-notation calendar-name substitution?)
         job (d/pull datomic
                     '[:job/name
                       {:job/schedule
                        [:db/id
-                        :schedule/cron-notation]}] job-id)
+                        :schedule/cron-notation
+                        :schedule/active?
+                        :schedule/substitution?
+                        :schedule/jitter-window
+                        {:schedule/calendar [:calendar/name]}]}] job-id)
         app-name (d/query datomic
                           '{:find [?app-name .]
                             :in [$ ?job-id]
                             :where [[?app :application/name ?app-name]
                                     [?app :application/jobs ?job-id]]} job-id)
-        job-detail (.. (JobBuilder/newJob)
-                       (ofType JobStreamerExecuteJob)
-                       (withIdentity (str "job-" job-id))
-                       (usingJobData "app-name" app-name)
-                       (usingJobData "job-name" (:job/name job))
-                       (usingJobData "host" host)
-                       (usingJobData "port" (long port))
-                       (build))]
+        job-detail (make-job-detail host port job-id app-name (:job/name job) jitter-window)]
     (if-let [trigger (.getTrigger scheduler (TriggerKey. (str "trigger-" job-id)))]
-      (do
-        (.rescheduleJob scheduler (.getKey trigger) new-trigger)
-        (d/transact datomic
-                    [(merge {:db/id (get-in job [:job/schedule :db/id])
-                             :schedule/cron-notation cron-notation
-                             :schedule/active? true
-                             :schedule/substitution? substitution?}
-                            (when calendar-name
-                              {:schedule/calendar [:calendar/name calendar-name]})) ]))
+      (let [current (:job/schedule job)]
+        (if (= (:schedule/jitter-window current) jitter-window)
+          (.rescheduleJob scheduler (.getKey trigger) new-trigger)
+          (.scheduleJob scheduler job-detail #{new-trigger} true))
+        (when-not (and (= (:schedule/cron-notation current) cron-notation)
+                       (true? (:schedule/active? current))
+                       (= (boolean (:schedule/substitution? current)) (boolean substitution?))
+                       (= (get-in current [:schedule/calendar :calendar/name]) calendar-name)
+                       (= (:schedule/jitter-window current) jitter-window))
+          (d/transact datomic
+                      (cond-> [(merge {:db/id (:db/id current)
+                                       :schedule/cron-notation cron-notation
+                                       :schedule/active? true
+                                       :schedule/substitution? substitution?}
+                                      (when calendar-name
+                                        {:schedule/calendar [:calendar/name calendar-name]})
+                                      (when jitter-window
+                                        {:schedule/jitter-window jitter-window}))]
+                        (and (:schedule/jitter-window current) (nil? jitter-window))
+                        (conj [:db/retract (:db/id current)
+                               :schedule/jitter-window (:schedule/jitter-window current)])))))
       (do
         (.scheduleJob scheduler job-detail new-trigger)
         (d/transact datomic
@@ -87,16 +411,103 @@
                              :schedule/active? true
                              :schedule/substitution? substitution?}
                             (when calendar-name
-                              {:schedule/calendar [:calendar/name calendar-name]}))
+                              {:schedule/calendar [:calendar/name calendar-name]})
+                            (when jitter-window
+                              {:schedule/jitter-window jitter-window}))
                          {:db/id job-id
                           :job/schedule #db/id[db.part/user -1]}])))))
 
+(defn schedule-all
+  "Register triggers of many jobs by one call.
+  Each entry is a map of `:job-id`, `:app-name`, `:job-name`, `:cron-notation`,
+  `:calendar-name`, `:substitution?`, `:active?` and optionally `:jitter-window`.
+  Unlike `schedule`, schedule entities must be transacted by the caller."
+  [{:keys [scheduler host port]} entries]
+  (when (not-empty entries)
+    (.scheduleJobs scheduler
+                   (->> entries
+                        (map (fn [{:keys [job-id app-name job-name cron-notation calendar-name substitution? jitter-window]}]
+                               [(make-job-detail host port job-id app-name job-name jitter-window)
+                                #{(make-trigger job-id cron-notation calendar-name substitution?)}]))
+                        (into {}))
+                   true)
+    (doseq [{:keys [job-id active?]} entries]
+      (when (false? active?)
+        (.pauseTrigger scheduler (TriggerKey. (str "trigger-" job-id)))))))
+
+(defn unschedule-all
+  "Remove jobs of many schedules with their triggers, including delayed fires, by one call."
+  [{:keys [scheduler]} job-ids]
+  (when (not-empty job-ids)
+    (.deleteJobs scheduler (mapv #(JobKey. (str "job-" %)) job-ids))))
+
+(defn- read-schedules
+  "Read every schedule with the names of its job and application in one query."
+  [datomic]
+  (->> (d/query datomic
+                '{:find [?job ?app-name ?job-name
+                         (pull ?schedule [:db/id
+                                          :schedule/cron-notation
+                                          :schedule/active?
+                                          :schedule/substitution?
+                                          :schedule/jitter-window
+                                          {:schedule/calendar [:calendar/name]}])]
+                  :where [[?job :job/schedule ?schedule]
+                          [?job :job/name ?job-name]
+                          [?app :application/jobs ?job]
+                          [?app :application/name ?app-name]]})
+       (map (fn [[job-id app-name job-name s]]
+              {:job-id job-id
+               :app-name app-name
+               :job-name job-name
+               :schedule-id (:db/id s)
+               :cron-notation (:schedule/cron-notation s)
+               :calendar-name (get-in s [:schedule/calendar :calendar/name])
+               :substitution? (:schedule/substitution? s)
+               :active? (:schedule/active? s)
+               :jitter-window (:schedule/jitter-window s)}))))
+
+(defn recover-schedules
+  "Register triggers of all schedules at startup.
+  Only schedules which lack their flags are written back.
+  A persistent store keeps its triggers with their fire and misfire states,
+  so only schedules missing from the store are registered, and triggers of removed schedules are deleted."
+  [{:keys [datomic scheduler] :as component}]
+  (let [{valid true invalid false} (group-by #(boolean (some-> (:cron-notation %)
+                                                              CronExpression/isValidExpression))
+                                             (read-schedules datomic))
+        incomplete (filter #(or (nil? (:active? %)) (nil? (:substitution? %))) valid)
+        stored (if (.. scheduler getMetaData isJobStoreSupportsPersistence)
+                 (set (keep #(key-job-id "trigger-" %)
+                            (.getTriggerKeys scheduler (GroupMatcher/anyTriggerGroup))))
+                 #{})]
+    (doseq [{:keys [job-id cron-notation]} invalid]
+      (log/warn "Can't recover schedule of" job-id ":" cron-notation))
+    (schedule-all component (->> valid
+                                 (remove #(stored (:job-id %)))
+                                 (map #(merge % {:active? (not (false? (:active? %)))
+                                                 :substitution? (boolean (:substitution? %))}))))
+    (unschedule-all component (remove (set (map :job-id valid)) stored))
+    (when (not-empty incomplete)
+      (d/transact datomic
+                  (for [{:keys [schedule-id active? substitution?]} incomplete]
+                    {:db/id schedule-id
+                     :schedule/active? (not (false? active?))
+                     :schedule/substitution? (boolean substitution?)})))
+    (log/info "Recovered schedules:" (count valid))))
+
+(defn- job-trigger-keys
+  "Keys of the schedule trigger and delayed fires of the job."
+  [scheduler job-id]
+  (map #(.getKey ^Trigger %) (.getTriggersOfJob scheduler (JobKey. (str "job-" job-id)))))
+
 (defn pause [{:keys [datomic scheduler]} job-id]
   (let [job (d/pull datomic
                     '[:job/id
                       {:job/schedule
                        [:db/id]}] job-id)]
-    (.pauseTrigger scheduler (TriggerKey. (str "trigger-" job-id)))
+    (doseq [trigger-key (job-trigger-keys scheduler job-id)]
+      (.pauseTrigger scheduler trigger-key))
     (d/transact datomic
                 [{:db/id (get-in job [:job/schedule :db/id])
                   :schedule/active? false}])))
@@ -106,7 +517,8 @@
                     '[:job/id
                       {:job/schedule
                        [:db/id]}] job-id)]
-    (.resumeTrigger scheduler (TriggerKey. (str "trigger-" job-id)))
+    (doseq [trigger-key (job-trigger-keys scheduler job-id)]
+      (.resumeTrigger scheduler trigger-key))
     (d/transact datomic
                 [{:db/id (get-in job [:job/schedule :db/id])
                   :schedule/active? true}])))
@@ -115,16 +527,45 @@
   (let [job (d/pull datomic
                     '[{:job/schedule
                        [:db/id]}] job-id)]
-    (.unscheduleJob scheduler (TriggerKey. (str "trigger-" job-id)))
+    (.deleteJob scheduler (JobKey. (str "job-" job-id)))
     (when-let [schedule (get-in job [:job/schedule :db/id])]
       (d/transact datomic [[:db.fn/retractEntity schedule]]))))
 
-(defn fire-times [{:keys [scheduler]} job-id]
-  (let [trigger-key (TriggerKey. (str "trigger-" job-id))
-        trigger-state (.getTriggerState scheduler trigger-key)
-        trigger (.getTrigger scheduler trigger-key)]
-    (when (= trigger-state Trigger$TriggerState/NORMAL)
-      (TriggerUtils/computeFireTimes trigger nil 5))))
+(defn fire-times
+  "Upcoming fire times of the job from the index.
+  It returns nil when the job isn't scheduled or is paused."
+  [{:keys [fire-time-index]} job-id]
+  (let [now (System/currentTimeMillis)]
+    (some->> (get-in @fire-time-index [:by-job job-id :times])
+             (drop-while #(< (.getTime ^Date %) now))
+             not-empty)))
+
+(defn upcoming-fires
+  "Upcoming fires of all jobs until the time, as pairs of a fire time and a job id in time order.
+  Each job has at most `fire-time-count` fires."
+  [{:keys [fire-time-index]} ^Date until]
+  (->> (subseq (:timeline @fire-time-index)
+               >= [(System/currentTimeMillis) Long/MIN_VALUE]
+               < [(.getTime until) Long/MIN_VALUE])
+       (map (fn [[t job-id]] [(Date. (long t)) job-id]))))
+
+(defn fire-times-between
+  "Compute fire times of all scheduled jobs in the range in parallel, with their calendars.
+  It returns a map of a job id to fire times. Paused jobs aren't included."
+  [{:keys [scheduler]} ^Date since ^Date until]
+  (->> (.getTriggerKeys scheduler (GroupMatcher/anyTriggerGroup))
+       (keep (fn [trigger-key]
+               (when-let [job-id (key-job-id "trigger-" trigger-key)]
+                 [job-id trigger-key])))
+       (pmap (fn [[job-id trigger-key]]
+               (when (= (.getTriggerState scheduler trigger-key) Trigger$TriggerState/NORMAL)
+                 (when-let [^Trigger trigger (.getTrigger scheduler trigger-key)]
+                   [job-id (vec (TriggerUtils/computeFireTimesBetween
+                                 trigger
+                                 (some->> (.getCalendarName trigger) (.getCalendar scheduler))
+                                 since until))]))))
+       (remove nil?)
+       (into {})))
 
 (defn validate-format [cron-notation]
   (CronExpression/validateExpression cron-notation))
@@ -140,24 +581,36 @@
      (let [[hh mm] (-> hh:mm-string (str/split #":") (#(map (fn [s] (Integer/parseInt s)) %)))]
       (* (+ (* hh 60) mm) 60000))))
 
-(defn add-calendar [{:keys [scheduler]} calendar]
+(defn- update-calendar-jitter [{:keys [calendar-jitter]} calendar-name jitter-window]
+  (if jitter-window
+    (swap! calendar-jitter assoc calendar-name jitter-window)
+    (swap! calendar-jitter dissoc calendar-name)))
+
+(defn add-calendar
+  "Add the calendar. With `replace?`, a calendar of the same name, which a persistent store may keep, is replaced."
+  [{:keys [scheduler] :as component} calendar & [replace?]]
+  (update-calendar-jitter component (:calendar/name calendar) (:calendar/jitter-window calendar))
   (let [holiday-calendar (HolidayAndWeeklyCalendar.)]
     (doseq [holiday (:calendar/holidays calendar)]
       (.addExcludedDate holiday-calendar holiday))
     (.setDaysExcluded holiday-calendar (boolean-array (:calendar/weekly-holiday calendar)))
     (.setDayStart holiday-calendar (to-ms-from-hh:mm (:calendar/day-start calendar)))
-    (.addCalendar scheduler (:calendar/name calendar) holiday-calendar false false)))
+    (.addCalendar scheduler (:calendar/name calendar) holiday-calendar (boolean replace?) false)))
 
-(defn delete-calendar [{:keys [scheduler]} calendar-name]
-  (.deleteCalendar scheduler calendar-name))
+(defn delete-calendar [{:keys [scheduler] :as component} calendar-name]
+  (.deleteCalendar scheduler calendar-name)
+  (update-calendar-jitter component calendar-name nil)
+  (refresh-calendar-jobs component calendar-name))
 
-(defn modify-calendar [{:keys [scheduler]} calendar]
+(defn modify-calendar [{:keys [scheduler] :as component} calendar]
+  (update-calendar-jitter component (:calendar/name calendar) (:calendar/jitter-window calendar))
   (let [holiday-calendar (HolidayAndWeeklyCalendar.)]
     (doseq [holiday (:calendar/holidays calendar)]
       (.addExcludedDate holiday-calendar holiday))
     (.setDaysExcluded holiday-calendar (boolean-array (:calendar/weekly-holiday calendar)))
     (.setDayStart holiday-calendar (to-ms-from-hh:mm (:calendar/day-start calendar)))
-    (.addCalendar scheduler (:calendar/name calendar) holiday-calendar true false)))
+    (.addCalendar scheduler (:calendar/name calendar) holiday-calendar true true)
+    (refresh-calendar-jobs component (:calendar/name calendar))))
 
 (defn entry-resource [{:keys [datomic] :as scheduler} job-id & [cmd]]
   (liberator/resource
@@ -177,7 +630,8 @@
             (schedule scheduler job-id
                       (:schedule/cron-notation s)
                       (get-in s [:schedule/calendar :calendar/name])
-                      (boolean (get-in s [:schedule/substitution?]))))
+                      (boolean (get-in s [:schedule/substitution?]))
+                      (:schedule/jitter-window s)))
    :put! (fn [ctx]
            (case cmd
              :pause  (pause  scheduler job-id)
@@ -190,36 +644,58 @@
   component/Lifecycle
 
   (start [component]
-    (let [scheduler (.getScheduler (StdSchedulerFactory.))]
+    (let [cluster (some->> (:cluster component) (merge cluster-defaults))
+          scheduler (new-scheduler cluster)
+          component (assoc component
+                           :cluster cluster
+                           :fire-time-index (atom {:by-job {} :timeline (sorted-set)})
+                           :fire-time-lock (Object.)
+                           :calendar-jitter (atom {})
+                           :fire-slot (atom 0)
+                           :time-keepers (atom (timing-wheel/new-wheel (:time-keeper-tick component) 60 4
+                                                                       (System/currentTimeMillis)))
+                           :time-keeper-lock (Object.))
+          {:keys [scheduler-listener trigger-listener]} (fire-time-listeners
+                                                         (assoc component :scheduler scheduler))]
+      (doto (.getListenerManager scheduler)
+        (.addSchedulerListener scheduler-listener)
+        (.addTriggerListener trigger-listener))
+      (.put (.getContext scheduler) "fireSubmitter" (partial submit-fire (assoc component :scheduler scheduler)))
       (doseq [calendar (d/query datomic
                                 '{:find [[(pull ?calendar [:*]) ...]]
                                   :where [[?calendar :calendar/name]]})]
         (add-calendar (assoc component :scheduler scheduler)
-                      (update-in calendar [:calendar/weekly-holiday] edn/read-string)))
-      (.start scheduler)
+                      (update-in calendar [:calendar/weekly-holiday] edn/read-string)
+                      true))
+      ;; A clustered scheduler starts when the execution service is registered.
+      (when-not cluster
+        (.start scheduler))
       (log/info "started scheduler.")
-      (let [schedules (d/query datomic
-                               '{:find [?job ?schedule]
-                                 :where [[?job :job/schedule ?schedule]]})]
-        (doseq [[job-id sched] schedules]
-          (let [s (d/pull datomic
-                          '[:schedule/cron-notation
-                            {:schedule/calendar [:calendar/name]}
-                            :schedule/substitution?]
-                          sched)]
-            (log/info "Recover schedule: " job-id)
-            (schedule (assoc component :scheduler scheduler)
-                      job-id
-                      (:schedule/cron-notation s)
-                      (get-in s [:schedule/calendar :calendar/name])
-                      (:schedule/substitution? s)))))
-      (assoc component :scheduler scheduler)))
+      (let [component (assoc component :scheduler scheduler)]
+        (recover-schedules component)
+        (when cluster
+          ;; Triggers kept in the store aren't added again, so index them here.
+          (refresh-cluster-state component))
+        (if cluster
+          (assoc component :cluster-refresher (start-cluster-refresher component))
+          (assoc component :time-keeper-thread (start-time-keepers component))))))
 
   (stop [component]
     (if-let [scheduler (:scheduler component)]
       (.shutdown scheduler)
       (log/info "stop scheduler."))
-    (dissoc component :scheduler)))
+    (when-let [^Thread thread (:time-keeper-thread component)]
+      (.interrupt thread))
+    (when-let [^Thread thread (:cluster-refresher component)]
+      (.interrupt thread))
+    (dissoc component :scheduler :fire-time-index :fire-time-lock
+            :calendar-jitter :fire-slot
+            :time-keepers :time-keeper-lock :time-keeper-thread
+            :cluster-refresher)))
 
 (defn scheduler-component [options]
-  (map->Scheduler options))
+  (map->Scheduler (meta-merge {:default-jitter-window 0
+                               :max-fire-rate nil
+                               :time-keeper-tick 1000
+                               :cluster nil}
+                              options)))
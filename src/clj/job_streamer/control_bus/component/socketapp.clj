@@ -21,17 +21,21 @@
    :on-success (fn [response]
                  (job/save-execution jobs id response))))
 
-(defmethod handle-command :start-step [{:keys [agents datomic]}
+(defmethod handle-command :start-step [{:keys [agents jobs datomic]}
                                        {:keys [id execution-id step-execution-id
                                                step-name instance-id]} ch]
   (log/debug "start-step" step-name execution-id step-execution-id)
-  (datomic/transact datomic
-                    [{:db/id #db/id[db.part/user -1]
-                      :step-execution/step-name step-name
-                      :step-execution/step-execution-id step-execution-id
-                      :step-execution/batch-status :batch-status/starting}
-                     [:db/add id
-                      :job-execution/step-executions  #db/id[db.part/user -1]]]))
+  (let [step-id (datomic/tempid :db.part/user)
+        tempids (-> (datomic/transact datomic
+                                      [{:db/id step-id
+                                        :step-execution/step-name step-name
+                                        :step-execution/step-execution-id step-execution-id
+                                        :step-execution/batch-status :batch-status/starting}
+                                       [:db/add id
+                                        :job-execution/step-executions step-id]])
+                    :tempids)]
+    (job/register-step-execution! jobs instance-id id step-execution-id
+                                  (datomic/resolve-tempid datomic tempids step-id))))
 
 (defmethod handle-command :progress-step [{:keys [agents jobs datomic]}
                                           {:keys [id execution-id step-execution-id
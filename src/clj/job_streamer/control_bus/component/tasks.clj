@@ -0,0 +1,88 @@
+(ns job-streamer.control-bus.component.tasks
+  "Runs long bulk operations in background and keeps their progress."
+  (:require [clojure.tools.logging :as log]
+            [clojure.core.async :refer [thread]]
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            [liberator.core :as liberator])
+  (:import [java.util UUID Date]))
+
+(defn- prune
+  "Remove finished tasks which are older than the retention."
+  [task-map retention]
+  (let [limit (- (System/currentTimeMillis) retention)]
+    (->> task-map
+         (remove (fn [[_ task]]
+                   (some-> (:task/finished-at task) (.getTime) (< limit))))
+         (into {}))))
+
+(defn find-task [{:keys [task-map]} id]
+  (get @task-map id))
+
+(defn progress!
+  "Update the progress of the task.
+  `done` is the number of processed targets and `failures` are added to the report."
+  [{:keys [task-map]} id done & [failures]]
+  (swap! task-map update-in [id]
+         (fn [task]
+           (-> task
+               (update-in [:task/done] + done)
+               (update-in [:task/failures] into failures)))))
+
+(defn submit
+  "Run `f` in background and return the id of the task.
+  `f` is called with the task id, and can report the progress by `progress!`."
+  [{:keys [task-map retention] :as tasks} task-type total f]
+  (let [id (str (UUID/randomUUID))]
+    (swap! task-map
+           #(assoc (prune % retention) id
+                   {:task/id id
+                    :task/type task-type
+                    :task/status :running
+                    :task/total total
+                    :task/done 0
+                    :task/failures []
+                    :task/started-at (Date.)}))
+    (thread
+      (let [status (try
+                     (f id)
+                     :completed
+                     (catch Throwable t
+                       (log/error t "Task failure:" task-type id)
+                       (swap! task-map update-in [id :task/failures]
+                              conj {:message (.getMessage t)})
+                       :failed))]
+        (swap! task-map update-in [id] assoc
+               :task/status status
+               :task/finished-at (Date.))))
+    id))
+
+(defn entry-resource [tasks id]
+  (liberator/resource
+   :available-media-types ["application/edn" "application/json"]
+   :allowed-methods [:get]
+   :allowed? (fn [{{:keys [request-method identity]} :request}]
+               (let [permissions (:permissions identity)]
+                 (condp = request-method
+                   :get (:permission/read-job permissions)
+                   false)))
+   :exists? (fn [ctx]
+              (when-let [task (find-task tasks id)]
+                {:task task}))
+   :handle-ok (fn [ctx]
+                (:task ctx))))
+
+(defrecord Tasks []
+  component/Lifecycle
+
+  (start [component]
+    (if (:task-map component)
+      component
+      (assoc component :task-map (atom {}))))
+
+  (stop [component]
+    (dissoc component :task-map)))
+
+(defn tasks-component [options]
+  (map->Tasks (meta-merge {:retention (* 24 60 60 1000)}
+                          options)))
@@ -14,21 +14,28 @@
    :migration {:dbschemas model/dbschemas}
    :token {:session-timeout (* 30 60)}
    :auth {:access-control-allow-origin "http://localhost:3000"}
+   :archiver {:archive-dir "archive"}
    :datomic {:uri "datomic:free://localhost:4334/job-streamer"}})
 
 (def environ
   (let [port (some-> env :control-bus-port Integer.)
         datomic-uri (:datomic-uri env)
         access-control-allow-origin (some-> env :access-control-allow-origin)
-        session-timeout (some-> env :session-timeout Integer. (* 60))]
+        session-timeout (some-> env :session-timeout Integer. (* 60))
+        archive-dir (:archive-dir env)
+        scheduler-store-url (:scheduler-store-url env)]
   {:http {:port port}
    :app {:same-origin {:access-control-allow-origin access-control-allow-origin}
          :session-timeout {:timeout session-timeout}}
    :discoverer {:ws-port port}
    :scheduler  {:host "localhost"
-                :port port}
+                :port port
+                :cluster (when scheduler-store-url
+                           {:url scheduler-store-url})}
+   :dispatcher {:cluster (when scheduler-store-url {})}
    :token {:session-timeout session-timeout}
    :auth {:access-control-allow-origin access-control-allow-origin}
+   :archiver {:archive-dir archive-dir}
    :datomic {:uri datomic-uri}}))
 
 (def resource-file
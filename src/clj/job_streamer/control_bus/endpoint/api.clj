@@ -13,6 +13,11 @@
              [agents :refer [find-agent available-agents] :as ag]
              [scheduler :as scheduler]
              [calendar :as calendar]
+             [archiver :as archiver]
+             [tasks :as tasks]
+             [dispatcher :as dispatcher]
+             [analytics :as analytics]
+             [forecast :as forecast]
              [auth :as auth])
             (job-streamer.control-bus
              [model :as model]
@@ -20,7 +25,7 @@
              [validation :refer [validate]]
              [util :refer [parse-body]])))
 
-(defn api-endpoint [{:keys [jobs agents calendar scheduler apps auth datomic]}]
+(defn api-endpoint [{:keys [jobs agents calendar scheduler apps auth datomic archiver tasks analytics dispatcher forecast]}]
   (routes
    ;; Auth
    (ANY "/auth" request (auth/auth-resource auth))
@@ -38,8 +43,12 @@
    ;; Job
    (ANY "/:app-name/jobs" [app-name]
      (jobs/list-resource jobs app-name))
+   (ANY "/:app-name/jobs/import" [app-name]
+     (jobs/import-resource jobs app-name))
    (ANY "/:app-name/jobs/download" [app-name]
      (jobs/list-resource jobs app-name :download? true))
+   (ANY ["/:app-name/executions/:cmd" :cmd #"\w+"] [app-name cmd]
+     (jobs/bulk-resource jobs app-name (keyword cmd)))
    (ANY ["/:app-name/job/:job-name/settings/:cmd"
          :app-name #".*"
          :job-name #".*"
@@ -52,6 +61,9 @@
    (ANY ["/:app-name/job/:job-name/executions" :app-name #".*" :job-name #".*"]
        [app-name job-name]
      (jobs/executions-resource jobs app-name job-name))
+   (ANY ["/:app-name/job/:job-name/sweep" :app-name #".*" :job-name #".*"]
+       [app-name job-name]
+     (dispatcher/sweep-resource dispatcher app-name job-name))
 
    (ANY "/test-executions"
         []
@@ -78,6 +90,9 @@
    (ANY ["/:app-name/job/:job-name/execution/:id/:cmd" :app-name #".*" :job-name #".*" :id #"\d+" :cmd #"\w+"]
        [app-name job-name id cmd]
      (jobs/execution-resource jobs (Long/parseLong id) (keyword cmd)))
+   (ANY ["/:app-name/job/:job-name/archived-execution/:id" :app-name #".*" :job-name #".*" :id #"\d+"]
+       [app-name job-name id]
+     (archiver/archived-execution-resource archiver app-name job-name (Long/parseLong id)))
    (ANY ["/:app-name/job/:job-name" :app-name #".*" :job-name #".*"]
        [app-name job-name] (jobs/entry-resource jobs app-name job-name))
 
@@ -87,6 +102,13 @@
    (ANY "/calendars" [] (calendar/list-resource calendar))
    (ANY "/calendars/download" [] (calendar/list-resource calendar :download? true))
 
+   ;; Forecast
+   (ANY "/forecast" [] (forecast/forecast-resource forecast))
+
+   ;; Tasks
+   (ANY "/task/:task-id" [task-id]
+     (tasks/entry-resource tasks task-id))
+
    ;; Agents
    (ANY "/agents" [] (ag/list-resource agents))
    (ANY ["/agent/:instance-id/:cmd" :instance-id #"[A-Za-z0-9\-]+" :cmd #"\w+"]
@@ -105,6 +127,8 @@
      (apps/batch-components-resource apps app-name))
    (ANY "/:app-name/stats" [app-name]
      (apps/stats-resource apps app-name))
+   (ANY "/:app-name/analytics" [app-name]
+     (analytics/analytics-resource analytics app-name))
    (GET "/version" [] (-> {:body  (clojure.string/replace (str "\"" (slurp "VERSION") "\"") "\n" "")}
                                        (content-type "text/plain")))
    ;; Health Check
@@ -0,0 +1,32 @@
+(ns job-streamer.control-bus.histogram
+  "A mergeable histogram of durations.
+  Durations are counted in logarithmic bins, each of which covers 5% of the duration,
+  so that percentiles are within the error in a fixed size.")
+
+(def ^:private bin-base (Math/log 1.05))
+
+(defn- duration->bin [duration]
+  (long (Math/ceil (/ (Math/log (max duration 1)) bin-base))))
+
+(defn- bin->duration [bin]
+  (Math/round (Math/exp (* bin bin-base))))
+
+(defn add
+  "Count a duration (in milliseconds) in the histogram."
+  [histogram duration]
+  (update-in histogram [(duration->bin duration)] (fnil inc 0)))
+
+(defn merge-histograms [& histograms]
+  (apply merge-with + histograms))
+
+(defn percentile
+  "Find the duration at the percentile (0.0-1.0) from a histogram."
+  [histogram p]
+  (let [total (reduce + (vals histogram))]
+    (when (pos? total)
+      (let [rank (* total p)]
+        (loop [[[bin n] & more] (sort-by key histogram)
+               acc 0]
+          (if (or (empty? more) (>= (+ acc n) rank))
+            (bin->duration bin)
+            (recur more (+ acc n))))))))
@@ -107,5 +107,47 @@
            (fields
             [substitution? :boolean]))])
 
+(def schema-v6
+  [(schema job
+           (fields
+            [memoize-window :long]))
+   (schema job-execution
+           (fields
+            [memoized-from :ref]))])
+
+(def schema-v7
+  [(schema job
+           (fields
+            [upstreams :ref :many]))
+   (schema job-execution
+           (fields
+            [triggered-by :ref :many]))])
+
+(def schema-v8
+  [(schema schedule
+           (fields
+            [jitter-window :long]))
+   (schema calendar
+           (fields
+            [jitter-window :long]))])
+
+(def schema-v9
+  [(schema control-bus
+           (fields
+            [instance-id :uuid :unique-identity]
+            [heartbeat :instant]
+            [agents :uuid :many]))
+   (schema job-execution
+           (fields
+            [claimed-by :uuid]))])
+
+(def schema-v10
+  [(schema sweep
+           (fields
+            [concurrency :long]))
+   (schema job-execution
+           (fields
+            [sweep :ref]))])
+
 (def dbschemas
-  [schema-v1 schema-v2 schema-v4])
+  [schema-v1 schema-v2 schema-v4 schema-v6 schema-v7 schema-v8 schema-v9 schema-v10])
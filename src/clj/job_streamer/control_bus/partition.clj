@@ -0,0 +1,21 @@
+(ns job-streamer.control-bus.partition
+  "Rendezvous hashing to partition keys among nodes.
+  Each key is owned by the node with the highest score of the pair, so every node agrees on the owner
+  without coordination, and only keys of a node which joins or leaves move to another node."
+  (:import [clojure.lang Murmur3]))
+
+(defn- score [node k]
+  (Murmur3/hashUnencodedChars (str node "/" k)))
+
+(defn owner
+  "The node which owns the key, or nil if there is no node."
+  [nodes k]
+  (when-let [nodes (not-empty (sort (map str nodes)))]
+    (reduce (fn [a b] (if (< (score a k) (score b k)) b a)) nodes)))
+
+(defn owns?
+  "Whether the node owns the key. Every key is owned by the node when no node is known."
+  [nodes node k]
+  (if (empty? nodes)
+    true
+    (= (owner nodes k) (str node))))
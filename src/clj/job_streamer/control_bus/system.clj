@@ -11,6 +11,10 @@
             (job-streamer.control-bus.component
              [undertow   :refer [undertow-server]]
              [jobs       :refer [jobs-component]]
+             [job-index  :refer [job-index-component]]
+             [analytics  :refer [analytics-component]]
+             [forecast   :refer [forecast-component]]
+             [durations  :refer [durations-component]]
              [agents     :refer [agents-component]]
              [calendar   :refer [calendar-component]]
              [apps       :refer [apps-component]]
@@ -18,6 +22,9 @@
              [dispatcher :refer [dispatcher-component]]
              [discoverer :refer [discoverer-component]]
              [recoverer :refer [recoverer-component]]
+             [archiver   :refer [archiver-component]]
+             [tasks      :refer [tasks-component]]
+             [notifier   :refer [notifier-component]]
              [datomic    :refer [datomic-component]]
              [migration  :refer [migration-component]]
              [socketapp  :refer [socketapp-component]]
@@ -106,11 +113,18 @@
          :dispatcher (dispatcher-component (:dispatcher config))
          :discoverer (discoverer-component (:discoverer config))
          :recoverer  (recoverer-component  (:recoverer  config))
+         :archiver   (archiver-component   (:archiver   config))
+         :tasks      (tasks-component      (:tasks      config))
+         :notifier   (notifier-component   (:notifier   config))
          :scheduler  (scheduler-component  (:scheduler  config))
          :datomic    (datomic-component    (:datomic    config))
          :migration  (migration-component  (:migration  config))
          :apps       (apps-component       (:apps       config))
          :jobs       (jobs-component       (:jobs       config))
+         :job-index  (job-index-component  (:job-index  config))
+         :analytics  (analytics-component  (:analytics  config))
+         :forecast   (forecast-component   (:forecast   config))
+         :durations  (durations-component  (:durations  config))
          :agents     (agents-component     (:agents     config))
          :calendar   (calendar-component   (:calendar   config))
          :token      (token-provider-component (:token config))
@@ -118,14 +132,20 @@
         (component/system-using
          {:http      [:app :socketapp]
           :app       [:api :token]
-          :api       [:apps :calendar :agents :jobs :scheduler :auth :datomic]
+          :api       [:apps :calendar :agents :jobs :scheduler :auth :datomic :archiver :tasks :analytics :dispatcher :forecast]
           :socketapp [:datomic :jobs :agents]
-          :jobs      [:datomic :scheduler :agents :apps]
+          :jobs      [:datomic :migration :scheduler :agents :apps :tasks :notifier :job-index :durations]
+          :job-index [:datomic :migration]
+          :analytics [:datomic :migration]
+          :forecast  [:scheduler :durations :agents]
+          :durations [:datomic :migration]
           :agents    [:datomic]
           :apps      [:datomic :agents]
           :calendar  [:datomic :scheduler]
           :scheduler [:datomic :token]
           :migration [:datomic]
-          :recoverer [:datomic :jobs :agents]
+          :recoverer [:datomic :jobs :agents :dispatcher]
+          :archiver  [:datomic :jobs]
           :dispatcher [:datomic :apps :jobs :agents]
+          :discoverer [:dispatcher]
           :auth      [:token :datomic :apps]}))))
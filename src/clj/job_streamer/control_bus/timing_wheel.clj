@@ -0,0 +1,86 @@
+(ns job-streamer.control-bus.timing-wheel
+  "A hierarchical timing wheel.
+  Level 0 has a slot for each tick, and each slot of a higher level covers a round of the lower level.
+  Timers in a slot of a higher level are cascaded down to lower levels when the wheel reaches the slot,
+  so that adding, cancelling and expiring a timer don't depend on the number of timers.")
+
+(defn new-wheel
+  "Make an empty wheel of `levels` levels with `size` slots, which ticks every `tick-ms` milliseconds."
+  [tick-ms size levels now-ms]
+  {:tick-ms tick-ms
+   :size size
+   :levels levels
+   :tick (quot now-ms tick-ms)
+   :slots {}
+   :timers {}})
+
+(defn- bucket
+  "Find the level and the slot of the deadline tick, which must not be before the current tick."
+  [{:keys [size levels tick]} deadline]
+  (let [delta (- deadline tick)]
+    (loop [level 0 span 1]
+      (if (or (< delta (* span size)) (= level (dec levels)))
+        [level (mod (quot deadline span) size)]
+        (recur (inc level) (* span size))))))
+
+(defn- place [wheel id {:keys [deadline] :as timer}]
+  (let [b (bucket wheel deadline)]
+    (-> wheel
+        (update-in [:slots b] (fnil conj #{}) id)
+        (assoc-in [:timers id] (assoc timer :bucket b)))))
+
+(defn cancel-timer
+  "Remove the timer of the id. It does nothing when the timer doesn't exist."
+  [wheel id]
+  (if-let [b (get-in wheel [:timers id :bucket])]
+    (let [ids (disj (get-in wheel [:slots b]) id)]
+      (-> wheel
+          (update-in [:timers] dissoc id)
+          (update-in [:slots] #(if (empty? ids) (dissoc % b) (assoc % b ids)))))
+    wheel))
+
+(defn add-timer
+  "Add a timer which expires at `deadline-ms` with the payload.
+  A timer of the same id is replaced, and a past deadline expires at the next tick."
+  [{:keys [tick-ms tick] :as wheel} id deadline-ms payload]
+  (-> (cancel-timer wheel id)
+      (place id {:deadline (max (inc tick) (long (Math/ceil (/ deadline-ms (double tick-ms)))))
+                 :payload payload})))
+
+(defn- take-slot
+  "Remove timers in the slot, and return the wheel and pairs of an id and a timer."
+  [wheel b]
+  (let [ids (get-in wheel [:slots b])]
+    [(-> wheel
+         (update-in [:slots] dissoc b)
+         (update-in [:timers] #(apply dissoc % ids)))
+     (map (fn [id] [id (get-in wheel [:timers id])]) ids)]))
+
+(defn- tick-once [{:keys [size levels] :as wheel}]
+  (let [tick (inc (:tick wheel))
+        wheel (assoc wheel :tick tick)
+        ;; Cascade from the highest level, because cascaded timers may land on the slot of lower levels.
+        wheel (reduce (fn [wheel [level span]]
+                        (if (zero? (mod tick span))
+                          (let [[wheel timers] (take-slot wheel [level (mod (quot tick span) size)])]
+                            (reduce (fn [wheel [id timer]] (place wheel id timer)) wheel timers))
+                          wheel))
+                      wheel
+                      (reverse (for [level (range 1 levels)]
+                                 [level (long (Math/pow size level))])))
+        [wheel timers] (take-slot wheel [0 (mod tick size)])]
+    [wheel (map (fn [[id timer]] [id (:payload timer)]) timers)]))
+
+(defn advance
+  "Advance the wheel to the time.
+  It returns the wheel and expired timers as pairs of an id and a payload in order of their deadlines."
+  [{:keys [tick-ms] :as wheel} now-ms]
+  (let [target (quot now-ms tick-ms)]
+    (loop [wheel wheel expired []]
+      (if (< (:tick wheel) target)
+        (let [[wheel timers] (tick-once wheel)]
+          (recur wheel (into expired timers)))
+        [wheel expired]))))
+
+(defn timer-count [wheel]
+  (count (:timers wheel)))
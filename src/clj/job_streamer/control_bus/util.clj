@@ -4,10 +4,15 @@
             [clojure.java.io :as io]
             [datomic.api :as d]
             [ring.util.request :refer [content-type]]
+            [ring.util.io :refer [piped-input-stream]]
             [clojure.data.json :as json]
             [clojure.string :as string]
+            [clojure.walk :as walk]
+            [clj-time.coerce :as c]
+            [clj-time.format :as f]
             [crypto.random :as random])
-  (:import [org.jsoup Jsoup]))
+  (:import [org.jsoup Jsoup]
+           [java.util Date]))
 
 (defn to-int [n default-value]
   (if (nil? n)
@@ -107,6 +112,12 @@
     {:job/name (.attr job "id")
      :job/components (xml->components job)}))
 
+(defn canonicalize-parameters
+  "Order keys of parameters, so that equal parameters are compared as equal values."
+  [parameters]
+  (walk/postwalk #(if (map? %) (into (sorted-map-by (fn [k1 k2] (compare (str k1) (str k2)))) %) %)
+                 parameters))
+
 (defn- body-as-string [ctx]
   (if-let [body (get-in ctx [:request :body])]
     (condp instance? body
@@ -133,12 +144,59 @@
           "application/edn" [false {:edn (edn/read-string body)}]
           "application/xml" [false {:edn (xml->edn body)}]
           "application/json" [false {:edn (json->edn body)}]
+          "application/x-ndjson" [false {:edn (->> (string/split-lines body)
+                                                   (remove string/blank?)
+                                                   (mapv json->edn))}]
           false)
         false)
       (catch Exception e
         (log/error e "fail to parse edn.")
         {:message (format "IOException: %s" (.getMessage e))}))))
 
+(defn- json-compatible
+  "Convert keywords and dates to strings which can be read by `json->edn`."
+  [x]
+  (walk/postwalk (fn [v]
+                   (cond
+                     (keyword? v) (subs (str v) 1)
+                     (instance? Date v) (f/unparse (:date-time f/formatters) (c/from-date v))
+                     :else v))
+                 x))
+
+(defn- write-seq [^java.io.Writer w open sep close write-fn coll]
+  (.write w open)
+  (loop [coll coll, first? true]
+    (when-let [[x & more] (seq coll)]
+      (when-not first? (.write w sep))
+      (write-fn x)
+      (recur more false)))
+  (.write w close))
+
+(defn streaming-body
+  "Make a response body which writes elements of `coll` one by one
+  as they are realized, instead of building the whole string on the heap.
+  `fmt` is one of :edn (a vector), :json (an array) or :ndjson (one object per line)."
+  [coll fmt]
+  (piped-input-stream
+   (fn [out]
+     (with-open [w (io/writer out :encoding "UTF-8")]
+       (try
+         (case fmt
+           :json   (write-seq w "[" "," "]"
+                              #(json/write (json-compatible %) w :escape-slash false) coll)
+           :ndjson (write-seq w "" "" ""
+                              #(do (json/write (json-compatible %) w :escape-slash false)
+                                   (.write w "\n")) coll)
+           (write-seq w "[" "\n" "]"
+                      #(binding [*out* w] (pr %)) coll))
+         (catch Exception e
+           (log/error e "fail to write the response.")))))))
+
+(defn download-format
+  "Parse `format` parameter for downloading."
+  [fmt]
+  (get {"json" :json "ndjson" :ndjson} fmt :edn))
+
 (defn generate-token
   "Generates random string for anti-forgery-token."
   []
@@ -0,0 +1,261 @@
+package net.unit8.job_streamer.control_bus;
+
+import java.lang.reflect.Field;
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.quartz.CronExpression;
+
+/**
+ * A cron expression compiled to bitmasks of its fields.
+ *
+ * The next fire time is searched by arithmetic on epoch days and seconds of the wall clock,
+ * without creating java.util.Calendar. Expressions are parsed by Quartz and compiled once for each expression,
+ * and the compiled one is shared by triggers, because it doesn't depend on the time zone.
+ *
+ * Expressions with 'L', 'W' or '#', and times within a day of a change of the UTC offset,
+ * are evaluated by the CronExpression given to {@link #getTimeAfter(CronExpression, Date)}.
+ *
+ * @author kawasima
+ */
+public final class CompiledCronExpression {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    /** The value of '?' in the parsed fields of CronExpression. */
+    private static final Integer NO_SPEC = 98;
+    private static final int SECONDS_OF_DAY = 24 * 60 * 60;
+    /** 1970-01-01 is Thursday, which is 5 in the day-of-week of cron. */
+    private static final int EPOCH_DAY_OF_WEEK = 5;
+
+    private static final ConcurrentMap<String, CompiledCronExpression> CACHE =
+            new ConcurrentHashMap<String, CompiledCronExpression>();
+
+    private final String cronExpression;
+    private final boolean compiled;
+    private final long seconds;
+    private final long minutes;
+    private final long hours;
+    private final long daysOfMonth;
+    private final long months;
+    private final long daysOfWeek;
+    private final boolean dayOfWeekSpec;
+    private final BitSet years;
+
+    private CompiledCronExpression(String cronExpression) throws ParseException {
+        CronExpression parsed = new CronExpression(cronExpression);
+        this.cronExpression = cronExpression;
+
+        // CronExpression is final and doesn't expose the parsed fields, so read them once here.
+        boolean compiled;
+        long[] masks = new long[6];
+        boolean dayOfWeekSpec = false;
+        BitSet years = new BitSet();
+        try {
+            compiled = !(Boolean) field(parsed, "lastdayOfMonth")
+                    && !(Boolean) field(parsed, "nearestWeekday")
+                    && !(Boolean) field(parsed, "lastdayOfWeek")
+                    && (Integer) field(parsed, "nthdayOfWeek") == 0;
+            String[] names = {"seconds", "minutes", "hours", "daysOfMonth", "months", "daysOfWeek"};
+            int[][] ranges = {{0, 59}, {0, 59}, {0, 23}, {1, 31}, {1, 12}, {1, 7}};
+            for (int i = 0; i < names.length; i++) {
+                masks[i] = mask(integers(parsed, names[i]), ranges[i][0], ranges[i][1]);
+            }
+            dayOfWeekSpec = integers(parsed, "daysOfMonth").contains(NO_SPEC);
+            for (Integer year : integers(parsed, "years")) {
+                if (year >= 0 && year <= CronExpression.MAX_YEAR) years.set(year);
+            }
+        } catch (ReflectiveOperationException e) {
+            compiled = false;
+        } catch (SecurityException e) {
+            compiled = false;
+        }
+        this.compiled = compiled;
+        this.seconds = masks[0];
+        this.minutes = masks[1];
+        this.hours = masks[2];
+        this.daysOfMonth = masks[3];
+        this.months = masks[4];
+        this.daysOfWeek = masks[5];
+        this.dayOfWeekSpec = dayOfWeekSpec;
+        this.years = years;
+    }
+
+    private static Object field(CronExpression cronEx, String name) throws ReflectiveOperationException {
+        Field field = CronExpression.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(cronEx);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Integer> integers(CronExpression cronEx, String name) throws ReflectiveOperationException {
+        return (Set<Integer>) field(cronEx, name);
+    }
+
+    /**
+     * Get the compiled expression of the cron expression string.
+     *
+     * @throws IllegalArgumentException when the expression is invalid
+     */
+    public static CompiledCronExpression of(String cronExpression) {
+        CompiledCronExpression compiledCron = CACHE.get(cronExpression);
+        if (compiledCron == null) {
+            try {
+                compiledCron = new CompiledCronExpression(cronExpression);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("CronExpression '" + cronExpression + "' is invalid.", e);
+            }
+            CompiledCronExpression current = CACHE.putIfAbsent(cronExpression, compiledCron);
+            if (current != null) compiledCron = current;
+        }
+        return compiledCron;
+    }
+
+    public String getCronExpression() {
+        return cronExpression;
+    }
+
+    private static long mask(Set<Integer> values, int min, int max) {
+        long mask = 0;
+        for (Integer value : values) {
+            if (value >= min && value <= max) mask |= 1L << value;
+        }
+        return mask;
+    }
+
+    private static boolean has(long mask, int value) {
+        return (mask & (1L << value)) != 0;
+    }
+
+    /**
+     * Find the smallest value in the mask which is equal or greater than the given one, or -1 if none.
+     */
+    private static int next(long mask, int from) {
+        if (from >= 64) return -1;
+        long rest = mask & (-1L << from);
+        return rest == 0 ? -1 : Long.numberOfTrailingZeros(rest);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    /**
+     * The epoch day of the date in the proleptic Gregorian calendar.
+     */
+    private static long epochDay(long year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int dayOfWeek(long day) {
+        int w = (int) ((day + EPOCH_DAY_OF_WEEK - 1) % 7);
+        return (w < 0 ? w + 7 : w) + 1;
+    }
+
+    /**
+     * Find the first time of the day which matches the expression and isn't before the given seconds of the day,
+     * or -1 if none.
+     */
+    private int timeOfDay(int from) {
+        int h = from / 3600;
+        int m = from / 60 % 60;
+        int s = from % 60;
+        if (has(hours, h)) {
+            if (has(minutes, m)) {
+                int ns = next(seconds, s);
+                if (ns >= 0) return h * 3600 + m * 60 + ns;
+            }
+            int nm = next(minutes, m + 1);
+            if (nm >= 0) return h * 3600 + nm * 60 + next(seconds, 0);
+        }
+        int nh = next(hours, h + 1);
+        if (nh >= 0) return nh * 3600 + next(minutes, 0) * 60 + next(seconds, 0);
+        return -1;
+    }
+
+    /**
+     * Find the first time in seconds of the wall clock which matches the expression after the given one,
+     * or Long.MIN_VALUE if none.
+     */
+    private long localTimeAfter(long localSecond) {
+        long day = floorDiv(localSecond, SECONDS_OF_DAY);
+        int from = (int) (localSecond - day * SECONDS_OF_DAY) + 1;
+        if (from == SECONDS_OF_DAY) {
+            day++;
+            from = 0;
+        }
+        while (true) {
+            // Civil date of the epoch day
+            long z = day + 719468;
+            long era = floorDiv(z, 146097);
+            long dayOfEra = z - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int mp = (int) ((5 * dayOfYear + 2) / 153);
+            int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+            int month = mp < 10 ? mp + 3 : mp - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+            if (year > CronExpression.MAX_YEAR) return Long.MIN_VALUE;
+            if (year < 0 || !years.get((int) year)) {
+                int nextYear = years.nextSetBit((int) Math.max(year + 1, 0));
+                if (nextYear < 0) return Long.MIN_VALUE;
+                day = epochDay(nextYear, 1, 1);
+                from = 0;
+                continue;
+            }
+            if (!has(months, month)) {
+                int nextMonth = next(months, month + 1);
+                day = nextMonth < 0 ? epochDay(year + 1, 1, 1) : epochDay(year, nextMonth, 1);
+                from = 0;
+                continue;
+            }
+            boolean dayMatches = dayOfWeekSpec
+                    ? has(daysOfWeek, dayOfWeek(day))
+                    : has(daysOfMonth, dayOfMonth);
+            if (dayMatches) {
+                int time = timeOfDay(from);
+                if (time >= 0) return day * SECONDS_OF_DAY + time;
+            }
+            day++;
+            from = 0;
+        }
+    }
+
+    /**
+     * Returns the next time after the given time which matches the expression,
+     * in the time zone of the given CronExpression, which must be of the same expression.
+     * It's the same as {@link CronExpression#getTimeAfter(Date)}.
+     */
+    public Date getTimeAfter(CronExpression cronEx, Date afterTime) {
+        if (!compiled) return cronEx.getTimeAfter(afterTime);
+
+        TimeZone zone = cronEx.getTimeZone();
+        long after = afterTime.getTime();
+        int offset = zone.getOffset(after);
+        long local = localTimeAfter(floorDiv(after + offset, 1000));
+        if (local == Long.MIN_VALUE) return null;
+
+        long time = local * 1000 - offset;
+        // The wall clock is skipped or repeated around a change of the offset,
+        // so leave such a time to CronExpression.
+        if (offset % 1000 != 0
+                || zone.getOffset(time) != offset
+                || zone.getOffset(after - DAY) != offset
+                || zone.getOffset(after + DAY) != offset
+                || zone.getOffset(time - DAY) != offset
+                || zone.getOffset(time + DAY) != offset) {
+            return cronEx.getTimeAfter(afterTime);
+        }
+        return new Date(time);
+    }
+}
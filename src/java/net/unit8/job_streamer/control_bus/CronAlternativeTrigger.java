@@ -10,9 +10,12 @@ import java.util.Date;
 import java.util.TimeZone;
 
 public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> implements CronTrigger, CoreTrigger {
+    private static final long serialVersionUID = 1L;
+
     protected static final int YEAR_TO_GIVEUP_SCHEDULING_AT = CronExpression.MAX_YEAR;
 
     private CronExpression cronEx = null;
+    private transient CompiledCronExpression compiledCron = null;
     private Date startTime = null;
     private Date endTime = null;
     private Date nextFireTime = null;
@@ -38,6 +41,7 @@ public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> impleme
         TimeZone origTz = getTimeZone();
         this.cronEx = new CronExpression(cronExpression);
         this.cronEx.setTimeZone(origTz);
+        this.compiledCron = null;
     }
 
     /* (non-Javadoc)
@@ -54,6 +58,7 @@ public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> impleme
     public void setCronExpression(CronExpression cronExpression) {
         this.cronEx = cronExpression;
         this.timeZone = cronExpression.getTimeZone();
+        this.compiledCron = null;
     }
 
     /**
@@ -424,6 +429,11 @@ public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> impleme
         }
 
         Date now = new Date();
+        // Use gregorian only because the constant is based on Gregorian
+        java.util.Calendar giveUp = new java.util.GregorianCalendar();
+        giveUp.clear();
+        giveUp.set(YEAR_TO_GIVEUP_SCHEDULING_AT + 1, java.util.Calendar.JANUARY, 1);
+        long giveUpTime = giveUp.getTimeInMillis();
         while (nextFireTime != null && !calendar.isTimeIncluded(nextFireTime.getTime())) {
 
             nextFireTime = getFireTimeAfter(nextFireTime);
@@ -432,10 +442,7 @@ public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> impleme
                 break;
 
             //avoid infinite loop
-            // Use gregorian only because the constant is based on Gregorian
-            java.util.Calendar c = new java.util.GregorianCalendar();
-            c.setTime(nextFireTime);
-            if (c.get(java.util.Calendar.YEAR) > YEAR_TO_GIVEUP_SCHEDULING_AT) {
+            if (nextFireTime.getTime() >= giveUpTime) {
                 nextFireTime = null;
             }
 
@@ -533,8 +540,18 @@ public class CronAlternativeTrigger extends AbstractTrigger<CronTrigger> impleme
     //
     ////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * The expression is evaluated by the compiled one,
+     * which is shared by triggers of the same expression.
+     */
     protected Date getTimeAfter(Date afterTime) {
-        return (cronEx == null) ? null : cronEx.getTimeAfter(afterTime);
+        if (cronEx == null) {
+            return null;
+        }
+        if (compiledCron == null) {
+            compiledCron = CompiledCronExpression.of(cronEx.getCronExpression());
+        }
+        return compiledCron.getTimeAfter(cronEx, afterTime);
     }
 
     /**
@@ -0,0 +1,21 @@
+package net.unit8.job_streamer.control_bus;
+
+/**
+ * Starts and controls executions for Quartz jobs and time-keepers.
+ *
+ * The jobs component registers the implementation in the SchedulerContext as "executionService",
+ * and Quartz sets it to each job by its setter.
+ */
+public interface ExecutionService {
+    /**
+     * Start an execution of the scheduled job.
+     *
+     * @return false when the job has an active execution which conflicts with a new one
+     */
+    boolean execute(long jobId, String appName, String jobName);
+
+    /**
+     * Run a command of a time monitor ("stop", "abandon" or "alert") on the execution.
+     */
+    void command(long executionId, String command);
+}
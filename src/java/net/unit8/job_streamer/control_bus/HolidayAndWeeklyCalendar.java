@@ -1,34 +1,158 @@
 package net.unit8.job_streamer.control_bus;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.SortedSet;
+import java.util.TimeZone;
 import java.util.TreeSet;
 
-import org.joda.time.LocalTime;
 import org.quartz.Calendar;
 import org.quartz.impl.calendar.BaseCalendar;
 
 /**
+ * A calendar which excludes days of week and holidays.
+ *
+ * A day starts at <code>dayStart</code> milliseconds after midnight, so that a business day can run past midnight.
+ * Days are counted as epoch days, and excluded days are kept in a bitset,
+ * so that the next included day is found by scanning bits without creating java.util.Calendar.
+ *
  * @author kawasima
  */
 public class HolidayAndWeeklyCalendar extends BaseCalendar implements Calendar, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    /** 1970-01-01 is Thursday, which is 4 counted from Sunday. */
+    private static final int EPOCH_WEEKDAY = 4;
+
     private boolean[] excludeDays = new boolean[]{true, false, false, false, false, false, true};
     private TreeSet<Date> dates = new TreeSet<Date>();
     private Long dayStart = 0L;
 
+    private transient volatile Days days;
+
+    /**
+     * Excluded days computed from the settings.
+     * Holidays and weekdays between the first and the last holiday are in the bitset,
+     * and days out of it are excluded only by weekdays.
+     */
+    private static final class Days {
+        final TimeZone zone;
+        final int weekMask;
+        final long firstDay;
+        final int length;
+        final BitSet excluded;
+
+        Days(TimeZone zone, int weekMask, long firstDay, int length, BitSet excluded) {
+            this.zone = zone;
+            this.weekMask = weekMask;
+            this.firstDay = firstDay;
+            this.length = length;
+            this.excluded = excluded;
+        }
+
+        boolean isWeekdayExcluded(long day) {
+            return (weekMask & (1 << weekday(day))) != 0;
+        }
+
+        boolean isExcluded(long day) {
+            if (day >= firstDay && day < firstDay + length) {
+                return excluded.get((int) (day - firstDay));
+            }
+            return isWeekdayExcluded(day);
+        }
+
+        /**
+         * Find the first included day from the day. All weekdays must not be excluded.
+         */
+        long nextIncludedDay(long day) {
+            while (true) {
+                if (day < firstDay) {
+                    long limit = Math.min(day + 7, firstDay);
+                    for (; day < limit; day++) {
+                        if (!isWeekdayExcluded(day)) return day;
+                    }
+                } else if (day < firstDay + length) {
+                    int i = excluded.nextClearBit((int) (day - firstDay));
+                    if (i < length) return firstDay + i;
+                    day = firstDay + length;
+                } else {
+                    while (isWeekdayExcluded(day)) day++;
+                    return day;
+                }
+            }
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static int weekday(long day) {
+        int w = (int) ((day + EPOCH_WEEKDAY) % 7);
+        return w < 0 ? w + 7 : w;
+    }
+
+    private static long epochDay(TimeZone zone, long timeStamp) {
+        return floorDiv(timeStamp + zone.getOffset(timeStamp), DAY);
+    }
+
+    /**
+     * The time of midnight of the epoch day. A midnight skipped by daylight saving time becomes the time after the skip.
+     */
+    private static long midnight(TimeZone zone, long day) {
+        long local = day * DAY;
+        long utc = local - zone.getOffset(local - zone.getRawOffset());
+        int offset = zone.getOffset(utc);
+        return (local - offset == utc) ? utc : local - offset;
+    }
+
+    private Days days() {
+        Days current = days;
+        if (current != null) return current;
+
+        TimeZone zone = getTimeZone() != null ? getTimeZone() : TimeZone.getDefault();
+        int weekMask = 0;
+        for (int i = 0; i < 7 && i < excludeDays.length; i++) {
+            if (excludeDays[i]) weekMask |= 1 << i;
+        }
+
+        BitSet excluded = new BitSet();
+        long firstDay = 0;
+        int length = 0;
+        if (!dates.isEmpty()) {
+            firstDay = epochDay(zone, dates.first().getTime());
+            length = (int) (epochDay(zone, dates.last().getTime()) - firstDay + 1);
+            for (Date date : dates) {
+                excluded.set((int) (epochDay(zone, date.getTime()) - firstDay));
+            }
+            for (int i = 0; i < length; i++) {
+                if ((weekMask & (1 << weekday(firstDay + i))) != 0) excluded.set(i);
+            }
+        }
+        current = new Days(zone, weekMask, firstDay, length, excluded);
+        days = current;
+        return current;
+    }
+
+    private void invalidate() {
+        days = null;
+    }
+
+    private long businessDay(Days d, long timeStamp) {
+        return epochDay(d.zone, timeStamp - dayStart);
+    }
+
     @Override
     public boolean isTimeIncluded(long timeStamp) {
         // Test the base calendar first. Only if the base calendar not already
         // excludes the time/date, continue evaluating this calendar instance.
         if (!super.isTimeIncluded(timeStamp)) { return false; }
 
-        java.util.Calendar cl = createJavaCalendar(timeStamp - dayStart);
-        int wday = cl.get(java.util.Calendar.DAY_OF_WEEK);
-        Date lookFor = getStartOfDayJavaCalendar(timeStamp - dayStart).getTime();
-
-        return !(excludeDays[wday - 1]) && !(dates.contains(lookFor));
+        Days d = days();
+        return !d.isExcluded(businessDay(d, timeStamp));
     }
 
 
@@ -45,29 +169,28 @@ public class HolidayAndWeeklyCalendar extends BaseCalendar implements Calendar,
      */
     @Override
     public long getNextIncludedTime(long timeStamp) {
-        if (excludeDays[0] && excludeDays[1] && excludeDays[2] && excludeDays[3] &&
-                excludeDays[4] && excludeDays[5] && excludeDays[6]) {
+        Days d = days();
+        if (d.weekMask == 0x7f) {
             return 0;
         }
-        // Call base calendar implementation first
-        long baseTime = super.getNextIncludedTime(timeStamp);
-        if ((baseTime > 0) && (baseTime > timeStamp)) {
-            timeStamp = baseTime;
-        }
-
-        // Get timestamp for 00:00:00
-        java.util.Calendar cl = getStartOfDayJavaCalendar(timeStamp - dayStart);
-        int wday = cl.get(java.util.Calendar.DAY_OF_WEEK);
 
-        if (!excludeDays[wday - 1]) {
-            return timeStamp; // return the original value
-        }
+        while (true) {
+            // Call base calendar implementation first
+            long baseTime = super.getNextIncludedTime(timeStamp);
+            if ((baseTime > 0) && (baseTime > timeStamp)) {
+                timeStamp = baseTime;
+            }
 
-        while (!isTimeIncluded(cl.getTime().getTime())) {
-            cl.add(java.util.Calendar.DATE, 1);
+            long day = businessDay(d, timeStamp);
+            long includedDay = d.nextIncludedDay(day);
+            if (includedDay == day) {
+                return timeStamp;
+            }
+            timeStamp = midnight(d.zone, includedDay) + dayStart;
+            if (getBaseCalendar() == null) {
+                return timeStamp;
+            }
         }
-
-        return cl.getTime().getTime();
     }
 
     /**
@@ -83,6 +206,7 @@ public class HolidayAndWeeklyCalendar extends BaseCalendar implements Calendar,
         }
 
         excludeDays = weekDays;
+        invalidate();
     }
 
     /**
@@ -93,16 +217,14 @@ public class HolidayAndWeeklyCalendar extends BaseCalendar implements Calendar,
      */
     public void addExcludedDate(Date excludedDate) {
         Date date = getStartOfDayJavaCalendar(excludedDate.getTime()).getTime();
-        /*
-         * System.err.println( "HolidayCalendar.add(): date=" +
-         * excludedDate.toLocaleString());
-         */
         this.dates.add(date);
+        invalidate();
     }
 
     public void removeExcludedDate(Date dateToRemove) {
         Date date = getStartOfDayJavaCalendar(dateToRemove.getTime()).getTime();
         dates.remove(date);
+        invalidate();
     }
 
     /**
@@ -120,4 +242,19 @@ public class HolidayAndWeeklyCalendar extends BaseCalendar implements Calendar,
         this.dayStart = dayStart;
     }
 
+    @Override
+    public void setTimeZone(TimeZone timeZone) {
+        super.setTimeZone(timeZone);
+        invalidate();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object clone() {
+        HolidayAndWeeklyCalendar clone = (HolidayAndWeeklyCalendar) super.clone();
+        clone.excludeDays = excludeDays.clone();
+        clone.dates = (TreeSet<Date>) dates.clone();
+        clone.days = null;
+        return clone;
+    }
 }
@@ -0,0 +1,33 @@
+(ns job-streamer.control-bus.component.analytics-test
+  (:require [job-streamer.control-bus.component.analytics :as analytics]
+            [clojure.test :refer :all])
+  (:import [java.util Date]))
+
+(defn- execution [application agent status end-hour duration]
+  (let [end-time (* end-hour analytics/hour)]
+    {:application application
+     :agent agent
+     :batch-status status
+     :start-time (Date. (- end-time duration))
+     :end-time (Date. end-time)}))
+
+(defn- new-analytics [executions]
+  {:state (atom {:loaded? true
+                 :buckets (reduce #'analytics/add-execution (sorted-map) executions)})})
+
+(deftest aggregate
+  (let [a (new-analytics [(execution "default" "agent-1" :batch-status/completed 10 1000)
+                          (execution "default" "agent-1" :batch-status/failed 11 3000)
+                          (execution "default" "agent-2" :batch-status/completed 11 2000)
+                          (execution "default" "agent-2" :batch-status/completed 20 2000)
+                          (execution "other"   "agent-1" :batch-status/completed 11 2000)])
+        since (Date. (* 10 analytics/hour))
+        until (Date. (* 12 analytics/hour))]
+    (testing "Aggregate by application"
+      (is (= [{:application "default" :count 3 :failures 1 :executions-per-hour 1.5}]
+             (map #(select-keys % [:application :count :failures :executions-per-hour])
+                  (analytics/aggregate a "default" since until :application)))))
+    (testing "Aggregate by agent"
+      (is (= [["agent-1" 2 0.5] ["agent-2" 1 0.0]]
+             (map (juxt :agent :count :failure-rate)
+                  (analytics/aggregate a "default" since until :agent)))))))
@@ -0,0 +1,86 @@
+(ns job-streamer.control-bus.component.archiver-test
+  (:require [job-streamer.control-bus.component.archiver :as archiver]
+            [clojure.java.io :as io]
+            [clojure.test :refer :all])
+  (:import [java.io File]))
+
+(def day (* 24 60 60 1000))
+
+(defn- execution [id days-ago now]
+  {:db/id id
+   :job-execution/create-time (java.util.Date. (- now (* days-ago day)))
+   :job-execution/end-time    (java.util.Date. (- now (* days-ago day)))})
+
+(deftest find-policy
+  (let [policies [{:application "default" :max-count 10}
+                  {:application "default" :job "job1" :max-count 3}]]
+    (testing "A job policy takes precedence."
+      (is (= 3 (:max-count (archiver/find-policy policies "default" "job1")))))
+    (testing "Fall back to an application policy."
+      (is (= 10 (:max-count (archiver/find-policy policies "default" "job2")))))
+    (testing "No policy."
+      (is (nil? (archiver/find-policy policies "other" "job1"))))))
+
+(deftest expired-executions
+  (let [now (System/currentTimeMillis)
+        executions (map #(execution % % now) (range 1 6))]
+    (testing "max-count keeps the newest ones."
+      (is (= #{4 5}
+             (set (map :db/id (archiver/expired-executions {:max-count 3} executions now))))))
+    (testing "max-age-days"
+      (is (= #{3 4 5}
+             (set (map :db/id (archiver/expired-executions {:max-age-days 2} executions now))))))
+    (testing "Both conditions"
+      (is (= #{2 3 4 5}
+             (set (map :db/id (archiver/expired-executions {:max-count 1 :max-age-days 3} executions now))))))))
+
+(deftest write-and-read-records
+  (let [dir (doto (File/createTempFile "archive" "")
+              (.delete)
+              (.mkdirs))
+        archiver {:archive-dir (.getPath dir)
+                  :max-segment-size 1024
+                  :segment (atom 1)
+                  :index (atom {})}]
+    (try
+      (let [entries (->> (range 1 40)
+                         (partition-all 10)
+                         (mapcat (fn [ids]
+                                   (archiver/write-records
+                                    archiver
+                                    (map #(hash-map :db/id % :job-execution/exit-status (str "status" %)) ids))))
+                         doall)]
+        (testing "Segments are rolled over."
+          (is (< 1 @(:segment archiver))))
+        (testing "Each record can be read from its offset."
+          (doseq [[id segment offset] entries]
+            (is (= (str "status" id)
+                   (:job-execution/exit-status (archiver/read-record (.getPath dir) segment offset)))))))
+      (finally
+        (doseq [f (reverse (file-seq dir))]
+          (.delete f))))))
+
+(deftest archived-execution-resource
+  (let [dir (doto (File/createTempFile "archive" "")
+              (.delete)
+              (.mkdirs))
+        archiver {:archive-dir (.getPath dir)
+                  :max-segment-size 1024
+                  :segment (atom 1)
+                  :index (atom {})}
+        request {:request-method :get
+                 :identity {:permissions #{:permission/read-job}}
+                 :headers {"accept" "application/edn"}}]
+    (try
+      (#'archiver/append-index archiver
+                               (archiver/write-records archiver [{:db/id 1
+                                                                  :application/name "default"
+                                                                  :job/name "job1"}]))
+      (testing "The archived execution of the job is found."
+        (is (= 200 (:status ((archiver/archived-execution-resource archiver "default" "job1" 1) request)))))
+      (testing "The archived execution isn't found by another job."
+        (is (= 404 (:status ((archiver/archived-execution-resource archiver "default" "job2" 1) request))))
+        (is (= 404 (:status ((archiver/archived-execution-resource archiver "other" "job1" 1) request)))))
+      (finally
+        (doseq [f (reverse (file-seq dir))]
+          (.delete f))))))
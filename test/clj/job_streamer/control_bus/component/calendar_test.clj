@@ -132,7 +132,7 @@
       (let [request {:request-method :get
                     :identity {:permissions all-permissions}}
             response (handler request)]
-        (is (= "cal1" (-> response :body read-string first :calendar/name)))
+        (is (= "cal1" (-> response :body slurp read-string first :calendar/name)))
         (is (= "application/force-download; charset=utf-8"  ((:headers response) "Content-Type")))
         (is (= "attachment; filename=\"cals.edn\""  ((:headers response) "Content-disposition")))))
     (testing "before export and after import are same"
@@ -0,0 +1,36 @@
+(ns job-streamer.control-bus.component.dispatcher-test
+  (:require (job-streamer.control-bus.component [dispatcher :as dispatcher]
+                                                [datomic :as d])
+            [clojure.test :refer :all]))
+
+(deftest sweep-parameters
+  (testing "Every combination of values"
+    (is (= [{:date "2016-09-01" :region "jp"}
+            {:date "2016-09-01" :region "us"}
+            {:date "2016-09-02" :region "jp"}
+            {:date "2016-09-02" :region "us"}]
+           (dispatcher/sweep-parameters {:date ["2016-09-01" "2016-09-02"]
+                                         :region ["jp" "us"]}))))
+  (testing "A range of dates"
+    (is (= ["2016-08-30" "2016-08-31" "2016-09-01"]
+           (map :date (dispatcher/sweep-parameters {:date {:from "2016-08-30" :to "2016-09-01"}})))))
+  (testing "A single value is a constant"
+    (is (= [{:date "2016-09-01" :mode "full"}]
+           (dispatcher/sweep-parameters {:date ["2016-09-01"] :mode "full"})))))
+
+(deftest throttle-sweeps
+  (let [undispatched [[3 "<bpmn/>" {} 100 :none]
+                      [12 "<bpmn/>" {} 100 1]
+                      [11 "<bpmn/>" {} 100 1]
+                      [13 "<bpmn/>" {} 100 1]
+                      [21 "<bpmn/>" {} 100 2]]
+        throttle (fn [running]
+                   (with-redefs [d/query (fn [& _] running)
+                                 d/pull (fn [_ _ sweep-id] {:sweep/concurrency ({1 2 2 1} sweep-id)})]
+                     (map first (#'dispatcher/throttle-sweeps {} undispatched))))]
+    (testing "Executions of a sweep are taken in the order of creation up to its concurrency"
+      (is (= [3 11 12 21] (throttle []))))
+    (testing "Running executions are counted into the concurrency"
+      (is (= [3 11] (throttle [[1 1] [2 1]]))))
+    (testing "Nothing of a sweep is taken while it's full"
+      (is (= [3] (throttle [[1 5] [2 1]]))))))
@@ -0,0 +1,39 @@
+(ns job-streamer.control-bus.component.durations-test
+  (:require [job-streamer.control-bus.component.durations :as durations]
+            [clojure.test :refer :all]))
+
+(defn- new-durations [executions & [options]]
+  (let [d (durations/durations-component options)]
+    (assoc d :state (atom {:loaded? true
+                           :models (reduce #(#'durations/observe %1 (:alpha d) %2)
+                                           (#'durations/new-models (:max-parameter-models d))
+                                           executions)}))))
+
+(deftest estimate
+  (let [d (new-durations (concat (for [_ (range 10)] {:job-id 1 :parameters "{}" :duration 60000})
+                                 [{:job-id 1 :parameters "{}" :duration 600000}]
+                                 (for [_ (range 3)] {:job-id 1 :parameters "{:size 2}" :duration 120000})
+                                 [{:job-id 2 :parameters "{:size 3}" :duration 30000}]))]
+    (testing "An outlier doesn't take over the estimation."
+      (is (< 60000 (durations/estimate d 1 "{}") 300000))
+      (is (< 57000 (durations/percentile d 1 0.5 "{}") 63000)))
+    (testing "Parameters with enough samples have their own model."
+      (is (= 120000 (durations/estimate d 1 "{:size 2}"))))
+    (testing "Fall back to the model of the job."
+      (is (= 30000 (durations/estimate d 2 "{:size 3}")))
+      (is (= (durations/estimate d 1) (durations/estimate d 1 "{:size 4}"))))
+    (testing "Unknown job"
+      (is (= (* 5 60 1000) (durations/estimate d 3)))
+      (is (nil? (durations/percentile d 3 0.95))))))
+
+(deftest parameter-models
+  (testing "Parameters in another order share the model."
+    (let [d (new-durations (for [_ (range 3)] {:job-id 1 :parameters "{:a 1 :b 2}" :duration 120000}))]
+      (is (= 120000 (durations/estimate d 1 "{:b 2 :a 1}")))))
+  (testing "The least recently observed parameters are evicted beyond `max-parameter-models`."
+    (let [d (new-durations (for [size (range 5) _ (range 3)]
+                             {:job-id 1 :parameters (pr-str {:size size}) :duration (* (inc size) 1000)})
+                           {:max-parameter-models 2})]
+      (is (= 2 (count (get-in @(:state d) [:models :parameters]))))
+      (is (= 5000 (durations/estimate d 1 "{:size 4}")))
+      (is (= (durations/estimate d 1) (durations/estimate d 1 "{:size 0}"))))))
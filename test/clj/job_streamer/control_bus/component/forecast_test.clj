@@ -0,0 +1,20 @@
+(ns job-streamer.control-bus.component.forecast-test
+  (:require [job-streamer.control-bus.component.forecast :as forecast]
+            [clojure.test :refer :all])
+  (:import [java.util Date]))
+
+(def minute (* 60 1000))
+
+(deftest concurrency-curve
+  (let [since (Date. 0)
+        curve (forecast/concurrency-curve since (* 5 minute) 6
+                                          [[(Date. 0) (* 12 minute)]
+                                           [(Date. (* 6 minute)) (* 3 minute)]
+                                           [(Date. (* 28 minute)) (* 60 minute)]
+                                           [(Date. (* 40 minute)) minute]])]
+    (testing "Executions are counted in buckets where they run"
+      (is (= [1 2 1 0 0 1] (map :running curve)))
+      (is (= [1 1 0 0 0 1] (map :starts curve))))
+    (testing "Peaks are ranges above the capacity"
+      (is (= [{:from (Date. (* 5 minute)) :until (Date. (* 10 minute)) :max-running 2}]
+             (forecast/peaks curve 1 (* 5 minute)))))))
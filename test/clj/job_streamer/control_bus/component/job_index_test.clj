@@ -0,0 +1,65 @@
+(ns job-streamer.control-bus.component.job-index-test
+  (:require (job-streamer.control-bus.component [job-index :as job-index]
+                                                [datomic :refer [datomic-component] :as d]
+                                                [migration :refer [migration-component]])
+            (job-streamer.control-bus [model :as model]
+                                      [config :as config])
+            [com.stuartsierra.component :as component]
+            [meta-merge.core :refer [meta-merge]]
+            [clojure.test :refer :all]))
+
+(def test-config
+  {:datomic {:recreate? true
+             :uri "datomic:mem://test"}})
+
+(def config
+  (meta-merge config/defaults
+              config/resource-file
+              config/environ
+              test-config))
+
+(defn new-system [config]
+  (-> (component/system-map
+       :job-index (job-index/job-index-component (:job-index config))
+       :datomic   (datomic-component (:datomic config))
+       :migration (migration-component {:dbschemas model/dbschemas}))
+      (component/system-using
+       {:job-index [:datomic :migration]
+        :migration [:datomic]})
+      (component/start-system)))
+
+(defn- add-execution [datomic job-id]
+  (let [execution-id (d/tempid :db.part/user)
+        tempids (-> (d/transact datomic
+                                [{:db/id execution-id
+                                  :job-execution/batch-status :batch-status/completed
+                                  :job-execution/create-time (java.util.Date.)
+                                  :job-execution/start-time (java.util.Date.)
+                                  :job-execution/end-time (java.util.Date.)
+                                  :job-execution/exit-status "COMPLETED"}
+                                 [:db/add job-id :job/executions execution-id]])
+                    :tempids)]
+    (d/resolve-tempid datomic tempids execution-id)))
+
+(deftest follow-transactions
+  (let [{:keys [datomic job-index] :as system} (new-system config)]
+    (try
+      (let [job-id (d/tempid :db.part/user)
+            tempids (-> (d/transact datomic
+                                    [{:db/id job-id :job/name "daily-report"}
+                                     [:db/add [:application/name "default"] :application/jobs job-id]])
+                        :tempids)
+            job-id (d/resolve-tempid datomic tempids job-id)]
+        (testing "A new job is found"
+          (is (= [job-id] (job-index/search job-index "default" {:job-name ["report"]})))
+          (is (nil? (job-index/latest-execution job-index job-id))))
+        (let [first-id (add-execution datomic job-id)
+              second-id (add-execution datomic job-id)]
+          (testing "A new execution is the latest"
+            (is (= second-id (:db/id (job-index/latest-execution job-index job-id))))
+            (is (= [job-id] (job-index/search job-index "default" {:batch-status :batch-status/completed}))))
+          (testing "The previous one is the latest when the latest execution is deleted"
+            (d/transact datomic [[:db.fn/retractEntity second-id]])
+            (is (= first-id (:db/id (job-index/latest-execution job-index job-id)))))))
+      (finally
+        (component/stop-system system)))))
@@ -2,11 +2,16 @@
   (:require (job-streamer.control-bus.component [jobs :as jobs]
                                                 [apps :as apps]
                                                 [scheduler :as scheduler]
+                                                [tasks :as tasks]
+                                                [job-index :as job-index]
+                                                [durations :as durations]
+                                                [notifier :as notifier]
                                                 [datomic :refer [datomic-component] :as d]
                                                 [migration :refer [migration-component]])
             (job-streamer.control-bus [system :as system]
                                       [model :as model]
-                                      [config :as config])
+                                      [config :as config]
+                                      [util :as util])
             [com.stuartsierra.component :as component]
             [meta-merge.core :refer [meta-merge]]
             [clojure.test :refer :all]
@@ -32,10 +37,16 @@
        :apps    (apps/apps-component (:apps config))
        :jobs    (jobs/jobs-component (:jobs config))
        :scheduler (scheduler/scheduler-component (:scheduler config))
+       :tasks   (tasks/tasks-component (:tasks config))
+       :job-index (job-index/job-index-component (:job-index config))
+       :durations (durations/durations-component (:durations config))
+       :notifier (notifier/notifier-component {:outbox-file (str (java.io.File/createTempFile "outbox" ".edn"))})
        :datomic (datomic-component   (:datomic config))
        :migration (migration-component {:dbschemas model/dbschemas}))
       (component/system-using
-       {:jobs [:datomic :migration :scheduler]
+       {:jobs [:datomic :migration :scheduler :tasks :notifier :job-index :durations]
+        :job-index [:datomic :migration]
+        :durations [:datomic :migration]
         :apps [:datomic]
         :scheduler [:datomic]
         :migration [:datomic]})
@@ -142,7 +153,7 @@
         handler (-> (jobs/list-resource (:jobs system) "default" :download? true))]
     (testing "no jobs"
       (let [request {:request-method :get :identity {:permissions all-permissions}}]
-        (is (empty? (-> (handler request) :body read-string)))))
+        (is (empty? (-> (handler request) :body slurp read-string)))))
     (testing "has a job"
       (let [request {:request-method :post
                      :identity {:permissions all-permissions}
@@ -151,14 +162,60 @@
         (is (= 201 (-> ((-> (jobs/list-resource (:jobs system) "default")) request) :status))))
       (let [request {:request-method :get :identity {:permissions all-permissions}}
             response (handler request)]
-        (is (= "job1" (-> response :body read-string first :job/name)))
+        (is (= "job1" (-> response :body slurp read-string first :job/name)))
         (is (= "application/force-download"  ((:headers response) "Content-Type")))
         (is (= "attachment; filename=\"jobs.edn\""  ((:headers response) "Content-disposition")))))
+    (testing "download as NDJSON"
+      (let [request {:request-method :post
+                     :identity {:permissions all-permissions}
+                     :content-type "application/edn"
+                     :body (pr-str {:job/name "job2"})}]
+        (is (= 201 (-> ((-> (jobs/list-resource (:jobs system) "default")) request) :status))))
+      (let [request {:request-method :get
+                     :identity {:permissions all-permissions}
+                     :params {:format "ndjson"}}
+            response (handler request)
+            lines (-> response :body slurp clojure.string/split-lines)]
+        (is (= ["job1" "job2"] (map #(:job/name (util/json->edn %)) lines)))
+        (is (= "attachment; filename=\"jobs.ndjson\""  ((:headers response) "Content-disposition")))))
     (testing "download job is not authorized"
       (let [request {:request-method :get :identity {:permissions #{:permission/update-job :permission/create-job :permission/delete-job :permission/execute-job}}}
             response (handler request)]
         (is (= 403 (-> (handler request) :status)))))))
 
+(deftest import-resource
+  (let [system (new-system config)
+        handler (jobs/import-resource (:jobs system) "default")
+        wait-for (fn [task-id]
+                   (loop [n 0]
+                     (let [task (tasks/find-task (:tasks system) task-id)]
+                       (if (or (not= :running (:task/status task)) (> n 100))
+                         task
+                         (do (Thread/sleep 100) (recur (inc n)))))))]
+    (testing "import jobs"
+      (let [response (handler {:request-method :post
+                               :identity {:permissions all-permissions}
+                               :content-type "application/edn"
+                               :body (pr-str [{:job/name "job1"}
+                                              {:job/name "job2"
+                                               :job/exclusive? true
+                                               :job/schedule {:schedule/cron-notation "0 0 12 * * ?"}}
+                                              {:job/name "job 3"}
+                                              {:job/name "job1"}])})
+            task (wait-for (-> response :body read-string :task/id))]
+        (is (= 202 (:status response)))
+        (is (= :completed (:task/status task)))
+        (is (= 4 (:task/done task)))
+        (is (= #{"job 3" "job1"} (set (map :job/name (:task/failures task)))))
+        (is (= #{"job1" "job2"} (set (map :job/name (jobs/find-all (:jobs system) "default" nil)))))
+        (is (= 5 (count (scheduler/fire-times (:scheduler system)
+                                              (second (jobs/find-by-name (:jobs system) "default" "job2"))))))))
+    (testing "import is not authorized"
+      (is (= 403 (:status (handler {:request-method :post
+                                    :identity {:permissions #{:permission/read-job}}
+                                    :content-type "application/edn"
+                                    :body (pr-str [{:job/name "job1"}])})))))))
+
 (deftest find-all-with-query
   (let [system (new-system config)
         handler (-> (jobs/list-resource (:jobs system) "default"))]
@@ -234,6 +291,29 @@
             (is (= 1 (count res)))
             (is (= "job1"  (->> res first :job/name)))))))))
 
+(deftest find-all-follows-transactions
+  (let [system (new-system config)
+        handler (jobs/list-resource (:jobs system) "default")]
+    (doseq [job-name ["daily-report" "weekly-report" "cleanup"]]
+      (handler {:request-method :post
+                :identity {:permissions all-permissions}
+                :content-type "application/edn"
+                :body (pr-str {:job/name job-name})}))
+    (testing "Search by the index"
+      (is (= #{"daily-report" "weekly-report"}
+             (set (map :job/name (jobs/find-all (:jobs system) "default" "report")))))
+      (is (= ["cleanup"]
+             (map :job/name (jobs/find-all (:jobs system) "default" "cl")))))
+    (testing "A deleted job is removed from the index"
+      ((jobs/entry-resource (:jobs system) "default" "weekly-report")
+       {:request-method :delete
+        :identity {:permissions all-permissions}})
+      (is (= ["daily-report"]
+             (map :job/name (jobs/find-all (:jobs system) "default" "report")))))
+    (testing "Same results without the index"
+      (is (= ["daily-report"]
+             (map :job/name (jobs/find-all (dissoc (:jobs system) :job-index) "default" "report")))))))
+
 (deftest find-all-with-sort
   (let [system (new-system config)
         handler (-> (jobs/list-resource (:jobs system) "default"))]
@@ -448,6 +528,280 @@
             request {:request-method :post}]
         (is (= 404 (-> request handler :status)))))))
 
+(deftest delete-executions
+  (let [system (new-system (meta-merge config {:jobs {:delete-batch-size 2 :delete-throttle 0}}))]
+    ((jobs/list-resource (:jobs system) "default") {:request-method :post
+                                                    :identity {:permissions all-permissions}
+                                                    :content-type "application/edn"
+                                                    :body (pr-str {:job/name "job1"})})
+    (let [[_ job-id] (jobs/find-by-name (:jobs system) "default" "job1")
+          handler (jobs/executions-resource (:jobs system) "default" "job1")]
+      (dotimes [_ 5]
+        (setup-execution (:jobs system) {:db/id job-id}))
+      (testing "delete executions in background"
+        (let [response (handler {:request-method :delete
+                                 :identity {:permissions all-permissions}})
+              task-id (-> response :body read-string :task/id)]
+          (is (= 202 (:status response)))
+          (loop [n 0]
+            (when (and (= :running (:task/status (tasks/find-task (:tasks system) task-id)))
+                       (< n 100))
+              (Thread/sleep 100)
+              (recur (inc n))))
+          (is (= {:task/status :completed :task/done 5 :task/total 5}
+                 (select-keys (tasks/find-task (:tasks system) task-id)
+                              [:task/status :task/done :task/total])))
+          (is (= 0 (:hits (jobs/find-executions (:jobs system) "default" "job1" 0 20)))))))))
+
+(deftest retraction-batches
+  (let [execution (fn [id logs]
+                    {:db/id id
+                     :job-execution/step-executions [{:db/id (* 10 id)
+                                                      :step-execution/logs (for [i (range logs)] {:db/id (+ (* 100 id) i)})}]})
+        batches (jobs/retraction-batches 10 [(execution 1 2) (execution 2 2) (execution 3 20) (execution 4 0) (execution 5 7)])]
+    (testing "Batches are sized by retracted entities"
+      (is (= [[1 2] [3] [4] [5]] (map #(map :db/id %) batches))))
+    (testing "An execution with more entities is retracted by itself"
+      (is (= 22 (count (jobs/retract-execution-tx (first (nth batches 1)))))))))
+
+(deftest execution-registry
+  (let [system (new-system config)]
+    ((jobs/list-resource (:jobs system) "default") {:request-method :post
+                                                    :identity {:permissions all-permissions}
+                                                    :content-type "application/edn"
+                                                    :body (pr-str {:job/name "job1"})})
+    (let [[_ job-id] (jobs/find-by-name (:jobs system) "default" "job1")
+          handler (jobs/executions-resource (:jobs system) "default" "job1")
+          request {:request-method :post
+                   :identity {:permissions all-permissions}
+                   :content-type "application/edn"
+                   :body "{}"}]
+      (testing "An execution is registered as undispatched"
+        (is (= 201 (:status (handler request))))
+        (is (= [:batch-status/undispatched]
+               (vals (jobs/active-executions (:jobs system) job-id)))))
+      (testing "An undispatched execution conflicts"
+        (is (= 409 (:status (handler request)))))
+      (testing "A finished execution is removed"
+        (let [execution-id (first (keys (jobs/active-executions (:jobs system) job-id)))]
+          (jobs/save-execution (:jobs system) execution-id {:batch-status :batch-status/completed})
+          (is (empty? (jobs/active-executions (:jobs system) job-id)))))
+      (testing "Transactions from other components are followed"
+        (setup-execution (:jobs system) {:db/id job-id
+                                         :job-execution/batch-status :batch-status/started})
+        (Thread/sleep 500)
+        (is (= [:batch-status/started]
+               (vals (jobs/active-executions (:jobs system) job-id))))))))
+
+(deftest step-execution-index
+  (let [system (new-system config)
+        jobs (:jobs system)
+        instance-id (java.util.UUID/randomUUID)]
+    ((jobs/list-resource jobs "default") {:request-method :post
+                                          :identity {:permissions all-permissions}
+                                          :content-type "application/edn"
+                                          :body (pr-str {:job/name "job1"})})
+    (let [[_ job-id] (jobs/find-by-name jobs "default" "job1")
+          execution-id (-> (setup-execution jobs {:db/id job-id
+                                                  :job-execution/batch-status :batch-status/started})
+                           vals
+                           first)]
+      (Thread/sleep 500)
+      (testing "A started step execution is found in the index"
+        (jobs/register-step-execution! jobs instance-id execution-id 1 42)
+        (is (= 42 (jobs/find-step-execution jobs instance-id 1))))
+      (testing "Step executions are forgotten when the execution ends"
+        (jobs/save-execution jobs execution-id {:batch-status :batch-status/completed})
+        (is (nil? (jobs/find-step-execution jobs instance-id 1)))))))
+
+(deftest test-execution-state
+  (let [system (new-system (meta-merge config {:jobs {:test-execution-wait 100}}))
+        jobs (:jobs system)
+        state-id (:state-id (jobs/dispatch-test-job jobs {:edn {:bpmn ""}}))]
+    (testing "An error log is written on the state reported by the agent"
+      (jobs/save-execution jobs state-id {:batch-status :batch-status/started :execution-id 42})
+      (jobs/write-error-message-on-state jobs 42 "message" "exception")
+      (is (= {:batch-status :batch-status/started
+              :execution-id 42
+              :log-message "message"
+              :log-exception "exception"}
+             (-> ((jobs/test-execution-resource jobs state-id) {:request-method :get})
+                 :body
+                 read-string
+                 (select-keys [:batch-status :execution-id :log-message :log-exception])))))
+    (testing "An unknown execution doesn't block"
+      (is (nil? (jobs/search-state-id jobs 43))))))
+
+(deftest memoization
+  (let [system (new-system config)]
+    ((jobs/list-resource (:jobs system) "default") {:request-method :post
+                                                    :identity {:permissions all-permissions}
+                                                    :content-type "application/edn"
+                                                    :body (pr-str {:job/name "job1"})})
+    ((jobs/job-settings-resource (:jobs system) "default" "job1" :memoize)
+     {:request-method :put
+      :identity {:permissions all-permissions}
+      :content-type "application/edn"
+      :body (pr-str {:job/memoize-window 60})})
+    (let [[_ job-id] (jobs/find-by-name (:jobs system) "default" "job1")
+          memoized-id (-> (setup-execution (:jobs system) {:db/id job-id
+                                                           :job-execution/batch-status :batch-status/completed
+                                                           :job-execution/start-time (java.util.Date.
+                                                                                      (- (System/currentTimeMillis) 60000))})
+                          vals
+                          first)
+          handler (jobs/executions-resource (:jobs system) "default" "job1")
+          execute (fn [parameters]
+                    (handler {:request-method :post
+                              :identity {:permissions all-permissions}
+                              :content-type "application/edn"
+                              :body (pr-str parameters)}))]
+      (testing "Same parameters reuse the completed execution"
+        (is (= 201 (:status (execute {}))))
+        (is (empty? (jobs/active-executions (:jobs system) job-id)))
+        (is (= memoized-id
+               (d/query (:datomic system)
+                        '{:find [?memoized .]
+                          :in [$ ?job]
+                          :where [[?job :job/executions ?e]
+                                  [?e :job-execution/memoized-from ?memoized]]}
+                        job-id))))
+      (testing "A memoized execution isn't a sample of durations"
+        (Thread/sleep 500)
+        (is (= 1 (:count (durations/model (:durations system) job-id))))
+        (is (<= 60000 (durations/estimate (:durations system) job-id) 61000)))
+      (testing "Different parameters are executed"
+        (is (= 201 (:status (execute {:date "2016-09-01"}))))
+        (is (= [:batch-status/undispatched]
+               (vals (jobs/active-executions (:jobs system) job-id))))))
+    (testing "A window which isn't a positive integer is rejected"
+      (doseq [window [0 -1 "60" nil]]
+        (is (= 400 (:status ((jobs/job-settings-resource (:jobs system) "default" "job1" :memoize)
+                             {:request-method :put
+                              :identity {:permissions all-permissions}
+                              :content-type "application/edn"
+                              :body (pr-str {:job/memoize-window window})}))))))))
+
+(deftest job-chaining
+  (let [system (new-system config)
+        request (fn [body & [method]]
+                  {:request-method (or method :post)
+                   :identity {:permissions all-permissions}
+                   :content-type "application/edn"
+                   :body (pr-str body)})
+        job-id (fn [job-name] (second (jobs/find-by-name (:jobs system) "default" job-name)))
+        complete (fn [job-name parameters]
+                   ((jobs/executions-resource (:jobs system) "default" job-name) (request parameters))
+                   (let [execution-id (first (keys (jobs/active-executions (:jobs system) (job-id job-name))))]
+                     (jobs/save-execution (:jobs system) execution-id {:batch-status :batch-status/completed
+                                                                       :start-time (java.util.Date.)
+                                                                       :end-time (java.util.Date.)})))]
+    (doseq [job-name ["extract-a" "extract-b" "load"]]
+      ((jobs/list-resource (:jobs system) "default") (request {:job/name job-name})))
+    (is (= 201 (:status ((jobs/job-settings-resource (:jobs system) "default" "load" :upstreams)
+                         (request {:job/upstreams ["extract-a" "extract-b"]} :put)))))
+    (testing "A cycle is rejected"
+      (is (= 422 (:status ((jobs/job-settings-resource (:jobs system) "default" "extract-a" :upstreams)
+                           (request {:job/upstreams ["load"]} :put))))))
+    (testing "Wait for all upstreams"
+      (complete "extract-a" {:date "2016-09-01"})
+      (is (empty? (jobs/active-executions (:jobs system) (job-id "load")))))
+    (testing "Start when all upstreams are completed"
+      (complete "extract-b" {:region "jp"})
+      (let [[execution-id status] (first (jobs/active-executions (:jobs system) (job-id "load")))]
+        (is (= :batch-status/undispatched status))
+        (is (= {:date "2016-09-01" :region "jp"}
+               (-> (d/pull (:datomic system) '[:job-execution/job-parameters] execution-id)
+                   :job-execution/job-parameters
+                   edn/read-string)))))))
+
+(deftest bulk-resource
+  (let [system (new-system (meta-merge config {:jobs {:bulk-batch-size 2}}))
+        ;; No agent is connected.
+        jobs (assoc (:jobs system) :agents {:agents (atom {})})
+        request (fn [body]
+                  {:request-method :post
+                   :identity {:permissions all-permissions}
+                   :content-type "application/edn"
+                   :body (pr-str body)})
+        await-task (fn [response]
+                     (let [task-id (-> response :body read-string :task/id)]
+                       (loop [n 0]
+                         (when (and (= :running (:task/status (tasks/find-task (:tasks system) task-id)))
+                                    (< n 100))
+                           (Thread/sleep 100)
+                           (recur (inc n))))
+                       (tasks/find-task (:tasks system) task-id)))]
+    ((jobs/list-resource jobs "default") (request {:job/name "job1"}))
+    (let [[_ job-id] (jobs/find-by-name jobs "default" "job1")
+          batch-statuses (fn []
+                           (d/query (:datomic system)
+                                    '{:find [[?status ...]]
+                                      :in [$ ?job]
+                                      :where [[?job :job/executions ?e]
+                                              [?e :job-execution/batch-status ?s]
+                                              [?s :db/ident ?status]]}
+                                    job-id))]
+      (dotimes [_ 3]
+        (setup-execution jobs {:db/id job-id :job-execution/batch-status :batch-status/failed}))
+      (testing "An unknown command is rejected"
+        (is (= 422 (:status ((jobs/bulk-resource jobs "default" :kill) (request {}))))))
+      (testing "A status which the command can't be applied to is rejected"
+        (is (= 422 (:status ((jobs/bulk-resource jobs "default" :stop) (request {:batch-status :failed}))))))
+      (testing "Restart failed executions"
+        (let [response ((jobs/bulk-resource jobs "default" :restart) (request {:job-name "job1"}))]
+          (is (= 202 (:status response)))
+          (is (= {:task/status :completed :task/done 3 :task/total 3}
+                 (select-keys (await-task response) [:task/status :task/done :task/total])))
+          (is (= 3 (count (jobs/active-executions jobs job-id))))))
+      (testing "Executions whose agent has gone are abandoned"
+        (let [response ((jobs/bulk-resource jobs "default" :abandon) (request {:batch-status :failed}))]
+          (is (= {:task/status :completed :task/done 3 :task/failures []}
+                 (select-keys (await-task response) [:task/status :task/done :task/failures])))
+          (is (= #{:batch-status/abandoned :batch-status/unrestarted}
+                 (set (batch-statuses)))))))))
+
+(deftest create-executions
+  (let [system (new-system (meta-merge config {:jobs {:sweep-batch-size 2}}))
+        jobs (:jobs system)
+        request (fn [body & [method]]
+                  {:request-method (or method :post)
+                   :identity {:permissions all-permissions}
+                   :content-type "application/edn"
+                   :body (pr-str body)})]
+    ((jobs/list-resource jobs "default") (request {:job/name "job1"}))
+    ((jobs/job-settings-resource jobs "default" "job1" :memoize)
+     (request {:job/memoize-window 60} :put))
+    (let [[_ job-id] (jobs/find-by-name jobs "default" "job1")]
+      (setup-execution jobs {:db/id job-id :job-execution/batch-status :batch-status/completed})
+      (testing "Executions are created as undispatched except memoized parameters"
+        (let [executions (jobs/create-executions jobs "job1" job-id
+                                                 (for [day ["01" "02" "03" "04"]]
+                                                   {:date (str "2016-09-" day)})
+                                                 2)]
+          (is (= 4 (count executions)))
+          (is (= #{:batch-status/undispatched}
+                 (set (vals (jobs/active-executions jobs job-id)))))
+          (is (= {:date "2016-09-01"} (second (first executions))))))
+      (testing "Memoized parameters reuse the result"
+        (is (empty? (jobs/create-executions jobs "job1" job-id [{}])))))))
+
+(deftest execution-service
+  (let [system (new-system config)
+        jobs (:jobs system)
+        service (jobs/execution-service jobs)]
+    ((jobs/list-resource jobs "default") {:request-method :post
+                                          :identity {:permissions all-permissions}
+                                          :content-type "application/edn"
+                                          :body (pr-str {:job/name "job1"})})
+    (let [[_ job-id] (jobs/find-by-name jobs "default" "job1")]
+      (testing "A scheduled job starts an execution"
+        (is (.execute service job-id "default" "job1"))
+        (is (= [:batch-status/undispatched] (vals (jobs/active-executions jobs job-id)))))
+      (testing "A scheduled job conflicts with the active execution"
+        (is (not (.execute service job-id "default" "job1")))
+        (is (= 1 (count (jobs/active-executions jobs job-id))))))))
+
 (deftest parse-query
   (testing "parse-query"
     (let [result (jobs/parse-query "a b since:2016-09-01 until:2016-09-02 exit-status:COMPLETED batch-status:failed")]
@@ -0,0 +1,82 @@
+(ns job-streamer.control-bus.component.notifier-test
+  (:require [job-streamer.control-bus.component.notifier :as notifier]
+            [job-streamer.control-bus.notification :as notification]
+            [com.stuartsierra.component :as component]
+            [clojure.test :refer :all])
+  (:import [java.io File]))
+
+(defn- new-notifier [outbox-file]
+  (component/start
+   (notifier/notifier-component {:outbox-file (str outbox-file)
+                                 :flush-interval 60000
+                                 :initial-backoff 60000})))
+
+(defn- responding [status sent]
+  (fn [type message]
+    (swap! sent conj [type message])
+    (doto (promise) (deliver {:status status}))))
+
+(deftest outbox
+  (let [outbox-file (File/createTempFile "outbox" ".edn")
+        sent (atom [])]
+    (try
+      (testing "Duplicates are coalesced"
+        (let [n (new-notifier outbox-file)]
+          (dotimes [_ 3]
+            (notifier/notify n "slack" {:job-name "job1" :batch-status :batch-status/failed}))
+          (notifier/notify n "slack" {:job-name "job2" :batch-status :batch-status/failed})
+          (is (= 2 (notifier/pending-count n)))
+          (component/stop n)))
+
+      (testing "Pending notifications survive a restart, and a failure keeps them"
+        (let [n (new-notifier outbox-file)]
+          (is (= 2 (notifier/pending-count n)))
+          (with-redefs [notification/send (responding 500 sent)]
+            (notifier/flush-outbox n))
+          (is (= 1 (count @sent)))
+          (is (= 2 (notifier/pending-count n)))
+          (testing "The type is suspended while backing off"
+            (with-redefs [notification/send (responding 200 sent)]
+              (notifier/flush-outbox n))
+            (is (= 1 (count @sent))))
+          (component/stop n)))
+
+      (testing "Delivered notifications are removed"
+        (reset! sent [])
+        (let [n (new-notifier outbox-file)]
+          (with-redefs [notification/send (responding 200 sent)]
+            (notifier/flush-outbox n))
+          (is (= [3 nil] (map (comp :repeated second) @sent)))
+          (is (= 0 (notifier/pending-count n)))
+          (testing "A duplicate just after the delivery is held"
+            (notifier/notify n "slack" {:job-name "job1" :batch-status :batch-status/failed})
+            (is (= 1 (notifier/pending-count n))))
+          (component/stop n)))
+      (finally
+        (.delete outbox-file)))))
+
+(deftest follow-up
+  (let [outbox-file (File/createTempFile "outbox" ".edn")
+        sent (atom [])
+        n (component/start
+           (notifier/notifier-component {:outbox-file (str outbox-file)
+                                         :flush-interval 60000
+                                         :coalesce-window 500}))
+        notify #(notifier/notify n "slack" {:job-name "job1" :batch-status :batch-status/failed})]
+    (try
+      (with-redefs [notification/send (responding 200 sent)]
+        (notify)
+        (notifier/flush-outbox n)
+        (testing "Duplicates after the delivery aren't delivered within the window"
+          (dotimes [_ 2] (notify))
+          (notifier/flush-outbox n)
+          (is (= 1 (count @sent)))
+          (is (= 1 (notifier/pending-count n))))
+        (testing "They are delivered as a follow-up with the count when the window ends"
+          (Thread/sleep 600)
+          (notifier/flush-outbox n)
+          (is (= [nil 2] (map (comp :repeated second) @sent)))
+          (is (= 0 (notifier/pending-count n)))))
+      (finally
+        (component/stop n)
+        (.delete outbox-file)))))
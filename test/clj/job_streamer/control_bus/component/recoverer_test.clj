@@ -14,12 +14,21 @@
          (transact [this transaction])
          (resolve-tempid [this tempids tempid]))))
 
+(def pull-pattern
+  '[{:job-execution/agent [:agent/instance-id]
+     :job-execution/batch-status [:db/ident]}
+    :job-execution/execution-id])
+
 (deftest recoverer-test
   (testing "start-component"
     (let [datomic (datomic-mock)
+          jobs {:execution-registry (atom {:by-execution {1 {:job-id 2 :batch-status :batch-status/started}
+                                                          3 {:job-id 4 :batch-status :batch-status/queued}}})}
           recoverer (component/start (recoverer-component
                                       {:datomic datomic
+                                       :jobs jobs
                                        :initial-interval 100}))]
       (do (<!! (timeout 150))
-        (is (received? datomic d/query*))
+        (is (received? datomic d/pull [pull-pattern 1]))
+        (is (not (received? datomic d/pull [pull-pattern 3])))
         (component/stop recoverer)))))
@@ -81,3 +81,173 @@
                      :identity {:permissions #{:permission/read-job :permission/update-job :permission/create-job :permission/delete-job}}
                      :content-type "application/edn"}]
         (is (= 403 (-> (handler request) :status)))))))
+
+(deftest recover-schedules
+  (let [system (new-system config)
+        {:keys [datomic scheduler]} system
+        job-id (d/tempid :db.part/user)
+        tempids (-> (d/transact datomic
+                                [{:db/id job-id
+                                  :job/name "job1"
+                                  :job/schedule {:db/id (d/tempid :db.part/user)
+                                                 :schedule/cron-notation "0 0 12 * * ?"
+                                                 :schedule/active? false
+                                                 :schedule/substitution? false}}
+                                 [:db/add [:application/name "default"] :application/jobs job-id]])
+                    :tempids)
+        job-id (d/resolve-tempid datomic tempids job-id)
+        trigger-key (org.quartz.TriggerKey. (str "trigger-" job-id))]
+    (scheduler/recover-schedules scheduler)
+    (testing "A trigger is registered for the schedule"
+      (is (some? (.getTrigger (:scheduler scheduler) trigger-key))))
+    (testing "A paused schedule stays paused"
+      (is (= org.quartz.Trigger$TriggerState/PAUSED
+             (.getTriggerState (:scheduler scheduler) trigger-key))))))
+
+(deftest fire-time-index
+  (let [{:keys [scheduler]} (new-system config)]
+    (scheduler/schedule-all scheduler [{:job-id 1 :app-name "default" :job-name "job1"
+                                        :cron-notation "0 0 12 * * ?" :active? true}
+                                       {:job-id 2 :app-name "default" :job-name "job2"
+                                        :cron-notation "0 30 * * * ?" :active? true}])
+    (testing "Fire times are indexed when jobs are scheduled"
+      (is (= 5 (count (scheduler/fire-times scheduler 1)))))
+    (testing "Upcoming fires of all jobs are in time order"
+      (let [fires (scheduler/upcoming-fires scheduler (java.util.Date. (+ (System/currentTimeMillis)
+                                                                          (* 7 24 60 60 1000))))]
+        (is (= #{1 2} (set (map second fires))))
+        (is (= (sort (map first fires)) (map first fires)))))
+    (testing "A paused job has no fire times"
+      (.pauseTrigger (:scheduler scheduler) (org.quartz.TriggerKey. "trigger-1"))
+      (is (nil? (scheduler/fire-times scheduler 1)))
+      (is (not-any? #(= 1 (second %))
+                    (scheduler/upcoming-fires scheduler (java.util.Date. Long/MAX_VALUE)))))))
+
+(deftest jitter-offset
+  (testing "An offset is in the window and the same every time"
+    (is (every? #(< -1 (scheduler/jitter-offset % 600) 600000) (range 100)))
+    (is (= (scheduler/jitter-offset 42 600) (scheduler/jitter-offset 42 600))))
+  (testing "No window, no offset"
+    (is (= 0 (scheduler/jitter-offset 42 nil)))
+    (is (= 0 (scheduler/jitter-offset 42 0)))))
+
+(deftest submit-fire
+  (let [quartz (.getScheduler (org.quartz.impl.StdSchedulerFactory.
+                               (doto (java.util.Properties.)
+                                 (.setProperty "org.quartz.scheduler.instanceName" "submit-fire-test")
+                                 (.setProperty "org.quartz.threadPool.threadCount" "1"))))
+        component {:scheduler quartz
+                   :max-fire-rate 100
+                   :fire-slot (atom 0)
+                   :default-jitter-window 0
+                   :calendar-jitter (atom {"cal" 600})}
+        scheduled (java.util.Date. (- (System/currentTimeMillis) 1000))
+        launched (atom [])]
+    (try
+      (.addJob quartz (.. (org.quartz.JobBuilder/newJob)
+                          (ofType net.unit8.job_streamer.control_bus.JobStreamerExecuteJob)
+                          (withIdentity "job-42")
+                          (storeDurably)
+                          (build))
+               true)
+      (testing "Fires without a window are launched at most `max-fire-rate` per second"
+        (let [start (System/currentTimeMillis)]
+          (doseq [job-id (range 10)]
+            (scheduler/submit-fire component job-id scheduled nil nil
+                                   #(swap! launched conj (System/currentTimeMillis))))
+          (is (= 10 (count @launched)))
+          (is (<= 90 (- (last @launched) start)))))
+      (testing "A fire in the calendar's window is delayed by a one-shot trigger at its offset"
+        (dotimes [_ 2]
+          (scheduler/submit-fire component 42 scheduled nil "cal" #(throw (IllegalStateException.))))
+        (let [triggers (.getTriggersOfJob quartz (org.quartz.JobKey. "job-42"))]
+          (is (= 1 (count triggers)))
+          (is (= (+ (.getTime scheduled) (scheduler/jitter-offset 42 600))
+                 (.getTime (.getStartTime (first triggers)))))
+          (is (= 0 (.. (first triggers) getJobDataMap (getLong "jitter-window"))))))
+      (finally
+        (.shutdown quartz)))))
+
+(deftest delayed-fires
+  (let [system (new-system config)
+        {:keys [datomic scheduler]} system
+        quartz (:scheduler scheduler)
+        job-id (d/tempid :db.part/user)
+        tempids (-> (d/transact datomic
+                                [{:db/id job-id
+                                  :job/name "job1"
+                                  :job/schedule {:db/id (d/tempid :db.part/user)
+                                                 :schedule/cron-notation "0 0 12 * * ?"
+                                                 :schedule/active? true
+                                                 :schedule/substitution? false}}
+                                 [:db/add [:application/name "default"] :application/jobs job-id]])
+                    :tempids)
+        job-id (d/resolve-tempid datomic tempids job-id)
+        job-key (org.quartz.JobKey. (str "job-" job-id))
+        states #(set (map (fn [^org.quartz.Trigger t] (.getTriggerState quartz (.getKey t)))
+                          (.getTriggersOfJob quartz job-key)))]
+    (try
+      (scheduler/recover-schedules scheduler)
+      (scheduler/submit-fire scheduler job-id (java.util.Date.) 600 nil #(throw (IllegalStateException.)))
+      (is (= 2 (count (.getTriggersOfJob quartz job-key))))
+      (testing "A paused schedule holds its delayed fires"
+        (scheduler/pause scheduler job-id)
+        (is (= #{org.quartz.Trigger$TriggerState/PAUSED} (states)))
+        (scheduler/resume scheduler job-id)
+        (is (= #{org.quartz.Trigger$TriggerState/NORMAL} (states))))
+      (testing "Delayed fires are removed with the schedule, and it can be scheduled again"
+        (scheduler/unschedule scheduler job-id)
+        (is (not (.checkExists quartz job-key)))
+        (scheduler/schedule scheduler job-id "0 0 12 * * ?" nil false)
+        (is (= 1 (count (.getTriggersOfJob quartz job-key)))))
+      (finally
+        (component/stop-system system)))))
+
+(deftest clustered-store
+  (let [system (new-system (meta-merge config
+                                       {:scheduler {:cluster {:url "jdbc:h2:mem:scheduler-test;DB_CLOSE_DELAY=-1"}}}))
+        {:keys [datomic scheduler]} system
+        quartz (:scheduler scheduler)
+        job-id (d/tempid :db.part/user)
+        tempids (-> (d/transact datomic
+                                [{:db/id job-id
+                                  :job/name "job1"
+                                  :job/schedule {:db/id (d/tempid :db.part/user)
+                                                 :schedule/cron-notation "0 0 12 * * ?"
+                                                 :schedule/active? true
+                                                 :schedule/substitution? true}}
+                                 [:db/add [:application/name "default"] :application/jobs job-id]])
+                    :tempids)
+        job-id (d/resolve-tempid datomic tempids job-id)
+        trigger-key (org.quartz.TriggerKey. (str "trigger-" job-id))]
+    (try
+      (scheduler/schedule-all scheduler [{:job-id 1 :app-name "default" :job-name "removed"
+                                          :cron-notation "0 30 * * * ?" :active? true}])
+      (scheduler/recover-schedules scheduler)
+      (testing "Triggers are kept in the clustered store"
+        (is (.. quartz getMetaData isJobStoreClustered))
+        (is (some? (.getTrigger quartz trigger-key))))
+      (testing "Triggers in the store are kept at recovery, and ones of removed schedules are deleted"
+        (let [start-time (.getStartTime (.getTrigger quartz trigger-key))]
+          (Thread/sleep 10)
+          (scheduler/recover-schedules scheduler)
+          (is (= start-time (.getStartTime (.getTrigger quartz trigger-key))))
+          (is (nil? (.getTrigger quartz (org.quartz.TriggerKey. "trigger-1"))))))
+      (testing "Time-keepers are kept in the clustered store until they're cancelled"
+        (let [job-key (org.quartz.JobKey. "time-keeper-42")]
+          (scheduler/time-keeper scheduler 42 10 :alert)
+          (scheduler/time-keeper scheduler 42 10 :alert)
+          (is (= 1 (count (.getTriggersOfJob quartz job-key))))
+          (scheduler/cancel-time-keeper scheduler 42)
+          (is (not (.checkExists quartz job-key)))))
+      (testing "The scheduler acquires triggers only while the execution service is registered"
+        (is (.isInStandbyMode quartz))
+        (scheduler/register-execution-service scheduler
+                                              (reify net.unit8.job_streamer.control_bus.ExecutionService
+                                                (execute [_ _ _ _] true)
+                                                (command [_ _ _])))
+        (is (not (.isInStandbyMode quartz)))
+        (scheduler/register-execution-service scheduler nil)
+        (is (.isInStandbyMode quartz)))
+      (finally
+        (component/stop-system system)))))
@@ -0,0 +1,17 @@
+(ns job-streamer.control-bus.histogram-test
+  (:require [job-streamer.control-bus.histogram :as histogram]
+            [clojure.test :refer :all]))
+
+(deftest percentile
+  (let [h (reduce histogram/add {} (range 1000 101000 1000))]
+    (testing "Percentiles are within the error of bins."
+      (is (< 47500 (histogram/percentile h 0.5) 52500))
+      (is (< 90250 (histogram/percentile h 0.95) 99750)))
+    (testing "Merged histograms"
+      (is (= (histogram/percentile h 0.5)
+             (histogram/percentile (histogram/merge-histograms
+                                    (reduce histogram/add {} (range 1000 51000 1000))
+                                    (reduce histogram/add {} (range 51000 101000 1000)))
+                                   0.5))))
+    (testing "No durations"
+      (is (nil? (histogram/percentile {} 0.5))))))
@@ -0,0 +1,34 @@
+(ns job-streamer.control-bus.partition-test
+  (:require [job-streamer.control-bus.partition :as partition]
+            [clojure.test :refer :all]))
+
+(def ^:private nodes ["bus-a" "bus-b" "bus-c" "bus-d"])
+
+(deftest owner
+  (testing "Every key is owned by exactly one node"
+    (doseq [k (range 1000)]
+      (is (= 1 (count (filter #(partition/owns? nodes % k) nodes))))))
+  (testing "The owner doesn't depend on the order of nodes"
+    (doseq [k (range 100)]
+      (is (= (partition/owner nodes k) (partition/owner (reverse nodes) k)))))
+  (testing "Keys are spread over nodes"
+    (let [counts (frequencies (map #(partition/owner nodes %) (range 10000)))]
+      (is (= (set nodes) (set (keys counts))))
+      (is (every? #(< 2000 % 3000) (vals counts)))))
+  (testing "No node owns nothing"
+    (is (nil? (partition/owner [] 1)))
+    (is (partition/owns? [] "bus-a" 1))))
+
+(deftest rebalance
+  (testing "Only keys of the node which leaves move"
+    (let [rest-nodes (remove #{"bus-b"} nodes)]
+      (doseq [k (range 1000)]
+        (let [before (partition/owner nodes k)]
+          (when (not= before "bus-b")
+            (is (= before (partition/owner rest-nodes k))))))))
+  (testing "Only keys which the new node owns move"
+    (let [more-nodes (conj nodes "bus-e")]
+      (doseq [k (range 1000)]
+        (let [after (partition/owner more-nodes k)]
+          (when (not= after "bus-e")
+            (is (= (partition/owner nodes k) after))))))))
@@ -0,0 +1,38 @@
+(ns job-streamer.control-bus.timing-wheel-test
+  (:require [job-streamer.control-bus.timing-wheel :as timing-wheel]
+            [clojure.test :refer :all]))
+
+(def ^:private minute (* 60 1000))
+
+(defn- new-wheel []
+  (timing-wheel/new-wheel 1000 60 4 0))
+
+(deftest advance
+  (let [wheel (-> (new-wheel)
+                  (timing-wheel/add-timer :a (* 90 minute) :action/stop)
+                  (timing-wheel/add-timer :b 30000 :action/alert)
+                  (timing-wheel/add-timer :c (* 3 60 minute) :action/abandon))]
+    (testing "Nothing expires before the deadline"
+      (let [[wheel expired] (timing-wheel/advance wheel 29999)]
+        (is (empty? expired))
+        (is (= 3 (timing-wheel/timer-count wheel)))))
+    (testing "Timers expire in order of their deadlines across levels"
+      (let [[wheel expired] (timing-wheel/advance wheel (* 4 60 minute))]
+        (is (= [[:b :action/alert] [:a :action/stop] [:c :action/abandon]] expired))
+        (is (zero? (timing-wheel/timer-count wheel)))))
+    (testing "A timer on a higher level expires at its exact tick"
+      (is (not-any? #(= :a (first %)) (second (timing-wheel/advance wheel (dec (* 90 minute))))))
+      (is (= [:b :a] (map first (second (timing-wheel/advance wheel (* 90 minute)))))))))
+
+(deftest cancel-timer
+  (let [wheel (-> (new-wheel)
+                  (timing-wheel/add-timer :a (* 90 minute) :action/stop)
+                  (timing-wheel/cancel-timer :a))]
+    (is (zero? (timing-wheel/timer-count wheel)))
+    (is (empty? (second (timing-wheel/advance wheel (* 2 60 minute)))))))
+
+(deftest past-deadline
+  (let [[wheel] (timing-wheel/advance (new-wheel) 5000)
+        wheel (timing-wheel/add-timer wheel :a 1000 :action/alert)]
+    (testing "A past deadline expires at the next tick"
+      (is (= [[:a :action/alert]] (second (timing-wheel/advance wheel 6000)))))))
@@ -29,3 +29,7 @@
     (testing "simple-chunk"
       (let [job (xml->edn jobxml1)]
         (is "Processor1" (get-in job [:job/components :step/chunk :chunk/processor :proccessor/ref]))))))
+
+(deftest canonical-parameters
+  (is (= (pr-str (canonicalize-parameters {:b 1 :a {:d 2 :c 3}}))
+         (pr-str (canonicalize-parameters {:a {:c 3 :d 2} :b 1})))))
@@ -0,0 +1,153 @@
+package net.unit8.job_streamer.control_bus;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.CronExpression;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerUtils;
+import org.quartz.spi.OperableTrigger;
+
+/**
+ * Compares CompiledCronExpression with CronExpression.
+ */
+public class CompiledCronExpressionTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String[] ZONES = {"UTC", "Asia/Tokyo", "America/New_York", "Europe/London", "Australia/Lord_Howe"};
+    private static final String[] EXPRESSIONS = {
+            "0 0 * * * ?",
+            "0 30 9 ? * MON-FRI",
+            "0 */15 9-17 ? * 2-6",
+            "15,45 5/10 0,12,23 1,15,31 * ?",
+            "0 0 0 29 2 ?",
+            "0 0 12 ? JAN,JUL SUN 2017-2019",
+            "59 59 23 31 DEC ? 2020/2",
+            "0 0 2 * * ?",
+            "0 30 1 ? * *",
+            "0 0 0 L * ?",
+            "0 0 9 ? * 6#3",
+            "0 0 9 15W * ?"
+    };
+
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
+
+    private static String field(Random random, int min, int max) {
+        switch (random.nextInt(5)) {
+            case 0: return "*";
+            case 1: return Integer.toString(min + random.nextInt(max - min + 1));
+            case 2: {
+                int from = min + random.nextInt(max - min + 1);
+                return from + "-" + (from + random.nextInt(max - from + 1));
+            }
+            case 3: return (min + random.nextInt(max - min + 1)) + "/" + (1 + random.nextInt(max - min));
+            default: {
+                int a = min + random.nextInt(max - min + 1);
+                int b = min + random.nextInt(max - min + 1);
+                return a == b ? Integer.toString(a) : a + "," + b;
+            }
+        }
+    }
+
+    private static String randomExpression(Random random) {
+        boolean dayOfWeek = random.nextBoolean();
+        return field(random, 0, 59) + " " + field(random, 0, 59) + " " + field(random, 0, 23) + " "
+                + (dayOfWeek ? "?" : field(random, 1, 31)) + " " + field(random, 1, 12) + " "
+                + (dayOfWeek ? field(random, 1, 7) : "?")
+                + (random.nextInt(4) == 0 ? " " + field(random, 2015, 2030) : "");
+    }
+
+    private void assertSameTimes(String expression, TimeZone zone, long from, long span, Random random) throws ParseException {
+        CronExpression cronEx = new CronExpression(expression);
+        cronEx.setTimeZone(zone);
+        CompiledCronExpression compiled = CompiledCronExpression.of(expression);
+        for (int i = 0; i < 50; i++) {
+            Date after = new Date(from + (long) (random.nextDouble() * span));
+            // Follow a few fire times, which often cross days, months and years.
+            for (int j = 0; j < 5 && after != null; j++) {
+                Date expected = cronEx.getTimeAfter(after);
+                Assert.assertEquals("'" + expression + "' after " + after + " in " + zone.getID(),
+                        expected, compiled.getTimeAfter(cronEx, after));
+                after = expected;
+            }
+        }
+    }
+
+    @Test
+    public void sameTimes() throws ParseException {
+        Random random = new Random(1L);
+        long from = sdf.parse("20150101").getTime();
+        for (String expression : EXPRESSIONS) {
+            for (String zone : ZONES) {
+                assertSameTimes(expression, TimeZone.getTimeZone(zone), from, 8 * 365 * DAY, random);
+            }
+        }
+    }
+
+    @Test
+    public void sameTimesOfRandomExpressions() throws ParseException {
+        Random random = new Random(2L);
+        long from = sdf.parse("20150101").getTime();
+        for (int n = 0; n < 500; n++) {
+            String expression = randomExpression(random);
+            assertSameTimes(expression, TimeZone.getTimeZone(ZONES[n % ZONES.length]), from, 8 * 365 * DAY, random);
+        }
+    }
+
+    /**
+     * Times around changes of daylight saving time are left to CronExpression.
+     */
+    @Test
+    public void sameTimesAroundDaylightSavingTime() throws ParseException {
+        Random random = new Random(3L);
+        TimeZone zone = TimeZone.getTimeZone("America/New_York");
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHH");
+        format.setTimeZone(zone);
+        long[] changes = {format.parse("2016031302").getTime(), format.parse("2016110601").getTime()};
+        for (long change : changes) {
+            for (String expression : EXPRESSIONS) {
+                assertSameTimes(expression, zone, change - 2 * DAY, 4 * DAY, random);
+            }
+            for (int n = 0; n < 100; n++) {
+                assertSameTimes(randomExpression(random), zone, change - 2 * DAY, 4 * DAY, random);
+            }
+        }
+    }
+
+    @Test
+    public void noTimeAfterLastYear() throws ParseException {
+        CronExpression cronEx = new CronExpression("0 0 0 1 1 ? 2016");
+        CompiledCronExpression compiled = CompiledCronExpression.of(cronEx.getCronExpression());
+        Assert.assertEquals(sdf.parse("20160101"), compiled.getTimeAfter(cronEx, sdf.parse("20150601")));
+        Assert.assertNull(compiled.getTimeAfter(cronEx, sdf.parse("20160101")));
+    }
+
+    @Test
+    public void sharedByExpression() {
+        Assert.assertSame(CompiledCronExpression.of("0 30 9 ? * MON-FRI"),
+                CompiledCronExpression.of("0 30 9 ? * MON-FRI"));
+    }
+
+    @Test
+    public void sameFireTimesAsCronTrigger() throws ParseException {
+        long from = sdf.parse("20150101").getTime();
+        for (String expression : EXPRESSIONS) {
+            OperableTrigger cronTrigger = (OperableTrigger) TriggerBuilder.newTrigger()
+                    .withSchedule(CronScheduleBuilder.cronSchedule(expression))
+                    .startAt(new Date(from))
+                    .build();
+            OperableTrigger trigger = (OperableTrigger) TriggerBuilder.newTrigger()
+                    .withSchedule(CronAlternativeScheduleBuilder.cronSchedule(expression))
+                    .startAt(new Date(from))
+                    .build();
+            List<Date> expected = TriggerUtils.computeFireTimes(cronTrigger, null, 200);
+            Assert.assertEquals(expression, expected, TriggerUtils.computeFireTimes(trigger, null, 200));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package net.unit8.job_streamer.control_bus;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerUtils;
+import org.quartz.spi.OperableTrigger;
+
+/**
+ * Runs HolidayTest with the legacy calendar, and compares the calendar with the legacy one
+ * in random settings.
+ */
+public class HolidayAndWeeklyCalendarEquivalenceTest extends HolidayTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final String[] ZONES = {"UTC", "Asia/Tokyo", "America/New_York", "America/Sao_Paulo", "Pacific/Chatham"};
+
+    @Override
+    protected HolidayAndWeeklyCalendar newCalendar() {
+        return new LegacyHolidayAndWeeklyCalendar();
+    }
+
+    /**
+     * Set the same random settings to calendars, and return the day start.
+     */
+    private long configure(Random random, TimeZone zone, HolidayAndWeeklyCalendar... calendars) throws ParseException {
+        boolean[] weekDays = new boolean[7];
+        for (int i = 0; i < 7; i++) {
+            weekDays[i] = random.nextInt(4) == 0;
+        }
+        long dayStart = random.nextBoolean() ? 0 : random.nextInt(24) * 30L * 60 * 1000;
+        long from = sdf.parse("20150101").getTime();
+        int holidays = random.nextInt(40);
+        Date[] dates = new Date[holidays];
+        for (int i = 0; i < holidays; i++) {
+            dates[i] = new Date(from + (long) (random.nextDouble() * 3 * 365 * DAY));
+        }
+        for (HolidayAndWeeklyCalendar calendar : calendars) {
+            calendar.setTimeZone(zone);
+            calendar.setDaysExcluded(weekDays.clone());
+            calendar.setDayStart(dayStart);
+            for (Date date : dates) {
+                calendar.addExcludedDate(date);
+            }
+        }
+        return dayStart;
+    }
+
+    @Test
+    public void sameIncludedTimes() throws ParseException {
+        Random random = new Random(1L);
+        long from = sdf.parse("20141201").getTime();
+        for (int n = 0; n < 200; n++) {
+            TimeZone zone = TimeZone.getTimeZone(ZONES[n % ZONES.length]);
+            HolidayAndWeeklyCalendar calendar = new HolidayAndWeeklyCalendar();
+            HolidayAndWeeklyCalendar legacy = new LegacyHolidayAndWeeklyCalendar();
+            configure(random, zone, calendar, legacy);
+            for (int i = 0; i < 500; i++) {
+                long t = from + (long) (random.nextDouble() * 4 * 365 * DAY);
+                Assert.assertEquals("At " + new Date(t) + " in " + zone.getID(),
+                        legacy.isTimeIncluded(t), calendar.isTimeIncluded(t));
+            }
+        }
+    }
+
+    @Test
+    public void sameFireTimes() throws ParseException {
+        Random random = new Random(2L);
+        for (int n = 0; n < 50; n++) {
+            TimeZone zone = TimeZone.getTimeZone(ZONES[n % ZONES.length]);
+            HolidayAndWeeklyCalendar calendar = new HolidayAndWeeklyCalendar();
+            HolidayAndWeeklyCalendar legacy = new LegacyHolidayAndWeeklyCalendar();
+            configure(random, zone, calendar, legacy);
+            OperableTrigger trigger = (OperableTrigger) TriggerBuilder.newTrigger()
+                    .withSchedule(CronScheduleBuilder.cronSchedule("0 30 1,9 * * ?").inTimeZone(zone))
+                    .startAt(sdf.parse("20150101"))
+                    .build();
+            List<Date> expected = TriggerUtils.computeFireTimes(trigger, legacy, 100);
+            List<Date> actual = TriggerUtils.computeFireTimes(trigger, calendar, 100);
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    /**
+     * The legacy calendar returns a past midnight or an excluded time in some cases,
+     * so the next included time is compared with the start of the first included day found by the legacy one.
+     */
+    @Test
+    public void nextIncludedTime() throws ParseException {
+        Random random = new Random(3L);
+        long from = sdf.parse("20141201").getTime();
+        for (int n = 0; n < 100; n++) {
+            TimeZone zone = TimeZone.getTimeZone(ZONES[n % ZONES.length]);
+            HolidayAndWeeklyCalendar calendar = new HolidayAndWeeklyCalendar();
+            HolidayAndWeeklyCalendar legacy = new LegacyHolidayAndWeeklyCalendar();
+            long dayStart = configure(random, zone, calendar, legacy);
+            for (int i = 0; i < 100; i++) {
+                long t = from + (long) (random.nextDouble() * 4 * 365 * DAY);
+                long next = calendar.getNextIncludedTime(t);
+                if (legacy.isTimeIncluded(t)) {
+                    Assert.assertEquals(t, next);
+                    continue;
+                }
+                java.util.Calendar day = java.util.Calendar.getInstance(zone);
+                day.setTimeInMillis(t - dayStart);
+                day.set(java.util.Calendar.HOUR_OF_DAY, 0);
+                day.set(java.util.Calendar.MINUTE, 0);
+                day.set(java.util.Calendar.SECOND, 0);
+                day.set(java.util.Calendar.MILLISECOND, 0);
+                do {
+                    day.add(java.util.Calendar.DATE, 1);
+                } while (!legacy.isTimeIncluded(day.getTimeInMillis() + dayStart));
+                Assert.assertEquals("From " + new Date(t) + " in " + zone.getID(),
+                        day.getTimeInMillis() + dayStart, next);
+            }
+        }
+    }
+
+    @Test
+    public void neverIncluded() throws ParseException {
+        HolidayAndWeeklyCalendar calendar = new HolidayAndWeeklyCalendar();
+        calendar.setDaysExcluded(new boolean[]{true, true, true, true, true, true, true});
+        Assert.assertEquals(0, calendar.getNextIncludedTime(sdf.parse("20150428").getTime()));
+    }
+}
@@ -29,6 +29,10 @@ import org.quartz.spi.OperableTrigger;
 public class HolidayTest {
     SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
 
+    protected HolidayAndWeeklyCalendar newCalendar() {
+        return new HolidayAndWeeklyCalendar();
+    }
+
     private List<Date> fireJobWithCalendar(Date startAt, HolidayAndWeeklyCalendar calendar) throws ParseException, SchedulerException {
         SchedulerFactory schedulerFactory = new StdSchedulerFactory();
         Scheduler scheduler = schedulerFactory.getScheduler();
@@ -58,7 +62,7 @@ public class HolidayTest {
 
     @Test
     public void neverFire() throws ParseException, SchedulerException {
-        HolidayAndWeeklyCalendar holidayCalendar = new HolidayAndWeeklyCalendar();
+        HolidayAndWeeklyCalendar holidayCalendar = newCalendar();
         holidayCalendar.addExcludedDate(sdf.parse("20150429"));
         holidayCalendar.addExcludedDate(sdf.parse("20150503"));
         holidayCalendar.addExcludedDate(sdf.parse("20150504"));
@@ -75,7 +79,7 @@ public class HolidayTest {
     
     @Test
     public void fireWeekday() throws ParseException, SchedulerException {
-        HolidayAndWeeklyCalendar holidayCalendar = new HolidayAndWeeklyCalendar();
+        HolidayAndWeeklyCalendar holidayCalendar = newCalendar();
 
         List<Date> fireDays = fireJobWithCalendar(sdf.parse("20150715"), holidayCalendar);
         Assert.assertArrayEquals(new Date[]{sdf.parse("20150715"), sdf.parse("20150716"), sdf.parse("20150717"), sdf.parse("20150720"), sdf.parse("20150721")}, fireDays.toArray());
@@ -83,7 +87,7 @@ public class HolidayTest {
     
     @Test
     public void fireWeekdayWithDayStart() throws ParseException, SchedulerException {
-        HolidayAndWeeklyCalendar holidayCalendar = new HolidayAndWeeklyCalendar();
+        HolidayAndWeeklyCalendar holidayCalendar = newCalendar();
         // Bussiness date start at 2 O'clock.      
         holidayCalendar.setDayStart(7200000L);
         
@@ -93,7 +97,7 @@ public class HolidayTest {
 
     @Test
     public void addHoliday() throws ParseException, SchedulerException {
-        HolidayAndWeeklyCalendar holidayCalendar = new HolidayAndWeeklyCalendar();
+        HolidayAndWeeklyCalendar holidayCalendar = newCalendar();
 
         holidayCalendar.addExcludedDate(sdf.parse("20150720"));
         List<Date> fireDays = fireJobWithCalendar(sdf.parse("20150715"), holidayCalendar);